@@ -1,27 +1,34 @@
 package client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import common.FrameCodec;
 import common.Message;
 import common.User;
-import server.ChatSession;
+import common.ChatSession;
+import common.SessionRequest;
+import common.LogFilter;
 
 public class ClientConnection {
     private Socket sock;
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private DataInputStream in;
+    private DataOutputStream out;
     private String host;
     private int port;
     private AtomicBoolean conn;
     private Thread thread;
     private MessageListener listener;
     private User user;
+    //Version of the presence list we hold; -1 until a snapshot arrives or after a missed delta
+    private long presenceVersion = -1;
 
     public interface MessageListener {
         void onMessageReceived(Message message);
@@ -29,7 +36,16 @@ public class ClientConnection {
         void onAllUsersReceived(List<User> users);
         void onSessionReceived(ChatSession session, List<Message> history);
         void onNewSessionNotification(String chatID);
-        void onChatLogsReceived(String logContent);
+        //A page of raw log lines answering requestLogPage; nextOffset is -1 at the end of the log
+        void onLogPage(long offset, long nextOffset, List<String> lines);
+        void onLogAccessDenied();
+        //Messages matching a search, best first: results [from, from + results.size()) of total
+        void onSearchResults(int from, int total, List<Message> results);
+        //An older page of a chat's history (oldest first), answering requestHistory
+        void onHistoryPage(String chatID, List<Message> page);
+        //One user came online or went offline since the last onUserListUpdated
+        void onUserOnline(User user);
+        void onUserOffline(String userID);
     }
 
     public ClientConnection(String host, int port) {
@@ -41,9 +57,8 @@ public class ClientConnection {
     public boolean connect() {
         try {
             sock = new Socket(host, port);
-            out = new ObjectOutputStream(sock.getOutputStream());
-            out.flush();
-            in = new ObjectInputStream(sock.getInputStream());
+            out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
             conn.set(true);
             //Don't start listener thread yet - wait until after login
 
@@ -77,18 +92,17 @@ public class ClientConnection {
 
         try {
             System.out.println("Client: Sending login command...");
-            out.writeObject("LOGIN:" + username + ":" + password);
-            out.flush();
+            write("LOGIN:" + username + ":" + password);
             System.out.println("Client: Login command sent, waiting for response...");
 
-            Object resp = in.readObject();
+            Object resp = FrameCodec.readFrame(in);
             System.out.println("Client: Received response: " + resp + " (type: " + (resp != null ? resp.getClass().getName() : "null") + ")");
 
             if (resp instanceof String && ((String) resp).startsWith("LOGIN_SUCCESS:")) {
                 System.out.println("Client: LOGIN_SUCCESS received!");
                 try {
                     //Read the User object from server
-                    Object uObj = in.readObject();
+                    Object uObj = FrameCodec.readFrame(in);
                     if (uObj instanceof User) {
                         this.user = (User) uObj;
                         System.out.println("Client: Received user object: " + this.user.getUsername());
@@ -97,7 +111,7 @@ public class ClientConnection {
                     }
 
                     //Read sessions
-                    Object sessObj = in.readObject();
+                    Object sessObj = FrameCodec.readFrame(in);
                     if (sessObj instanceof List) {
                         @SuppressWarnings("unchecked")
                         List<ChatSession> sess = (List<ChatSession>) sessObj;
@@ -136,10 +150,6 @@ public class ClientConnection {
             System.err.println("Client: IOException during login: " + e.getMessage());
             e.printStackTrace();
             return false;
-        } catch (ClassNotFoundException e) {
-            System.err.println("Client: ClassNotFoundException during login: " + e.getMessage());
-            e.printStackTrace();
-            return false;
         } catch (Exception e) {
             System.err.println("Client: Unexpected exception during login: " + e.getMessage());
             e.printStackTrace();
@@ -153,8 +163,7 @@ public class ClientConnection {
 		}
 
         try {
-            out.writeObject(msg);
-            out.flush();
+            write(msg);
         } catch (IOException e) {
             System.err.println("Failed to send message: " + e.getMessage());
         }
@@ -166,8 +175,7 @@ public class ClientConnection {
 		}
 
         try {
-            out.writeObject("GET_USER_LIST");
-            out.flush();
+            write("GET_USER_LIST");
         } catch (IOException e) {
             System.err.println("Failed to request user list: " + e.getMessage());
         }
@@ -179,35 +187,59 @@ public class ClientConnection {
 		}
 
         try {
-            out.writeObject("GET_ALL_USERS");
-            out.flush();
+            write("GET_ALL_USERS");
         } catch (IOException e) {
             System.err.println("Failed to request all users: " + e.getMessage());
         }
     }
 
-    public void requestLogs() {
+    //Ask for up to limit log lines matching the filter, starting at a byte offset from an earlier page (0 for the top)
+    public void requestLogPage(long offset, int limit, LogFilter filter) {
         if (!conn.get() || out == null) {
 			return;
 		}
 
         try {
-            out.writeObject("GET_CHAT_LOGS");
-            out.flush();
+            write("GET_LOG_PAGE:" + offset + ":" + limit + ":" + filter.toArguments());
         } catch (IOException e) {
             System.err.println("Failed to request chat logs: " + e.getMessage());
         }
     }
 
+    //Ask for up to limit messages older than beforeMessageID (null for the newest page)
+    public void requestHistory(String chatID, String beforeMessageID, int limit) {
+        if (!conn.get() || out == null) {
+			return;
+		}
+
+        try {
+            write("GET_HISTORY:" + chatID + ":" + limit + ":" + (beforeMessageID != null ? beforeMessageID : ""));
+        } catch (IOException e) {
+            System.err.println("Failed to request history: " + e.getMessage());
+        }
+    }
+
+    //Search the chats we're in (every chat for an admin); results arrive in onSearchResults
+    public void search(String query, int from, int limit) {
+        if (!conn.get() || out == null) {
+			return;
+		}
+
+        try {
+            write("SEARCH:" + from + ":" + limit + ":" + query);
+        } catch (IOException e) {
+            System.err.println("Failed to search: " + e.getMessage());
+        }
+    }
+
     public void create(List<User> parts, boolean isGrp, String name) {
         if (!conn.get() || out == null) {
 			return;
 		}
 
         try {
-            server.Server.SessionRequest req = new server.Server.SessionRequest(parts, isGrp, name);
-            out.writeObject(req);
-            out.flush();
+            SessionRequest req = new SessionRequest(parts, isGrp, name);
+            write(req);
         } catch (IOException e) {
             System.err.println("Failed to create session: " + e.getMessage());
         }
@@ -219,8 +251,7 @@ public class ClientConnection {
 		}
 
         try {
-            out.writeObject("LOGOUT");
-            out.flush();
+            write("LOGOUT");
         } catch (IOException e) {
             System.err.println("Failed to logout: " + e.getMessage());
         }
@@ -244,6 +275,12 @@ public class ClientConnection {
         }
     }
 
+    //The listener thread also writes (presence resyncs), so frames are written one at a time
+    private synchronized void write(Object obj) throws IOException {
+        FrameCodec.writeFrame(out, obj);
+        out.flush();
+    }
+
     public void setListener(MessageListener lst) {
         this.listener = lst;
     }
@@ -251,7 +288,7 @@ public class ClientConnection {
     private void listen() {
         try {
             while (conn.get()) {
-                Object obj = in.readObject();
+                Object obj = FrameCodec.readFrame(in);
 
                 if (obj instanceof Message) {
                     if (listener != null) {
@@ -259,28 +296,65 @@ public class ClientConnection {
                     }
                 } else if (obj instanceof String) {
                     String cmd = (String) obj;
-                    if (cmd.equals("USER_LIST_UPDATE")) {
-                        Object uObj = in.readObject();
+                    if (cmd.equals("ALL_USERS_LIST")) {
+                        Object uObj = FrameCodec.readFrame(in);
                         if (uObj instanceof List && listener != null) {
                             @SuppressWarnings("unchecked")
                             List<User> us = (List<User>) uObj;
-                            listener.onUserListUpdated(us);
+                            listener.onAllUsersReceived(us);
                         }
-                    } else if (cmd.equals("ALL_USERS_LIST")) {
-                        Object uObj = in.readObject();
-                        if (uObj instanceof List && listener != null) {
+                    } else if (cmd.startsWith("SEARCH_RESULTS:")) {
+                        String[] parts = cmd.split(":", 3);
+                        Object resultsObj = FrameCodec.readFrame(in);
+                        if (parts.length == 3 && resultsObj instanceof List && listener != null) {
                             @SuppressWarnings("unchecked")
-                            List<User> us = (List<User>) uObj;
-                            listener.onAllUsersReceived(us);
+                            List<Message> results = (List<Message>) resultsObj;
+                            listener.onSearchResults(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), results);
                         }
-                    } else if (cmd.equals("CHAT_LOGS_DATA")) {
-                        Object logObj = in.readObject();
-                        if (logObj instanceof String && listener != null) {
-                            listener.onChatLogsReceived((String) logObj);
+                    } else if (cmd.startsWith("LOG_PAGE:")) {
+                        String[] parts = cmd.split(":", 3);
+                        Object linesObj = FrameCodec.readFrame(in);
+                        if (parts.length == 3 && linesObj instanceof List && listener != null) {
+                            @SuppressWarnings("unchecked")
+                            List<String> lines = (List<String>) linesObj;
+                            listener.onLogPage(Long.parseLong(parts[1]), Long.parseLong(parts[2]), lines);
                         }
                     } else if (cmd.equals("LOG_ACCESS_DENIED")) {
                         if (listener != null) {
-                            listener.onChatLogsReceived("Access denied: Admin privileges required.");
+                            listener.onLogAccessDenied();
+                        }
+                    } else if (cmd.startsWith("DISCONNECT:")) {
+                        //Server is dropping us, e.g. SLOW_CONSUMER when we fell too far behind
+                        System.err.println("Disconnected by server: " + cmd.substring(11));
+                        conn.set(false);
+                    } else if (cmd.startsWith("PRESENCE_SNAPSHOT:")) {
+                        Object uObj = FrameCodec.readFrame(in);
+                        if (uObj instanceof List) {
+                            presenceVersion = Long.parseLong(cmd.substring(18));
+                            if (listener != null) {
+                                @SuppressWarnings("unchecked")
+                                List<User> us = (List<User>) uObj;
+                                listener.onUserListUpdated(us);
+                            }
+                        }
+                    } else if (cmd.startsWith("PRESENCE_DELTA:")) {
+                        //A User came online, a userID String went offline
+                        Object changes = FrameCodec.readFrame(in);
+                        if (changes instanceof List && acceptPresence(Long.parseLong(cmd.substring(15))) && listener != null) {
+                            for (Object change : (List<?>) changes) {
+                                if (change instanceof User) {
+                                    listener.onUserOnline((User) change);
+                                } else if (change instanceof String) {
+                                    listener.onUserOffline((String) change);
+                                }
+                            }
+                        }
+                    } else if (cmd.startsWith("HISTORY_PAGE:")) {
+                        Object pageObj = FrameCodec.readFrame(in);
+                        if (pageObj instanceof List && listener != null) {
+                            @SuppressWarnings("unchecked")
+                            List<Message> page = (List<Message>) pageObj;
+                            listener.onHistoryPage(cmd.substring(13), page);
                         }
                     } else if (cmd.startsWith("NEW_SESSION:")) {
                         String id = cmd.substring(12);
@@ -297,7 +371,7 @@ public class ClientConnection {
                     }
                 } else if (obj instanceof ChatSession) {
                     ChatSession sess = (ChatSession) obj;
-                    Object histObj = in.readObject();
+                    Object histObj = FrameCodec.readFrame(in);
                     if (histObj instanceof List && listener != null) {
                         @SuppressWarnings("unchecked")
                         List<Message> hist = (List<Message>) histObj;
@@ -305,13 +379,29 @@ public class ClientConnection {
                     }
                 }
             }
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             if (conn.get()) {
                 System.err.println("Connection lost: " + e.getMessage());
             }
         }
     }
 
+    //True if the delta with this version applies on top of our list. Deltas the last snapshot
+    //already covers are skipped; a gap (the server sheds presence for a lagging client) means
+    //our list is stale, so ask for a fresh snapshot and ignore deltas until it arrives
+    private boolean acceptPresence(long version) {
+        if (presenceVersion < 0 || version <= presenceVersion) {
+            return false;
+        }
+        if (version != presenceVersion + 1) {
+            presenceVersion = -1;
+            requestUsers();
+            return false;
+        }
+        presenceVersion = version;
+        return true;
+    }
+
     public boolean isConnected() {
         return conn.get();
     }
@@ -15,8 +15,10 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultListCellRenderer;
@@ -27,6 +29,7 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
+import javax.swing.JScrollBar;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTabbedPane;
@@ -38,6 +41,7 @@ import javax.swing.WindowConstants;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.plaf.basic.BasicTabbedPaneUI;
+import javax.swing.text.DefaultCaret;
 
 //Everything must be imported one by one o9therwise it wouldnt work (Ujas)
 
@@ -45,7 +49,7 @@ import common.Message;
 import common.OnlineStatus;
 import common.User;
 import common.UserRole;
-import server.ChatSession;
+import common.ChatSession;
 
 public class ClientGUI {
 
@@ -53,6 +57,8 @@ public class ClientGUI {
     private static final Color WA_HEADER = new Color(7, 94, 84);
     private static final Color WA_ACCENT = new Color(37, 211, 102);
     private static final Color WA_PANEL = new Color(236, 229, 221);
+    //Same page size the server uses when a chat opens; a shorter page means there is nothing older
+    private static final int HISTORY_PAGE_SIZE = 50;
 
     private final User user;
     private Notification notif;
@@ -65,6 +71,7 @@ public class ClientGUI {
     private final JLabel status;
     private final JLabel userLabel;
     private final JButton groupBtn;
+    private final JButton searchBtn;
     private final JButton logsBtn;
     private final JButton logoutBtn;
 
@@ -72,8 +79,14 @@ public class ClientGUI {
     private final Map<String, ChatSession> sessions;
     private final Map<String, List<User>> groups;
     private final Map<String, String> keys;
+    //Paged history per chat: oldest message shown, requests in flight, chats fully loaded
+    private final Map<String, String> oldestShown;
+    private final Set<String> historyPending;
+    private final Set<String> historyComplete;
     private List<User> cached;
     private List<User> allUsers; //All users from server (for group creation)
+    private LogViewer logViewer;
+    private MessageSearch messageSearch;
 
     public ClientGUI(User user, ClientConnection conn) {
         this.user = user;
@@ -89,6 +102,7 @@ public class ClientGUI {
         this.status = new JLabel();
         this.userLabel = new JLabel();
         this.groupBtn = new JButton("New Group");
+        this.searchBtn = new JButton("Search Messages");
         this.logsBtn = new JButton("View Logs");
         this.logoutBtn = new JButton("Logout");
         this.areas = new HashMap<>();
@@ -97,6 +111,9 @@ public class ClientGUI {
         this.cached = new ArrayList<>();
         this.allUsers = new ArrayList<>();
         this.keys = new HashMap<>();
+        this.oldestShown = new HashMap<>();
+        this.historyPending = new HashSet<>();
+        this.historyComplete = new HashSet<>();
 
         initUI();
     }
@@ -145,6 +162,16 @@ public class ClientGUI {
                 SwingUtilities.invokeLater(() -> refreshUsers(users));
             }
 
+            @Override
+            public void onUserOnline(User u) {
+                SwingUtilities.invokeLater(() -> userOnline(u));
+            }
+
+            @Override
+            public void onUserOffline(String userID) {
+                SwingUtilities.invokeLater(() -> userOffline(userID));
+            }
+
             @Override
             public void onAllUsersReceived(List<User> users) {
                 SwingUtilities.invokeLater(() -> updateAll(users));
@@ -195,6 +222,9 @@ public class ClientGUI {
                         for (Message msg : history) {
                             showMessage(msg);
                         }
+                        if (history.size() < HISTORY_PAGE_SIZE) {
+                            historyComplete.add(id);
+                        }
                     }
                 });
             }
@@ -209,29 +239,34 @@ public class ClientGUI {
             }
 
             @Override
-            public void onChatLogsReceived(String logContent) {
+            public void onHistoryPage(String chatID, List<Message> page) {
+                SwingUtilities.invokeLater(() -> prependHistory(chatID, page));
+            }
+
+            @Override
+            public void onLogPage(long offset, long nextOffset, List<String> lines) {
+                SwingUtilities.invokeLater(() -> {
+                    if (logViewer != null) {
+                        logViewer.addPage(offset, nextOffset, lines);
+                    }
+                });
+            }
+
+            @Override
+            public void onLogAccessDenied() {
+                SwingUtilities.invokeLater(() -> {
+                    if (logViewer != null) {
+                        logViewer.denied();
+                    }
+                });
+            }
+
+            @Override
+            public void onSearchResults(int from, int total, List<Message> results) {
                 SwingUtilities.invokeLater(() -> {
-                    //Create dialog to display logs
-                    JDialog logDialog = new JDialog(frame, "Chat Logs", true);
-                    logDialog.setSize(800, 600);
-                    logDialog.setLocationRelativeTo(frame);
-
-                    JTextArea logArea = new JTextArea();
-                    logArea.setEditable(false);
-                    logArea.setFont(new Font("Courier New", Font.PLAIN, 12));
-                    logArea.setText(logContent);
-                    JScrollPane scrollPane = new JScrollPane(logArea);
-
-                    JButton closeButton = new JButton("Close");
-                    closeButton.addActionListener(e -> logDialog.dispose());
-
-                    JPanel panel = new JPanel(new BorderLayout());
-                    panel.add(new JLabel("Chat Log Contents:"), BorderLayout.NORTH);
-                    panel.add(scrollPane, BorderLayout.CENTER);
-                    panel.add(closeButton, BorderLayout.SOUTH);
-
-                    logDialog.add(panel);
-                    logDialog.setVisible(true);
+                    if (messageSearch != null) {
+                        messageSearch.addResults(from, total, results);
+                    }
                 });
             }
         });
@@ -262,6 +297,32 @@ public class ClientGUI {
         showUsers(users);
     }
 
+    //Presence deltas touch one row instead of rebuilding the list
+    public void userOnline(User u) {
+        if ((u == null) || (user != null && u.getUserID().equals(user.getUserID()))) {
+            return;
+        }
+        userOffline(u.getUserID());
+        cached.add(u);
+        String term = search.getText().trim().toLowerCase();
+        if (userList.getModel() instanceof DefaultListModel
+                && (term.isEmpty() || u.getUsername().toLowerCase().contains(term))) {
+            ((DefaultListModel<User>) userList.getModel()).addElement(u);
+        }
+    }
+
+    public void userOffline(String userID) {
+        cached.removeIf(u -> u.getUserID().equals(userID));
+        if (userList.getModel() instanceof DefaultListModel) {
+            DefaultListModel<User> mdl = (DefaultListModel<User>) userList.getModel();
+            for (int i = mdl.size() - 1; i >= 0; i--) {
+                if (mdl.get(i).getUserID().equals(userID)) {
+                    mdl.remove(i);
+                }
+            }
+        }
+    }
+
     public void updateAll(List<User> users) {
         //Store all registered users (for group creation)
         allUsers = new ArrayList<>();
@@ -489,6 +550,14 @@ public class ClientGUI {
 
         JScrollPane scrollPane = new JScrollPane(area);
         scrollPane.setBorder(BorderFactory.createEmptyBorder());
+        //Scrolling to the top fetches the next older page of history
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        bar.addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting() && e.getValue() == bar.getMinimum()
+                    && bar.getMaximum() - bar.getMinimum() > bar.getVisibleAmount()) {
+                requestOlderHistory(id);
+            }
+        });
 
         panel.add(header, BorderLayout.NORTH);
         panel.add(scrollPane, BorderLayout.CENTER);
@@ -527,10 +596,10 @@ public class ClientGUI {
             return;
         }
         String sender = message.getSenderID();
-        LocalDateTime stamp = message.getTimeStamp() != null ? message.getTimeStamp() : LocalDateTime.now();
-        String line = String.format("[%s] %s: %s", stamp.format(TIME_FMT), sender, message.getContent());
-        area.append(line + System.lineSeparator());
+        area.append(formatLine(message));
         area.setCaretPosition(area.getDocument().getLength());
+        //the first message shown is where paging back starts from
+        oldestShown.putIfAbsent(id, message.getMessageID());
 
         if (!isOpen(id) && notif != null) {
             notif.setSenderName(sender);
@@ -538,6 +607,50 @@ public class ClientGUI {
         }
     }
 
+    private String formatLine(Message message) {
+        LocalDateTime stamp = message.getTimeStamp() != null ? message.getTimeStamp() : LocalDateTime.now();
+        return String.format("[%s] %s: %s", stamp.format(TIME_FMT), message.getSenderID(), message.getContent()) + System.lineSeparator();
+    }
+
+    private void requestOlderHistory(String id) {
+        String oldest = oldestShown.get(id);
+        if (conn == null || oldest == null || historyComplete.contains(id) || !historyPending.add(id)) {
+            return;
+        }
+        conn.requestHistory(id, oldest, HISTORY_PAGE_SIZE);
+    }
+
+    //Insert an older page above what is shown, keeping the view on the same lines
+    private void prependHistory(String id, List<Message> page) {
+        historyPending.remove(id);
+        if (page.size() < HISTORY_PAGE_SIZE) {
+            historyComplete.add(id);
+        }
+        JTextArea area = areas.get(id);
+        if (area == null || page.isEmpty()) {
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        for (Message msg : page) {
+            text.append(formatLine(msg));
+        }
+        oldestShown.put(id, page.get(0).getMessageID());
+
+        JScrollPane scroll = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, area);
+        JScrollBar bar = scroll != null ? scroll.getVerticalScrollBar() : null;
+        int oldMax = bar != null ? bar.getMaximum() : 0;
+        int oldValue = bar != null ? bar.getValue() : 0;
+
+        //don't let the caret drag the view to the inserted text
+        DefaultCaret caret = (DefaultCaret) area.getCaret();
+        caret.setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        area.insert(text.toString(), 0);
+        caret.setUpdatePolicy(DefaultCaret.UPDATE_WHEN_ON_EDT);
+        if (bar != null) {
+            SwingUtilities.invokeLater(() -> bar.setValue(oldValue + bar.getMaximum() - oldMax));
+        }
+    }
+
     public void sendMessage(ChatSession session, String content) {
         if (session == null || content == null || content.isEmpty()) {
             return;
@@ -579,30 +692,23 @@ public class ClientGUI {
             return;
         }
 
-        //Create a dialog to view frame logs
-        JDialog logDialog = new JDialog(frame, "Chat Logs", true);
-        logDialog.setSize(800, 600);
-        logDialog.setLocationRelativeTo(frame);
-
-        JTextArea logArea = new JTextArea();
-        logArea.setEditable(false);
-        logArea.setFont(new Font("Courier New", Font.PLAIN, 12));
-        logArea.setText("Loading logs from server...");
-        JScrollPane scrollPane = new JScrollPane(logArea);
-
-        JButton closeButton = new JButton("Close");
-        closeButton.addActionListener(e -> logDialog.dispose());
-
-        JPanel panel = new JPanel(new BorderLayout());
-        panel.add(new JLabel("Chat Log Contents:"), BorderLayout.NORTH);
-        panel.add(scrollPane, BorderLayout.CENTER);
-        panel.add(closeButton, BorderLayout.SOUTH);
+        //Reuse the open viewer rather than stacking dialogs
+        if (logViewer == null || !logViewer.isShowing()) {
+            logViewer = new LogViewer(frame, conn);
+            logViewer.show();
+        }
+    }
 
-        logDialog.add(panel);
-        logDialog.setVisible(true);
+    public void showSearch() {
+        if (conn == null || !conn.isConnected()) {
+            JOptionPane.showMessageDialog(frame, "Not connected to server.");
+            return;
+        }
 
-        //Request logs from server
-        conn.requestLogs();
+        if (messageSearch == null || !messageSearch.isShowing()) {
+            messageSearch = new MessageSearch(frame, conn, this::selectTab);
+            messageSearch.show();
+        }
     }
 
     public void logout(User user) {
@@ -687,12 +793,15 @@ public class ClientGUI {
         gbc.fill = GridBagConstraints.HORIZONTAL;
         gbc.insets = new Insets(4, 0, 4, 0);
         styleSecondaryButton(groupBtn);
+        styleSecondaryButton(searchBtn);
         styleSecondaryButton(logsBtn);
         styleSecondaryButton(logoutBtn);
         buttonPanel.add(groupBtn, gbc);
         gbc.gridy = 1;
-        buttonPanel.add(logsBtn, gbc);
+        buttonPanel.add(searchBtn, gbc);
         gbc.gridy = 2;
+        buttonPanel.add(logsBtn, gbc);
+        gbc.gridy = 3;
         buttonPanel.add(logoutBtn, gbc);
 
         left.add(searchPanel, BorderLayout.NORTH);
@@ -748,6 +857,7 @@ public class ClientGUI {
         });
 
         groupBtn.addActionListener(this::handleCreateGroup);
+        searchBtn.addActionListener(e -> showSearch());
         logsBtn.addActionListener(e -> showLogs());
         logoutBtn.addActionListener(e -> logout(user));
     }
@@ -0,0 +1,171 @@
+package client;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.Font;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+
+import common.LogFilter;
+
+//Admin view of the chat log, fetched a page at a time as it is scrolled instead of as one dump.
+//Lines go into a JList with fixed cell sizes, which only lays out and paints the rows on screen,
+//so a long log costs the pages fetched so far and nothing more. Everything here runs on the EDT.
+public class LogViewer {
+
+    private static final int PAGE_SIZE = 500;
+    //start fetching the next page this many rows before the bottom
+    private static final int PREFETCH_ROWS = 100;
+
+    private final ClientConnection conn;
+    private final JDialog dialog;
+    private final DefaultListModel<String> lines;
+    private final JList<String> list;
+    private final JScrollPane scrollPane;
+    private final JTextField chatField;
+    private final JTextField userField;
+    private final JTextField fromField;
+    private final JTextField toField;
+    private final JLabel status;
+
+    private LogFilter filter = LogFilter.ALL;
+    //byte offset the next page starts at, -1 once the end of the log is loaded
+    private long nextOffset;
+    private boolean loading;
+    //pages still on their way for a filter that has since been replaced; the server answers in order
+    private int stalePages;
+
+    public LogViewer(JFrame owner, ClientConnection conn) {
+        this.conn = conn;
+        this.dialog = new JDialog(owner, "Chat Logs", false);
+        dialog.setSize(900, 600);
+        dialog.setLocationRelativeTo(owner);
+
+        this.lines = new DefaultListModel<>();
+        this.list = new JList<>(lines);
+        list.setFont(new Font("Courier New", Font.PLAIN, 12));
+        list.setFixedCellHeight(16);
+        list.setFixedCellWidth(3000);
+        this.scrollPane = new JScrollPane(list);
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        bar.addAdjustmentListener(e -> {
+            if (bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - PREFETCH_ROWS * list.getFixedCellHeight()) {
+                loadMore();
+            }
+        });
+
+        this.chatField = new JTextField(12);
+        this.userField = new JTextField(8);
+        this.fromField = new JTextField(12);
+        this.toField = new JTextField(12);
+        JButton apply = new JButton("Apply");
+        apply.addActionListener(e -> reload());
+        JPanel filters = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        filters.add(new JLabel("Chat ID:"));
+        filters.add(chatField);
+        filters.add(new JLabel("User:"));
+        filters.add(userField);
+        filters.add(new JLabel("From:"));
+        filters.add(fromField);
+        filters.add(new JLabel("To:"));
+        filters.add(toField);
+        filters.add(apply);
+
+        this.status = new JLabel(" ");
+        JButton closeButton = new JButton("Close");
+        closeButton.addActionListener(e -> dialog.dispose());
+        JPanel bottom = new JPanel(new BorderLayout());
+        bottom.add(status, BorderLayout.CENTER);
+        bottom.add(closeButton, BorderLayout.EAST);
+
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(filters, BorderLayout.NORTH);
+        panel.add(scrollPane, BorderLayout.CENTER);
+        panel.add(bottom, BorderLayout.SOUTH);
+        dialog.add(panel);
+    }
+
+    public void show() {
+        dialog.setVisible(true);
+        reload();
+    }
+
+    public boolean isShowing() {
+        return dialog.isDisplayable();
+    }
+
+    //Take the filter fields and start again from the top of the log
+    private void reload() {
+        LogFilter next;
+        try {
+            next = new LogFilter(chatField.getText(), userField.getText(), parseTime(fromField.getText()), parseTime(toField.getText()));
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(dialog, "Times look like 2025-12-02 or 2025-12-02 17:30");
+            return;
+        }
+        if (loading) {
+            stalePages++;
+        }
+        filter = next;
+        lines.clear();
+        nextOffset = 0;
+        loading = false;
+        loadMore();
+    }
+
+    private void loadMore() {
+        if (loading || nextOffset < 0 || !conn.isConnected()) {
+            return;
+        }
+        loading = true;
+        status.setText("Loading...");
+        conn.requestLogPage(nextOffset, PAGE_SIZE, filter);
+    }
+
+    public void addPage(long offset, long next, List<String> page) {
+        if (stalePages > 0) {
+            stalePages--;
+            return;
+        }
+        loading = false;
+        nextOffset = next;
+        for (String line : page) {
+            lines.addElement(line);
+        }
+        status.setText(lines.size() + " lines" + (next < 0 ? " (end of log)" : ", scroll down for more"));
+        //a filter that matches little can leave the view unfilled; keep going until it is
+        if (next >= 0 && lines.size() * list.getFixedCellHeight() < scrollPane.getViewport().getHeight() + PREFETCH_ROWS * list.getFixedCellHeight()) {
+            loadMore();
+        }
+    }
+
+    public void denied() {
+        loading = false;
+        status.setText("Access denied: Admin privileges required.");
+    }
+
+    //"2025-12-02", "2025-12-02 17:30" or ISO "2025-12-02T17:30:00"; empty for no bound
+    private static LocalDateTime parseTime(String text) {
+        String value = text.trim();
+        if (value.isEmpty()) {
+            return null;
+        }
+        if (value.length() == 10) {
+            return LocalDate.parse(value).atStartOfDay();
+        }
+        return LocalDateTime.parse(value.replace(' ', 'T'));
+    }
+}
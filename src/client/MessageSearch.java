@@ -0,0 +1,148 @@
+package client;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+
+import common.Message;
+
+//Message search dialog. Results come from the server's index, best first, a page at a time as
+//the list is scrolled; double-clicking one opens its chat. Everything here runs on the EDT.
+public class MessageSearch {
+
+    private static final int PAGE_SIZE = 25;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+    private final ClientConnection conn;
+    private final JDialog dialog;
+    private final JTextField queryField;
+    private final DefaultListModel<Message> results;
+    private final JList<Message> list;
+    private final JLabel status;
+
+    private String query = "";
+    private int total;
+    private boolean loading;
+    //pages still on their way for an earlier query; the server answers in order
+    private int stalePages;
+
+    public MessageSearch(JFrame owner, ClientConnection conn, Consumer<String> openChat) {
+        this.conn = conn;
+        this.dialog = new JDialog(owner, "Search Messages", false);
+        dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        dialog.setSize(600, 500);
+        dialog.setLocationRelativeTo(owner);
+
+        this.queryField = new JTextField();
+        JButton searchButton = new JButton("Search");
+        searchButton.addActionListener(e -> start());
+        queryField.addActionListener(e -> start());
+        JPanel top = new JPanel(new BorderLayout(4, 4));
+        top.add(queryField, BorderLayout.CENTER);
+        top.add(searchButton, BorderLayout.EAST);
+
+        this.results = new DefaultListModel<>();
+        this.list = new JList<>(results);
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> l, Object value, int index, boolean selected, boolean focus) {
+                Message m = (Message) value;
+                String when = m.getTimeStamp() != null ? m.getTimeStamp().format(TIME) : "";
+                return super.getListCellRendererComponent(l, m.getSenderID() + "  " + when + ":  " + m.getContent(), index, selected, focus);
+            }
+        });
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                Message selected = list.getSelectedValue();
+                if (e.getClickCount() == 2 && selected != null) {
+                    openChat.accept(selected.getChatID());
+                }
+            }
+        });
+        JScrollPane scrollPane = new JScrollPane(list);
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        bar.addAdjustmentListener(e -> {
+            if (bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - bar.getVisibleAmount() / 2) {
+                loadMore();
+            }
+        });
+
+        this.status = new JLabel(" ");
+        JButton closeButton = new JButton("Close");
+        closeButton.addActionListener(e -> dialog.dispose());
+        JPanel bottom = new JPanel(new BorderLayout());
+        bottom.add(status, BorderLayout.CENTER);
+        bottom.add(closeButton, BorderLayout.EAST);
+
+        JPanel panel = new JPanel(new BorderLayout(4, 4));
+        panel.add(top, BorderLayout.NORTH);
+        panel.add(scrollPane, BorderLayout.CENTER);
+        panel.add(bottom, BorderLayout.SOUTH);
+        dialog.add(panel);
+    }
+
+    public void show() {
+        dialog.setVisible(true);
+        queryField.requestFocusInWindow();
+    }
+
+    public boolean isShowing() {
+        return dialog.isDisplayable();
+    }
+
+    private void start() {
+        if (loading) {
+            stalePages++;
+        }
+        query = queryField.getText().trim();
+        results.clear();
+        total = 0;
+        loading = false;
+        if (query.isEmpty()) {
+            status.setText(" ");
+            return;
+        }
+        loadMore();
+    }
+
+    private void loadMore() {
+        if (loading || query.isEmpty() || (results.size() > 0 && results.size() >= total) || !conn.isConnected()) {
+            return;
+        }
+        loading = true;
+        status.setText("Searching...");
+        conn.search(query, results.size(), PAGE_SIZE);
+    }
+
+    public void addResults(int from, int matched, List<Message> page) {
+        if (stalePages > 0) {
+            stalePages--;
+            return;
+        }
+        loading = false;
+        total = matched;
+        if (from != results.size()) {
+            return;
+        }
+        for (Message m : page) {
+            results.addElement(m);
+        }
+        status.setText(total == 0 ? "No messages found" : results.size() + " of " + total + " messages");
+    }
+}
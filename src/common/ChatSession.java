@@ -0,0 +1,187 @@
+package common;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class ChatSession implements Serializable {
+
+	//Most recent messages kept in memory per chat unless the server configures otherwise
+	public static final int DEFAULT_RECENT_MESSAGES = 200;
+
+	private String chatID;
+	private String chatName;
+	private List<User> participants;
+	private boolean isGroup;
+
+	//Ring of the newest messages, oldest at `head`. Older messages stay in the chat log only.
+	//Allocated on first use, so sessions nobody writes to cost no ring
+	private final int recentCapacity;
+	private Message[] recent;
+	private int head;
+	private int size;
+	//true while the ring still holds the chat's first message, so it can answer any page
+	private boolean complete;
+
+	//Creating a unique ID for each chat
+	private String generateChatID(){
+		return UUID.randomUUID().toString();
+	}
+
+	//Constructor for brand new session
+	public ChatSession(List<User> participants, boolean isGroup, String chatName) {
+		this(participants, isGroup, chatName, DEFAULT_RECENT_MESSAGES);
+	}
+
+	public ChatSession(List<User> participants, boolean isGroup, String chatName, int recentMessages) {
+		this.chatID = generateChatID();
+		this.chatName = chatName == null || chatName.isEmpty() ? "" : chatName;
+		this.participants = new ArrayList<>(participants);
+		this.recentCapacity = Math.max(0, recentMessages);
+		//nothing has been said yet, so the ring holds the whole chat
+		this.complete = true;
+		this.isGroup = isGroup;
+	}
+
+	//Constructor used when loading an existing session from log file (to preserve chat ID)
+	public ChatSession(String chatID, List<User> participants, boolean isGroup, String chatName) {
+		this(chatID, participants, isGroup, chatName, DEFAULT_RECENT_MESSAGES);
+	}
+
+	public ChatSession(String chatID, List<User> participants, boolean isGroup, String chatName, int recentMessages) {
+		this.chatID = chatID;
+		this.chatName = chatName == null || chatName.isEmpty() ? "" : chatName;
+		this.participants = new ArrayList<>(participants);
+		this.recentCapacity = Math.max(0, recentMessages);
+		//earlier messages may be in the log; see seedRecentMessages
+		this.complete = false;
+		this.isGroup = isGroup;
+	}
+
+	//Overloaded constructor with default empty chatName
+	public ChatSession(List<User> participants, boolean isGroup) {
+		this(participants, isGroup, "");
+	}
+
+	//Add a message to the chat, evicting the oldest cached one once the ring is full
+	public synchronized void addMessage(Message message) {
+		if (message == null) {
+			return;
+		}
+		if (recentCapacity == 0) {
+			complete = false;
+			return;
+		}
+		if (recent == null) {
+			recent = new Message[recentCapacity];
+		}
+		if (size == recent.length) {
+			recent[head] = message;
+			head = (head + 1) % recent.length;
+			complete = false;
+		} else {
+			recent[(head + size) % recent.length] = message;
+			size++;
+		}
+	}
+
+	//Fill an empty ring with the newest messages read from the log, oldest first.
+	//Skipped if messages arrived meanwhile, since the page may not include them
+	public synchronized void seedRecentMessages(List<Message> newest, boolean wholeChat) {
+		if (size > 0 || complete || recentCapacity == 0) {
+			return;
+		}
+		recent = new Message[recentCapacity];
+		int from = Math.max(0, newest.size() - recentCapacity);
+		for (int i = from; i < newest.size(); i++) {
+			recent[size++] = newest.get(i);
+		}
+		complete = wholeChat && from == 0;
+	}
+
+	//One page of history from the ring, oldest first: the `limit` messages before
+	//beforeMessageID, or the newest ones when it is null. Returns null when the ring
+	//can't answer on its own and the page has to come from the log.
+	public synchronized List<Message> getRecentPage(String beforeMessageID, int limit) {
+		int end = size;
+		if (beforeMessageID != null) {
+			end = -1;
+			for (int i = size - 1; i >= 0; i--) {
+				if (beforeMessageID.equals(recent[(head + i) % recent.length].getMessageID())) {
+					end = i;
+					break;
+				}
+			}
+			if (end < 0) {
+				return null;
+			}
+		}
+		if (end < limit && !complete) {
+			return null;
+		}
+		List<Message> page = new ArrayList<>(Math.min(end, limit));
+		for (int i = Math.max(0, end - limit); i < end; i++) {
+			page.add(recent[(head + i) % recent.length]);
+		}
+		return page;
+	}
+
+	//Add a user to a group chat
+	public synchronized void addParticipant(User user) {
+		if (user == null) {
+			return;
+		}
+		if (!participants.contains(user)) {
+			participants.add(user);
+		}
+		if (participants.size() > 2) {
+			isGroup = true;
+		}
+	}
+
+	//Remove a participant from the chat
+	public synchronized void removeParticipant(User user) {
+		if (user != null) {
+			participants.remove(user);
+			//Auto-update isGroup if 2 or fewer participants
+			if (participants.size() <= 2) {
+				isGroup = false;
+			}
+		}
+	}
+
+	//Getters
+	public String getChatID() {
+		return chatID;
+	}
+
+	public String getChatName() {
+		return chatName;
+	}
+
+	public synchronized List<User> getParticipants() {
+		return new ArrayList<>(participants);
+	}
+
+	//The cached recent messages, oldest first
+	public synchronized List<Message> getMessages() {
+		List<Message> messages = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			messages.add(recent[(head + i) % recent.length]);
+		}
+		return messages;
+	}
+
+	public int getRecentCapacity() {
+		return recentCapacity;
+	}
+
+	public synchronized boolean isGroup() {
+		return isGroup;
+	}
+
+	public synchronized boolean isGroupChat() {
+		return isGroup;
+	}
+}
@@ -0,0 +1,6 @@
+package common;
+
+//Reason codes the server puts in a final "DISCONNECT:<reason>" frame before dropping a client
+public enum DisconnectReason {
+	SLOW_CONSUMER
+}
@@ -0,0 +1,93 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+//Length-prefixed framing shared by the client and both server transports.
+//Every frame is a 4 byte big-endian payload length followed by the payload, so a
+//non-blocking reader can tell when a whole request has arrived before decoding it.
+//The payload itself is in the binary WireFormat.
+public final class FrameCodec {
+
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    //what a server accepts before the connection logs in: LOGIN and a few short commands
+    public static final int MAX_LOGIN_FRAME_SIZE = 8 * 1024;
+    //readFrame allocates at most this far ahead of the bytes that have actually arrived
+    private static final int READ_CHUNK = 64 * 1024;
+
+    private FrameCodec() {
+    }
+
+    //Encode one object into a complete frame (header + payload)
+    public static byte[] encode(Object obj) throws IOException {
+        WireFormat.Writer out = new WireFormat.Writer(128);
+        out.skip(HEADER_SIZE);
+        WireFormat.write(out, obj);
+        byte[] frame = out.toByteArray();
+        int length = frame.length - HEADER_SIZE;
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large: " + length + " bytes");
+        }
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    //Encode objects into consecutive frames
+    public static byte[][] encodeFrames(Object... objects) throws IOException {
+        byte[][] frames = new byte[objects.length][];
+        for (int i = 0; i < objects.length; i++) {
+            frames[i] = encode(objects[i]);
+        }
+        return frames;
+    }
+
+    //Decode the payload of a frame (header already stripped)
+    public static Object decode(byte[] payload, int offset, int length) throws IOException {
+        WireFormat.Reader in = new WireFormat.Reader(payload, offset, length);
+        Object obj = WireFormat.read(in);
+        if (in.hasRemaining()) {
+            throw new IOException("Trailing bytes after payload");
+        }
+        return obj;
+    }
+
+    //Check a length header read off the wire before allocating for it
+    public static int checkLength(int length) throws IOException {
+        return checkLength(length, MAX_FRAME_SIZE);
+    }
+
+    public static int checkLength(int length, int maxLength) throws IOException {
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    //Blocking helpers used by ClientConnection and the thread-per-client server mode
+    public static void writeFrame(DataOutputStream out, Object obj) throws IOException {
+        out.write(encode(obj));
+    }
+
+    public static Object readFrame(DataInputStream in) throws IOException {
+        return readFrame(in, MAX_FRAME_SIZE);
+    }
+
+    //The payload buffer doubles as bytes arrive, so a header claiming 16 MB costs nothing until they do
+    public static Object readFrame(DataInputStream in, int maxLength) throws IOException {
+        int length = checkLength(in.readInt(), maxLength);
+        byte[] payload = new byte[Math.min(length, READ_CHUNK)];
+        in.readFully(payload);
+        while (payload.length < length) {
+            int filled = payload.length;
+            payload = Arrays.copyOf(payload, (int) Math.min(length, 2L * filled));
+            in.readFully(payload, filled, payload.length - filled);
+        }
+        return decode(payload, 0, length);
+    }
+}
@@ -0,0 +1,108 @@
+package common;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+
+//Which chat log lines the admin log viewer asks for: any mix of one chat, one user and a time
+//range [from, to). A null field doesn't filter. A user matches the messages they sent and the
+//sessions they are in; lines that are neither MESSAGE| nor SESSION| only pass an empty filter.
+public class LogFilter {
+
+    public static final LogFilter ALL = new LogFilter(null, null, null, null);
+
+    private final String chatID;
+    private final String userID;
+    private final LocalDateTime from;
+    private final LocalDateTime to;
+
+    public LogFilter(String chatID, String userID, LocalDateTime from, LocalDateTime to) {
+        this.chatID = emptyToNull(chatID);
+        this.userID = emptyToNull(userID);
+        this.from = from;
+        this.to = to;
+    }
+
+    public boolean isEmpty() {
+        return chatID == null && userID == null && from == null && to == null;
+    }
+
+    //MESSAGE|messageID|chatID|senderID|timestamp|content or SESSION|chatID|timestamp|isGroup|participants|name
+    public boolean matches(String line) {
+        if (isEmpty()) {
+            return true;
+        }
+        String[] parts = line.split("\\|", 6);
+        String lineChat;
+        String lineTime;
+        boolean userMatches;
+        if (line.startsWith("MESSAGE|") && parts.length >= 5) {
+            lineChat = parts[2];
+            lineTime = parts[4];
+            userMatches = userID == null || userID.equals(parts[3]);
+        } else if (line.startsWith("SESSION|") && parts.length >= 5) {
+            lineChat = parts[1];
+            lineTime = parts[2];
+            userMatches = userID == null || ("," + parts[4] + ",").contains("," + userID + ",");
+        } else {
+            return false;
+        }
+        if (!userMatches || (chatID != null && !chatID.equals(lineChat))) {
+            return false;
+        }
+        if (from == null && to == null) {
+            return true;
+        }
+        try {
+            LocalDateTime time = LocalDateTime.parse(lineTime);
+            return (from == null || !time.isBefore(from)) && (to == null || time.isBefore(to));
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    //"chatID:userID:from,to" as sent in GET_LOG_PAGE, each part empty when it doesn't filter.
+    //Times are ISO local date-times, which contain ':', so they go last and are split on ','
+    public String toArguments() {
+        return nullToEmpty(chatID) + ":" + nullToEmpty(userID) + ":"
+                + (from != null ? from.toString() : "") + "," + (to != null ? to.toString() : "");
+    }
+
+    public static LogFilter parse(String arguments) {
+        String[] parts = arguments.split(":", 3);
+        if (parts.length < 3) {
+            throw new IllegalArgumentException("Expected chatID:userID:from,to but got " + arguments);
+        }
+        String[] range = parts[2].split(",", -1);
+        try {
+            return new LogFilter(parts[0], parts[1],
+                    range[0].isEmpty() ? null : LocalDateTime.parse(range[0]),
+                    range.length < 2 || range[1].isEmpty() ? null : LocalDateTime.parse(range[1]));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Bad time in log filter: " + e.getParsedString());
+        }
+    }
+
+    public String getChatID() {
+        return chatID;
+    }
+
+    public String getUserID() {
+        return userID;
+    }
+
+    public LocalDateTime getFrom() {
+        return from;
+    }
+
+    public LocalDateTime getTo() {
+        return to;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -0,0 +1,21 @@
+package common;
+
+import java.io.Serializable;
+import java.util.List;
+
+//A client's request to start a chat, sent to the server
+public class SessionRequest implements Serializable {
+    private List<User> participants;
+    private boolean isGroup;
+    private String chatName;
+
+    public SessionRequest(List<User> participants, boolean isGroup, String chatName) {
+        this.participants = participants;
+        this.isGroup = isGroup;
+        this.chatName = chatName;
+    }
+
+    public List<User> getParticipants() { return participants; }
+    public boolean isGroup() { return isGroup; }
+    public String getChatName() { return chatName; }
+}
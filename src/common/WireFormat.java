@@ -0,0 +1,511 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+//Binary payload format carried inside FrameCodec frames, shared by the client and the server.
+//Every payload starts with a one byte opcode. Protocol commands ("LOGIN:user:pass",
+//"GET_USER_LIST", ...) get their own opcode with any argument written as a string, so
+//handlers keep working with the same command strings they always have. Objects are written
+//field by field: lengths and counts as varints, strings as UTF-8, UUID ids as 16 raw bytes
+//and timestamps as epoch seconds plus nanos.
+public final class WireFormat {
+
+    //Commands without an argument. 0x03, 0x07 and 0x0A were GET_CHAT_LOGS, USER_LIST_UPDATE and
+    //CHAT_LOGS_DATA, replaced by GET_LOG_PAGE and the presence snapshot; don't reuse them
+    static final byte GET_USER_LIST = 0x01;
+    static final byte GET_ALL_USERS = 0x02;
+    static final byte LOGOUT = 0x04;
+    static final byte LOGOUT_SUCCESS = 0x05;
+    static final byte LOGIN_FAILED = 0x06;
+    static final byte ALL_USERS_LIST = 0x08;
+    static final byte LOG_ACCESS_DENIED = 0x09;
+
+    //Commands of the form "NAME:argument"
+    static final byte LOGIN = 0x10;
+    static final byte LOGIN_SUCCESS = 0x11;
+    static final byte DISCONNECT = 0x12;
+    static final byte NEW_SESSION = 0x13;
+    static final byte GET_HISTORY = 0x14;
+    static final byte HISTORY_PAGE = 0x15;
+    static final byte PRESENCE_SNAPSHOT = 0x16;
+    static final byte PRESENCE_DELTA = 0x17;
+    static final byte GET_LOG_PAGE = 0x18;
+    static final byte LOG_PAGE = 0x19;
+    static final byte SEARCH = 0x1A;
+    static final byte SEARCH_RESULTS = 0x1B;
+
+    //Values
+    static final byte TEXT = 0x20;
+    static final byte MESSAGE = 0x21;
+    static final byte USER = 0x22;
+    static final byte CHAT_SESSION = 0x23;
+    static final byte SESSION_REQUEST = 0x24;
+    static final byte LIST = 0x25;
+
+    private static final String[] PLAIN_COMMANDS = new String[LOG_ACCESS_DENIED + 1];
+    private static final String[] ARGUMENT_COMMANDS = new String[SEARCH_RESULTS - LOGIN + 1];
+
+    static {
+        PLAIN_COMMANDS[GET_USER_LIST] = "GET_USER_LIST";
+        PLAIN_COMMANDS[GET_ALL_USERS] = "GET_ALL_USERS";
+        PLAIN_COMMANDS[LOGOUT] = "LOGOUT";
+        PLAIN_COMMANDS[LOGOUT_SUCCESS] = "LOGOUT_SUCCESS";
+        PLAIN_COMMANDS[LOGIN_FAILED] = "LOGIN_FAILED";
+        PLAIN_COMMANDS[ALL_USERS_LIST] = "ALL_USERS_LIST";
+        PLAIN_COMMANDS[LOG_ACCESS_DENIED] = "LOG_ACCESS_DENIED";
+
+        ARGUMENT_COMMANDS[LOGIN - LOGIN] = "LOGIN:";
+        ARGUMENT_COMMANDS[LOGIN_SUCCESS - LOGIN] = "LOGIN_SUCCESS:";
+        ARGUMENT_COMMANDS[DISCONNECT - LOGIN] = "DISCONNECT:";
+        ARGUMENT_COMMANDS[NEW_SESSION - LOGIN] = "NEW_SESSION:";
+        ARGUMENT_COMMANDS[GET_HISTORY - LOGIN] = "GET_HISTORY:";
+        ARGUMENT_COMMANDS[HISTORY_PAGE - LOGIN] = "HISTORY_PAGE:";
+        ARGUMENT_COMMANDS[PRESENCE_SNAPSHOT - LOGIN] = "PRESENCE_SNAPSHOT:";
+        ARGUMENT_COMMANDS[PRESENCE_DELTA - LOGIN] = "PRESENCE_DELTA:";
+        ARGUMENT_COMMANDS[GET_LOG_PAGE - LOGIN] = "GET_LOG_PAGE:";
+        ARGUMENT_COMMANDS[LOG_PAGE - LOGIN] = "LOG_PAGE:";
+        ARGUMENT_COMMANDS[SEARCH - LOGIN] = "SEARCH:";
+        ARGUMENT_COMMANDS[SEARCH_RESULTS - LOGIN] = "SEARCH_RESULTS:";
+    }
+
+    //Lists on the wire nest at most 2 deep; a payload nesting further is rejected, not recursed into
+    private static final int MAX_LIST_DEPTH = 4;
+
+    //Id fields: null, a UUID packed into 16 bytes, or any other string
+    private static final byte ID_NULL = 0;
+    private static final byte ID_UUID = 1;
+    private static final byte ID_TEXT = 2;
+
+    //Message flag bits
+    private static final int HAS_TIMESTAMP = 1;
+    private static final int HAS_STATUS = 2;
+    private static final int STATUS_SENT = 4;
+    //LocalDateTime.now() is microsecond precision on most platforms, so nanos are usually sent as micros
+    private static final int TIME_IN_MICROS = 8;
+
+    private static final UserRole[] ROLES = UserRole.values();
+    private static final OnlineStatus[] STATUSES = OnlineStatus.values();
+
+    private WireFormat() {
+    }
+
+    //Append the payload for obj to out
+    public static void write(Writer out, Object obj) throws IOException {
+        if (obj instanceof String) {
+            writeCommand(out, (String) obj);
+        } else if (obj instanceof Message) {
+            out.writeByte(MESSAGE);
+            writeMessage(out, (Message) obj);
+        } else if (obj instanceof User) {
+            out.writeByte(USER);
+            writeUser(out, (User) obj);
+        } else if (obj instanceof ChatSession) {
+            out.writeByte(CHAT_SESSION);
+            writeSession(out, (ChatSession) obj);
+        } else if (obj instanceof SessionRequest) {
+            out.writeByte(SESSION_REQUEST);
+            writeSessionRequest(out, (SessionRequest) obj);
+        } else if (obj instanceof List) {
+            List<?> list = (List<?>) obj;
+            out.writeByte(LIST);
+            out.writeVarInt(list.size());
+            for (Object element : list) {
+                write(out, element);
+            }
+        } else {
+            throw new IOException("No wire encoding for " + (obj == null ? "null" : obj.getClass().getName()));
+        }
+    }
+
+    //Read one payload written by write()
+    public static Object read(Reader in) throws IOException {
+        return read(in, 0);
+    }
+
+    private static Object read(Reader in, int depth) throws IOException {
+        byte opcode = in.readByte();
+        if (opcode > 0 && opcode < PLAIN_COMMANDS.length && PLAIN_COMMANDS[opcode] != null) {
+            return PLAIN_COMMANDS[opcode];
+        }
+        if (opcode >= LOGIN && opcode <= SEARCH_RESULTS) {
+            return ARGUMENT_COMMANDS[opcode - LOGIN] + in.readString();
+        }
+        switch (opcode) {
+            case TEXT:
+                return in.readString();
+            case MESSAGE:
+                return readMessage(in);
+            case USER:
+                return readUser(in);
+            case CHAT_SESSION:
+                return readSession(in);
+            case SESSION_REQUEST:
+                return readSessionRequest(in);
+            case LIST:
+                if (depth >= MAX_LIST_DEPTH) {
+                    throw new IOException("List nested too deep");
+                }
+                int size = in.readSize();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read(in, depth + 1));
+                }
+                return list;
+            default:
+                throw new IOException("Unknown opcode: " + opcode);
+        }
+    }
+
+    private static void writeCommand(Writer out, String command) throws IOException {
+        for (byte opcode = 1; opcode < PLAIN_COMMANDS.length; opcode++) {
+            if (command.equals(PLAIN_COMMANDS[opcode])) {
+                out.writeByte(opcode);
+                return;
+            }
+        }
+        for (int i = 0; i < ARGUMENT_COMMANDS.length; i++) {
+            if (command.startsWith(ARGUMENT_COMMANDS[i])) {
+                out.writeByte((byte) (LOGIN + i));
+                out.writeString(command.substring(ARGUMENT_COMMANDS[i].length()));
+                return;
+            }
+        }
+        out.writeByte(TEXT);
+        out.writeString(command);
+    }
+
+    private static void writeMessage(Writer out, Message message) throws IOException {
+        writeId(out, message.getMessageID());
+        writeId(out, message.getChatID());
+        out.writeString(message.getSenderID());
+        out.writeString(message.getContent());
+
+        LocalDateTime time = message.getTimeStamp();
+        Boolean sent = message.checkStatus();
+        boolean micros = time != null && time.getNano() % 1000 == 0;
+        int flags = (time != null ? HAS_TIMESTAMP : 0)
+                | (sent != null ? HAS_STATUS : 0)
+                | (Boolean.TRUE.equals(sent) ? STATUS_SENT : 0)
+                | (micros ? TIME_IN_MICROS : 0);
+        out.writeByte((byte) flags);
+        if (time != null) {
+            out.writeVarLong(zigZag(time.toEpochSecond(ZoneOffset.UTC)));
+            out.writeVarInt(micros ? time.getNano() / 1000 : time.getNano());
+        }
+    }
+
+    private static Message readMessage(Reader in) throws IOException {
+        String messageID = readId(in);
+        String chatID = readId(in);
+        String senderID = in.readString();
+        String content = in.readString();
+
+        int flags = in.readByte();
+        LocalDateTime time = null;
+        if ((flags & HAS_TIMESTAMP) != 0) {
+            long seconds = unZigZag(in.readVarLong());
+            int nanos = in.readCount();
+            if ((flags & TIME_IN_MICROS) != 0) {
+                nanos *= 1000;
+            }
+            try {
+                time = LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+            } catch (RuntimeException e) {
+                throw new IOException("Bad timestamp", e);
+            }
+        }
+        Message message = new Message(messageID, chatID, senderID, time, content);
+        if ((flags & HAS_STATUS) != 0) {
+            message.setStatus((flags & STATUS_SENT) != 0);
+        }
+        return message;
+    }
+
+    //The password never goes on the wire; clients have no use for it
+    private static void writeUser(Writer out, User user) throws IOException {
+        out.writeString(user.getUserID());
+        //Usernames and ids are the same for everyone created through the User constructor
+        String username = user.getUsername();
+        out.writeString(username != null && username.equals(user.getUserID()) ? null : username);
+        out.writeByte((byte) (user.getRole() == null ? 0 : user.getRole().ordinal() + 1));
+        out.writeByte((byte) (user.getStatus() == null ? 0 : user.getStatus().ordinal() + 1));
+    }
+
+    private static User readUser(Reader in) throws IOException {
+        String userID = in.readString();
+        String username = in.readString();
+        UserRole role = readEnum(in, ROLES);
+        OnlineStatus status = readEnum(in, STATUSES);
+
+        User user = new User(username != null ? username : userID, null, role);
+        user.setUserID(userID);
+        user.setStatus(status);
+        return user;
+    }
+
+    //The session's message list stays on the server; history is sent as its own frame
+    private static void writeSession(Writer out, ChatSession session) throws IOException {
+        writeId(out, session.getChatID());
+        out.writeString(session.getChatName());
+        out.writeByte((byte) (session.isGroup() ? 1 : 0));
+        writeUsers(out, session.getParticipants());
+    }
+
+    private static ChatSession readSession(Reader in) throws IOException {
+        String chatID = readId(in);
+        String chatName = in.readString();
+        boolean isGroup = in.readByte() != 0;
+        return new ChatSession(chatID, readUsers(in), isGroup, chatName);
+    }
+
+    private static void writeSessionRequest(Writer out, SessionRequest request) throws IOException {
+        out.writeString(request.getChatName());
+        out.writeByte((byte) (request.isGroup() ? 1 : 0));
+        writeUsers(out, request.getParticipants());
+    }
+
+    private static SessionRequest readSessionRequest(Reader in) throws IOException {
+        String chatName = in.readString();
+        boolean isGroup = in.readByte() != 0;
+        return new SessionRequest(readUsers(in), isGroup, chatName);
+    }
+
+    private static void writeUsers(Writer out, List<User> users) throws IOException {
+        if (users == null) {
+            out.writeVarInt(0);
+            return;
+        }
+        out.writeVarInt(users.size());
+        for (User user : users) {
+            writeUser(out, user);
+        }
+    }
+
+    private static List<User> readUsers(Reader in) throws IOException {
+        int size = in.readSize();
+        List<User> users = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            users.add(readUser(in));
+        }
+        return users;
+    }
+
+    private static void writeId(Writer out, String id) throws IOException {
+        if (id == null) {
+            out.writeByte(ID_NULL);
+            return;
+        }
+        UUID uuid = parseUuid(id);
+        if (uuid != null) {
+            out.writeByte(ID_UUID);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        } else {
+            out.writeByte(ID_TEXT);
+            out.writeString(id);
+        }
+    }
+
+    private static String readId(Reader in) throws IOException {
+        byte kind = in.readByte();
+        switch (kind) {
+            case ID_NULL:
+                return null;
+            case ID_UUID:
+                return new UUID(in.readLong(), in.readLong()).toString();
+            case ID_TEXT:
+                return in.readString();
+            default:
+                throw new IOException("Bad id kind: " + kind);
+        }
+    }
+
+    //Only ids that round-trip exactly through UUID.toString() are packed
+    private static UUID parseUuid(String id) {
+        if (id.length() != 36 || id.charAt(8) != '-' || id.charAt(13) != '-' || id.charAt(18) != '-' || id.charAt(23) != '-') {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static <E> E readEnum(Reader in, E[] values) throws IOException {
+        int index = in.readByte();
+        if (index == 0) {
+            return null;
+        }
+        if (index < 0 || index > values.length) {
+            throw new IOException("Bad enum ordinal: " + (index - 1));
+        }
+        return values[index - 1];
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    //Growable byte buffer the encoder writes into
+    public static final class Writer {
+        private byte[] buffer;
+        private int size;
+
+        public Writer(int capacity) {
+            this.buffer = new byte[Math.max(16, capacity)];
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+
+        public void writeByte(byte value) {
+            ensure(1);
+            buffer[size++] = value;
+        }
+
+        public void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        public void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        public void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        //Length + 1 so that 0 can mean null
+        public void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(utf8.length + 1);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, buffer, size, utf8.length);
+            size += utf8.length;
+        }
+
+        //Reserve space up front, e.g. for a frame header patched in later
+        public void skip(int count) {
+            ensure(count);
+            size += count;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public byte[] array() {
+            return buffer;
+        }
+
+        public byte[] toByteArray() {
+            return buffer.length == size ? buffer : Arrays.copyOf(buffer, size);
+        }
+    }
+
+    //Bounds-checked reader over one payload
+    public static final class Reader {
+        private final byte[] buffer;
+        private final int limit;
+        private int position;
+
+        public Reader(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        private void require(int count) throws IOException {
+            if (count < 0 || limit - position < count) {
+                throw new EOFException("Truncated payload");
+            }
+        }
+
+        public byte readByte() throws IOException {
+            require(1);
+            return buffer[position++];
+        }
+
+        public long readLong() throws IOException {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        public long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Varint too long");
+        }
+
+        //Non-negative varint that fits an int, e.g. a length or element count
+        public int readCount() throws IOException {
+            long value = readVarLong();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IOException("Bad count: " + value);
+            }
+            return (int) value;
+        }
+
+        //Element count; every element takes at least a byte, so a count past the end is corrupt
+        public int readSize() throws IOException {
+            int count = readCount();
+            require(count);
+            return count;
+        }
+
+        public String readString() throws IOException {
+            int length = readCount();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            require(length);
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        public boolean hasRemaining() {
+            return position < limit;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+//chatID -> log offsets of that chat's MESSAGE| lines in the chat log, in file order, plus the
+//offsets of every SESSION| line. Built at startup and extended by Logger as batches are
+//written, so loading a chat's history or the session list reads only those lines instead of
+//the whole file. Each sealed segment's part is saved beside it (SegmentedLog.indexFile) when it
+//is sealed, so startup reads those small files and scans only the active segment.
+//Each entry also keeps a hash of its message ID so a history cursor can be found in memory.
+//Not thread safe; Logger only touches it under its file lock.
+public class ChatLogIndex {
+
+    private static final byte[] MESSAGE_PREFIX = "MESSAGE|".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SESSION_PREFIX = "SESSION|".getBytes(StandardCharsets.US_ASCII);
+    private static final int SCAN_CHUNK = 1 << 20;
+    private static final int MAGIC = 0x43495831; //"CIX1"
+
+    private final Map<String, Offsets> chats;
+    private final Offsets sessions;
+    private long messageCount;
+
+    public ChatLogIndex() {
+        this.chats = new HashMap<>();
+        this.sessions = new Offsets();
+    }
+
+    public void add(String chatID, long offset, int idHash) {
+        chats.computeIfAbsent(chatID, id -> new Offsets()).add(offset, idHash);
+        messageCount++;
+    }
+
+    public void addSession(long offset) {
+        sessions.add(offset, 0);
+    }
+
+    //Offsets of every SESSION| line, oldest first
+    public long[] sessionOffsets() {
+        return Arrays.copyOf(sessions.values, sessions.size);
+    }
+
+    public int sessionCount() {
+        return sessions.size;
+    }
+
+    //Number of MESSAGE| lines logged for the chat
+    public int size(String chatID) {
+        Offsets offsets = chats.get(chatID);
+        return offsets == null ? 0 : offsets.size;
+    }
+
+    //Offsets of the chat's messages at positions [from, to), oldest first
+    public long[] offsets(String chatID, int from, int to) {
+        Offsets offsets = chats.get(chatID);
+        if (offsets == null || from >= to) {
+            return new long[0];
+        }
+        return Arrays.copyOfRange(offsets.values, from, to);
+    }
+
+    //Offsets of every MESSAGE| line for the chat, oldest first
+    public long[] offsets(String chatID) {
+        return offsets(chatID, 0, size(chatID));
+    }
+
+    //Position of the newest message before position `before` whose ID hashes to idHash, or -1.
+    //Hashes can collide, so the caller checks the record and searches again from there if needed
+    public int findBefore(String chatID, int idHash, int before) {
+        Offsets offsets = chats.get(chatID);
+        if (offsets == null) {
+            return -1;
+        }
+        for (int i = Math.min(before, offsets.size) - 1; i >= 0; i--) {
+            if (offsets.idHashes[i] == idHash) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static int idHash(String messageID) {
+        byte[] bytes = String.valueOf(messageID).getBytes(StandardCharsets.UTF_8);
+        return idHash(bytes, 0, bytes.length);
+    }
+
+    private static int idHash(byte[] bytes, int from, int to) {
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+
+    public int chatCount() {
+        return chats.size();
+    }
+
+    public long messageCount() {
+        return messageCount;
+    }
+
+    //The index of the whole log: sealed segments from their saved indexes, the active one by
+    //scanning it. A sealed segment with no usable saved index is scanned too, and its index
+    //saved so the next start doesn't repeat that. An empty log is an empty index
+    public static ChatLogIndex scan(SegmentedLog log) throws IOException {
+        ChatLogIndex index = new ChatLogIndex();
+        int scanned = 0;
+        for (LogSegment segment : log.segments()) {
+            if (!segment.isSealed()) {
+                index.scan(log.newInputStream(segment.getBase(), segment.end()), segment.getBase());
+                continue;
+            }
+            ChatLogIndex part = loadSegment(log.indexFile(segment), segment);
+            if (part == null) {
+                part = new ChatLogIndex();
+                part.scan(log.newInputStream(segment.getBase(), segment.end()), segment.getBase());
+                scanned++;
+                try {
+                    saveSegment(part, log, segment);
+                } catch (IOException e) {
+                    System.err.println("ERROR saving chat index for log segment " + segment.getFile().getFileName() + ": " + e.getMessage());
+                }
+            }
+            index.addAll(part);
+        }
+        if (scanned > 0) {
+            System.out.println("Scanned " + scanned + " sealed log segments with no saved chat index");
+        }
+        return index;
+    }
+
+    //One sequential pass over the log bytes in, which start at log offset start
+    private void scan(InputStream log, long start) throws IOException {
+        try (InputStream in = log) {
+            byte[] chunk = new byte[SCAN_CHUNK];
+            int length = 0;
+            long chunkOffset = start;
+            int scanned = 0;
+            int read;
+            while ((read = in.read(chunk, length, chunk.length - length)) > 0) {
+                length += read;
+                int lineStart = 0;
+                for (int i = scanned; i < length; i++) {
+                    if (chunk[i] == '\n') {
+                        addLine(chunk, lineStart, i, chunkOffset + lineStart);
+                        lineStart = i + 1;
+                    }
+                }
+                //carry the unfinished last line over to the next chunk
+                length -= lineStart;
+                System.arraycopy(chunk, lineStart, chunk, 0, length);
+                chunkOffset += lineStart;
+                scanned = length;
+                if (length == chunk.length) {
+                    chunk = Arrays.copyOf(chunk, chunk.length * 2);
+                }
+            }
+            if (length > 0) {
+                addLine(chunk, 0, length, chunkOffset);
+            }
+        }
+    }
+
+    //Append every entry of a later part of the log
+    private void addAll(ChatLogIndex later) {
+        for (Map.Entry<String, Offsets> entry : later.chats.entrySet()) {
+            Offsets from = entry.getValue();
+            Offsets to = chats.computeIfAbsent(entry.getKey(), id -> new Offsets());
+            for (int i = 0; i < from.size; i++) {
+                to.add(from.values[i], from.idHashes[i]);
+            }
+        }
+        for (int i = 0; i < later.sessions.size; i++) {
+            sessions.add(later.sessions.values[i], 0);
+        }
+        messageCount += later.messageCount;
+    }
+
+    //Save the entries of index that fall in a sealed segment: its base and length, then each
+    //chat's offsets and ID hashes, then the session offsets. Written to a temporary file and
+    //moved into place, so a crash leaves either no file or a whole one
+    public static void saveSegment(ChatLogIndex index, SegmentedLog log, LogSegment segment) throws IOException {
+        Path file = log.indexFile(segment);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long from = segment.getBase();
+        long to = segment.end();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(from);
+            out.writeLong(segment.getLength());
+            int chatCount = 0;
+            for (Offsets offsets : index.chats.values()) {
+                if (offsets.start(to) > offsets.start(from)) {
+                    chatCount++;
+                }
+            }
+            out.writeInt(chatCount);
+            for (Map.Entry<String, Offsets> entry : index.chats.entrySet()) {
+                Offsets offsets = entry.getValue();
+                int start = offsets.start(from);
+                int end = offsets.start(to);
+                if (end > start) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(end - start);
+                    for (int i = start; i < end; i++) {
+                        out.writeLong(offsets.values[i]);
+                        out.writeInt(offsets.idHashes[i]);
+                    }
+                }
+            }
+            int start = index.sessions.start(from);
+            int end = index.sessions.start(to);
+            out.writeInt(end - start);
+            for (int i = start; i < end; i++) {
+                out.writeLong(index.sessions.values[i]);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //A sealed segment's saved entries, or null if there is no saved index or it doesn't match the segment
+    private static ChatLogIndex loadSegment(Path file, LogSegment segment) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readLong() != segment.getBase() || in.readLong() != segment.getLength()) {
+                return null;
+            }
+            ChatLogIndex part = new ChatLogIndex();
+            int chatCount = in.readInt();
+            for (int c = 0; c < chatCount; c++) {
+                String chatID = in.readUTF();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    part.add(chatID, in.readLong(), in.readInt());
+                }
+            }
+            int sessionCount = in.readInt();
+            for (int i = 0; i < sessionCount; i++) {
+                part.addSession(in.readLong());
+            }
+            return part;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("Rebuilding unreadable chat index " + file.getFileName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    //MESSAGE|messageID|chatID|... or SESSION|...
+    private void addLine(byte[] line, int start, int end, long offset) {
+        if (startsWith(line, start, end, SESSION_PREFIX)) {
+            addSession(offset);
+            return;
+        }
+        if (!startsWith(line, start, end, MESSAGE_PREFIX)) {
+            return;
+        }
+        int idStart = start + MESSAGE_PREFIX.length;
+        int chatStart = indexOf(line, idStart, end) + 1;
+        if (chatStart == 0) {
+            return;
+        }
+        int chatEnd = indexOf(line, chatStart, end);
+        if (chatEnd < 0) {
+            return;
+        }
+        add(new String(line, chatStart, chatEnd - chatStart, StandardCharsets.UTF_8), offset, idHash(line, idStart, chatStart - 1));
+    }
+
+    private static boolean startsWith(byte[] line, int start, int end, byte[] prefix) {
+        return end - start >= prefix.length && Arrays.equals(line, start, start + prefix.length, prefix, 0, prefix.length);
+    }
+
+    private static int indexOf(byte[] line, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (line[i] == '|') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //Growable parallel arrays; a boxed List<Long> costs ~4x the memory on a large log
+    private static class Offsets {
+        private long[] values = new long[4];
+        private int[] idHashes = new int[4];
+        private int size;
+
+        void add(long offset, int idHash) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                idHashes = Arrays.copyOf(idHashes, size * 2);
+            }
+            values[size] = offset;
+            idHashes[size] = idHash;
+            size++;
+        }
+
+        //Position of the first offset at or after this one
+        int start(long offset) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] < offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
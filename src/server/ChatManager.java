@@ -2,48 +2,107 @@ package server;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
+import common.ChatSession;
 import common.Message;
 import common.User;
 
 public class ChatManager {
 
+    //Told whenever someone becomes or stops being a member of a chat, so delivery targets
+    //can be kept up to date instead of worked out per message
+    public interface MembershipListener {
+        //users who just joined the chat, all at once for a new session
+        void onMembersAdded(String chatID, List<User> users);
+        void onMemberRemoved(String chatID, User user);
+    }
+
     //all chat sessions that are currently active in memory
     private final Map<String, ChatSession> activeChatSessions;
 
     //maps chatID -> users who currently have that chat window open
     private final Map<String, Set<User>> activeViewers;
 
+    //maps userID -> chatIDs of every session they are in, in the order the sessions were created
+    private final Map<String, Set<String>> userChats;
+
+    //maps the pair key of two userIDs -> chatID of their private chat
+    private final Map<String, String> privateSessions;
+    private volatile boolean sessionsLoaded;
+    private final List<MembershipListener> membershipListeners;
+
     private final Logger logger;
 
+    //size of each session's in-memory ring of recent messages
+    private final int recentMessages;
+
+    //Striped per-chat locks: everything that changes one chat (its messages, log order, participants)
+    //runs under that chat's stripe, so a chat stays totally ordered while different chats proceed in
+    //parallel. ReentrantLocks so the log append done while holding one doesn't pin a virtual thread's carrier
+    private static final int LOCK_STRIPES = 64;
+    private final ReentrantLock[] chatLocks;
+
+    //guards the one-time load of logged sessions
+    private final ReentrantLock loadLock;
+
 
     public ChatManager(Logger logger) {
+        this(logger, Integer.getInteger("chat.recentMessages", ChatSession.DEFAULT_RECENT_MESSAGES));
+    }
+
+    public ChatManager(Logger logger, int recentMessages) {
         this.activeChatSessions = new ConcurrentHashMap<>();
         this.activeViewers = new ConcurrentHashMap<>();
+        this.userChats = new ConcurrentHashMap<>();
+        this.privateSessions = new ConcurrentHashMap<>();
+        this.membershipListeners = new CopyOnWriteArrayList<>();
         this.logger = logger;
+        this.recentMessages = recentMessages;
+        this.chatLocks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            chatLocks[i] = new ReentrantLock();
+        }
+        this.loadLock = new ReentrantLock();
+    }
+
+    private ReentrantLock lockFor(String chatID) {
+        int hash = chatID.hashCode();
+        return chatLocks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
     }
 
 
 
     //creates a new chat session
-    public synchronized ChatSession createSession(List<User> participants, boolean isGroup, String chatName) {
+    public ChatSession createSession(List<User> participants, boolean isGroup, String chatName) {
         if (participants == null || participants.isEmpty()) {
             throw new IllegalArgumentException("Participants list cannot be empty");
         }
 
-        ChatSession session = new ChatSession(participants, isGroup, chatName);
-        activeChatSessions.put(session.getChatID(), session);
+        ChatSession session = new ChatSession(participants, isGroup, chatName, recentMessages);
+        //held so the SESSION| record is logged before any message for the chat
+        ReentrantLock lock = lockFor(session.getChatID());
+        lock.lock();
+        try {
+            activeChatSessions.put(session.getChatID(), session);
 
-        //initializes active viewers list. starts empty
-        activeViewers.put(session.getChatID(), ConcurrentHashMap.newKeySet());
+            //initializes active viewers list. starts empty
+            activeViewers.put(session.getChatID(), ConcurrentHashMap.newKeySet());
+            indexSession(session);
 
-        logger.logSession(session);
+            logger.logSession(session);
 
-        return session;
+            return session;
+        } finally {
+            lock.unlock();
+        }
     }
 
 
@@ -82,23 +141,11 @@ public class ChatManager {
 
     //Server or ClientHandler calls this when a user sends a message
     //it (1) stores msg in ChatSession; (2) calls logger to log msg; (3) determines targets for ClientHandler to send msg to
-    public synchronized List<User> receiveMessage(Message msg) {
-
-        if (msg == null) {
-			return Collections.emptyList();
-		}
-
-        ChatSession session = activeChatSessions.get(msg.getChatID());
-        if (session == null) {
-            System.err.println("ChatManager: No session found for chatID=" + msg.getChatID());
+    public List<User> receiveMessage(Message msg) {
+        if (!storeMessage(msg)) {
             return Collections.emptyList();
         }
-
-        //store the message
-        session.addMessage(msg);
-
-        //log to file
-        logger.logMessage(msg);
+        ChatSession session = activeChatSessions.get(msg.getChatID());
 
         //For group chats, send to all online participants
         //For private chats, send to the other participant if they're viewing
@@ -149,105 +196,279 @@ public class ChatManager {
 
 
 
+    //Steps (1) and (2) of receiveMessage without working out viewer targets; the server delivers
+    //through ConnectionManager's per-chat targets instead. False if the chat doesn't exist
+    public boolean storeMessage(Message msg) {
+        if (msg == null || msg.getChatID() == null) {
+			return false;
+		}
+
+        //the ring and the log see a chat's messages in the same order
+        ReentrantLock lock = lockFor(msg.getChatID());
+        lock.lock();
+        try {
+            ChatSession session = activeChatSessions.get(msg.getChatID());
+            if (session == null) {
+                System.err.println("ChatManager: No session found for chatID=" + msg.getChatID());
+                return false;
+            }
+
+            //store the message
+            session.addMessage(msg);
+
+            //log to file
+            logger.logMessage(msg);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     //optional method... just another way of calling recieve message
-    public synchronized void sendMessage(String chatID, Message msg) {
+    public void sendMessage(String chatID, Message msg) {
         receiveMessage(msg);
     }
 
 
 
 
-    //loads message history for a single chatSession from LogFile
-    //this gets called when user opens chat window for first time
+    //loads the full message history for a single chatSession from LogFile
+    //the session itself only caches the recent messages, so nothing is copied into it
     public List<Message> loadHistory(String chatID) {
-    	List<Message> history = logger.getMessagesForChat(chatID);
-    	ChatSession session = getChatSession(chatID);
-    	session.getMessages().addAll(history);
-        return history;
+        return logger.getMessagesForChat(chatID);
+    }
+
+    //one page of history for a chat, oldest first: the `limit` messages before beforeMessageID,
+    //or the newest ones when it is null. Served from the session's recent messages when they
+    //cover the page, otherwise only that page is read from the log
+    public List<Message> loadHistoryPage(String chatID, String beforeMessageID, int limit) {
+        if (chatID == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+        ChatSession session = getChatSession(chatID);
+        if (session != null) {
+            List<Message> cached = session.getRecentPage(beforeMessageID, limit);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        if (session == null || beforeMessageID != null) {
+            return logger.getMessagePage(chatID, beforeMessageID, limit);
+        }
+        //first load of a session restored from the log: warm its ring with the newest messages
+        int warm = Math.max(limit, session.getRecentCapacity());
+        List<Message> newest = logger.getMessagePage(chatID, null, warm);
+        session.seedRecentMessages(newest, newest.size() < warm);
+        return new ArrayList<>(newest.subList(Math.max(0, newest.size() - limit), newest.size()));
     }
 
 
     //loads all the chatSessions a single user is a part of
-    //this is used when loading the client's list of chats
+    //this is used when loading the client's list of chats; it only touches that user's chats
     public List<ChatSession> loadUserSessions(User user) {
     	if (user == null) {
 			return Collections.emptyList();
 		}
+        loadSessions();
 
         List<ChatSession> userSessions = new ArrayList<>();
-
-        //get sessions already in memory
-        for (ChatSession session : activeChatSessions.values()) {
-            for (User u : session.getParticipants()) {
-                if (u.getUserID().equals(user.getUserID())) {
+        Set<String> chatIDs = userChats.get(user.getUserID());
+        if (chatIDs == null) {
+            return userSessions;
+        }
+        synchronized (chatIDs) {
+            for (String chatID : chatIDs) {
+                ChatSession session = activeChatSessions.get(chatID);
+                if (session != null) {
                     userSessions.add(session);
-                    break;
                 }
             }
         }
+        return userSessions;
+    }
 
-        //load sessions from log file that aren't in memory yet
-        List<String> sessionLines = logger.filterSessionsByUser(user.getUserID());
-        for (String line : sessionLines) {
-            String[] parts = line.split("\\|");
-            if (parts.length < 4) {
-				continue;
-			}
-
-            String chatID = parts[0];
-            if (activeChatSessions.containsKey(chatID)) {
-				continue;
-			}
-
-            //load participants
-            List<User> participants = new ArrayList<>();
-            String[] uids = parts[3].split(",");
-            for (String uid : uids) {
-                User u = logger.loadUserByID(uid);
-                if (u != null) {
-					participants.add(u);
-				}
+    //Bring every session in the log into memory and index it by participant, once.
+    //The server calls this at startup; otherwise the first login does
+    public void loadSessions() {
+        if (sessionsLoaded) {
+            return;
+        }
+        loadLock.lock();
+        try {
+            if (sessionsLoaded) {
+                return;
+            }
+            for (String line : logger.readAllSessions()) {
+                ChatSession session = parseSession(line);
+                //sessions created since startup are already in memory
+                if (session != null && activeChatSessions.putIfAbsent(session.getChatID(), session) == null) {
+                    activeViewers.putIfAbsent(session.getChatID(), ConcurrentHashMap.newKeySet());
+                    indexSession(session);
+                }
             }
+            sessionsLoaded = true;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    //chatID|timestamp|isGroup|participant1,participant2,...|chatName
+    private ChatSession parseSession(String line) {
+        String[] parts = line.split("\\|");
+        if (parts.length < 4) {
+            return null;
+        }
 
-            //create session and add to memory & result
-            if (participants.size() >= 2) {
-                //create session preserving the chatID from file
-            	boolean isGroup = Boolean.parseBoolean(parts[2]);
-            	String chatName = parts.length > 4 ? parts[4] : "";
-            	ChatSession session = new ChatSession(chatID, participants, isGroup, chatName);
-                activeChatSessions.put(chatID, session);
-                activeViewers.putIfAbsent(chatID, ConcurrentHashMap.newKeySet());
-                userSessions.add(session);
+        //load participants
+        List<User> participants = new ArrayList<>();
+        for (String uid : parts[3].split(",")) {
+            User u = logger.loadUserByID(uid);
+            if (u != null) {
+                participants.add(u);
+            }
+        }
+        if (participants.size() < 2) {
+            return null;
+        }
+        //create session preserving the chatID from file
+        boolean isGroup = Boolean.parseBoolean(parts[2]);
+        String chatName = parts.length > 4 ? parts[4] : "";
+        return new ChatSession(parts[0], participants, isGroup, chatName, recentMessages);
+    }
+
+    //Add the session to its participants' chat lists and, if it is a private chat, to the pair lookup.
+    //The first session for a pair keeps the key, as the old scan returned the first match
+    private void indexSession(ChatSession session) {
+        List<User> joined = new ArrayList<>();
+        for (User participant : session.getParticipants()) {
+            Set<String> chatIDs = userChats.computeIfAbsent(participant.getUserID(),
+                    id -> Collections.synchronizedSet(new LinkedHashSet<>()));
+            if (chatIDs.add(session.getChatID())) {
+                joined.add(participant);
+            }
+        }
+        String key = privateKey(session);
+        if (key != null) {
+            privateSessions.putIfAbsent(key, session.getChatID());
+        }
+        if (!joined.isEmpty()) {
+            for (MembershipListener listener : membershipListeners) {
+                listener.onMembersAdded(session.getChatID(), joined);
             }
         }
-        return userSessions;
     }
 
+    public void addMembershipListener(MembershipListener listener) {
+        membershipListeners.add(listener);
+    }
 
-    //Find existing private session between two users
+    //IDs of every chat the user is in, from the membership index
+    public List<String> getChatIDsFor(User user) {
+        Set<String> chatIDs = user == null ? null : userChats.get(user.getUserID());
+        if (chatIDs == null) {
+            return new ArrayList<>();
+        }
+        synchronized (chatIDs) {
+            return new ArrayList<>(chatIDs);
+        }
+    }
+
+    //IDs of everyone who shares at least one chat with the user, from the membership index
+    public Set<String> getContactIDs(String userID) {
+        Set<String> contacts = new HashSet<>();
+        Set<String> chatIDs = userID == null ? null : userChats.get(userID);
+        if (chatIDs == null) {
+            return contacts;
+        }
+        List<String> ids;
+        synchronized (chatIDs) {
+            ids = new ArrayList<>(chatIDs);
+        }
+        for (String chatID : ids) {
+            ChatSession session = activeChatSessions.get(chatID);
+            if (session != null) {
+                for (User participant : session.getParticipants()) {
+                    contacts.add(participant.getUserID());
+                }
+            }
+        }
+        contacts.remove(userID);
+        return contacts;
+    }
+
+    //Find existing private session between two users, by their pair key rather than a scan of every chat
     public ChatSession findExistingPrivateSession(List<User> participants) {
         if (participants == null || participants.size() != 2) {
             return null;
         }
+        loadSessions();
 
-        String user1ID = participants.get(0).getUserID();
-        String user2ID = participants.get(1).getUserID();
+        String chatID = privateSessions.get(pairKey(participants.get(0).getUserID(), participants.get(1).getUserID()));
+        ChatSession session = chatID == null ? null : activeChatSessions.get(chatID);
+        //the map is kept current by addParticipant/removeParticipant; this guards against a session changed behind its back
+        if (session == null || session.isGroup() || session.getParticipants().size() != 2) {
+            return null;
+        }
+        return session;
+    }
 
-        //Check active sessions
-        for (ChatSession session : activeChatSessions.values()) {
-            if (!session.isGroup() && session.getParticipants().size() == 2) {
-                List<User> sessParticipants = session.getParticipants();
-                String sessUser1 = sessParticipants.get(0).getUserID();
-                String sessUser2 = sessParticipants.get(1).getUserID();
+    //Add someone to a chat and keep the membership and private-pair lookups in step
+    public boolean addParticipant(String chatID, User user) {
+        return changeParticipants(chatID, user, true);
+    }
 
-                if ((sessUser1.equals(user1ID) && sessUser2.equals(user2ID)) ||
-                    (sessUser1.equals(user2ID) && sessUser2.equals(user1ID))) {
-                    return session;
+    public boolean removeParticipant(String chatID, User user) {
+        return changeParticipants(chatID, user, false);
+    }
+
+    private boolean changeParticipants(String chatID, User user, boolean add) {
+        if (chatID == null || user == null) {
+            return false;
+        }
+        ReentrantLock lock = lockFor(chatID);
+        lock.lock();
+        try {
+            ChatSession session = activeChatSessions.get(chatID);
+            if (session == null) {
+                return false;
+            }
+            String before = privateKey(session);
+            if (add) {
+                session.addParticipant(user);
+            } else {
+                session.removeParticipant(user);
+                Set<String> chatIDs = userChats.get(user.getUserID());
+                if (chatIDs != null) {
+                    chatIDs.remove(chatID);
                 }
+                for (MembershipListener listener : membershipListeners) {
+                    listener.onMemberRemoved(chatID, user);
+                }
+            }
+            String after = privateKey(session);
+            if (before != null && !before.equals(after)) {
+                privateSessions.remove(before, chatID);
             }
+            indexSession(session);
+            return true;
+        } finally {
+            lock.unlock();
         }
+    }
+
+    //Order-independent key for a private chat; user IDs can't contain ',' (see CredentialStore)
+    private static String pairKey(String user1ID, String user2ID) {
+        return user1ID.compareTo(user2ID) <= 0 ? user1ID + "," + user2ID : user2ID + "," + user1ID;
+    }
 
-        return null;
+    //Pair key if the session is a private chat between two users, otherwise null
+    private static String privateKey(ChatSession session) {
+        List<User> participants = session.getParticipants();
+        if (session.isGroup() || participants.size() != 2) {
+            return null;
+        }
+        return pairKey(participants.get(0).getUserID(), participants.get(1).getUserID());
     }
 
     //Getters
@@ -0,0 +1,34 @@
+package server;
+
+import java.io.IOException;
+
+import common.FrameCodec;
+
+//A connected client as seen by the command handlers, independent of the transport
+//(blocking socket or NIO selector) that carries its frames
+public interface ClientChannel {
+
+    //Send objects as consecutive frames; frames from one call are never interleaved with another call
+    default void send(Object... objects) throws IOException {
+        sendFrames(FrameCodec.encodeFrames(objects));
+    }
+
+    //Same as send() for frames already built with FrameCodec.encode. Frames are only read,
+    //so one encoded frame can be handed to any number of channels
+    void sendFrames(byte[]... frames) throws IOException;
+
+    //Frames and bytes accepted by sendFrames() but not yet written to the socket
+    int pendingFrames();
+
+    long pendingBytes();
+
+    boolean isOpen();
+
+    //Close after any frames already handed to send() have been written
+    void close();
+
+    //Drop unwritten frames and close now; finalFrame is written only if that can't block
+    void abort(byte[] finalFrame);
+
+    String getRemoteAddress();
+}
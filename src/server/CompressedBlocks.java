@@ -0,0 +1,200 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//A sealed log segment stored compressed: its data cut into BLOCK_SIZE blocks, each deflated on
+//its own, so a read inflates only the blocks it touches. The file is the blocks, then where each
+//one starts (blockCount + 1 longs), then the segment's footer line as plain text, then a trailer:
+//indexStart, dataLength, blockSize, blockCount, footerLength, MAGIC.
+//The last few blocks inflated are kept, as readers mostly walk forward through nearby lines.
+public class CompressedBlocks {
+
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAGIC = 0x4C4F475A; //"LOGZ"
+    private static final int TRAILER_SIZE = 8 + 8 + 4 + 4 + 4 + 4;
+    private static final int CACHED_BLOCKS = 4;
+
+    private final long[] starts;
+    private final long dataLength;
+    private final int blockSize;
+    private final String footer;
+    private final Map<Integer, byte[]> cache;
+    private long blocksInflated;
+
+    private CompressedBlocks(long[] starts, long dataLength, int blockSize, String footer) {
+        this.starts = starts;
+        this.dataLength = dataLength;
+        this.blockSize = blockSize;
+        this.footer = footer;
+        this.cache = new LinkedHashMap<Integer, byte[]>(CACHED_BLOCKS * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > CACHED_BLOCKS;
+            }
+        };
+    }
+
+    //Compress length bytes of segment data into target, ending with the footer line, and fsync it
+    static long write(InputStream data, long length, String footer, Path target) throws IOException {
+        int blockCount = (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        long[] starts = new long[blockCount + 1];
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] compressed = new byte[BLOCK_SIZE + BLOCK_SIZE / 2];
+        Deflater deflater = new Deflater();
+        //DataOutputStream.size() is an int and stops counting at 2 GB
+        long written = 0;
+        try (FileOutputStream file = new FileOutputStream(target.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            for (int i = 0; i < blockCount; i++) {
+                int size = (int) Math.min(BLOCK_SIZE, length - (long) i * BLOCK_SIZE);
+                int read = data.readNBytes(block, 0, size);
+                if (read < size) {
+                    throw new IOException("Log segment ended " + (size - read) + " bytes early");
+                }
+                deflater.reset();
+                deflater.setInput(block, 0, size);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(compressed);
+                    out.write(compressed, 0, n);
+                    written += n;
+                }
+                starts[i + 1] = written;
+            }
+            long indexStart = written;
+            for (long start : starts) {
+                out.writeLong(start);
+            }
+            byte[] footerBytes = footer.getBytes(StandardCharsets.UTF_8);
+            out.write(footerBytes);
+            out.writeLong(indexStart);
+            out.writeLong(length);
+            out.writeInt(BLOCK_SIZE);
+            out.writeInt(blockCount);
+            out.writeInt(footerBytes.length);
+            out.writeInt(MAGIC);
+            out.flush();
+            file.getFD().sync();
+            return file.getChannel().size();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    //The block index and footer line from the end of a compressed segment
+    static CompressedBlocks read(FileChannel in, Path file) throws IOException {
+        long size = in.size();
+        if (size < TRAILER_SIZE) {
+            throw new IOException("Not a compressed log segment: " + file);
+        }
+        ByteBuffer trailer = readFully(in, size - TRAILER_SIZE, TRAILER_SIZE);
+        long indexStart = trailer.getLong();
+        long dataLength = trailer.getLong();
+        int blockSize = trailer.getInt();
+        int blockCount = trailer.getInt();
+        int footerLength = trailer.getInt();
+        if (trailer.getInt() != MAGIC || blockSize < 1 || blockCount < 0 || footerLength < 0
+                || indexStart + (blockCount + 1L) * 8 + footerLength + TRAILER_SIZE != size) {
+            throw new IOException("Not a compressed log segment: " + file);
+        }
+        ByteBuffer index = readFully(in, indexStart, (blockCount + 1) * 8 + footerLength);
+        long[] starts = new long[blockCount + 1];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = index.getLong();
+        }
+        String footer = new String(index.array(), index.position(), footerLength, StandardCharsets.UTF_8);
+        return new CompressedBlocks(starts, dataLength, blockSize, footer.trim());
+    }
+
+    //Copy data from offset rel within the segment into dst, from the one block holding it
+    int read(FileChannel in, ByteBuffer dst, long rel) throws IOException {
+        if (rel >= dataLength) {
+            return -1;
+        }
+        int blockNumber = (int) (rel / blockSize);
+        byte[] block = block(in, blockNumber);
+        int from = (int) (rel - (long) blockNumber * blockSize);
+        int count = Math.min(dst.remaining(), block.length - from);
+        dst.put(block, from, count);
+        return count;
+    }
+
+    private byte[] block(FileChannel in, int blockNumber) throws IOException {
+        synchronized (cache) {
+            byte[] cached = cache.get(blockNumber);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        long start = starts[blockNumber];
+        ByteBuffer compressed = readFully(in, start, (int) (starts[blockNumber + 1] - start));
+        byte[] block = new byte[(int) Math.min(blockSize, dataLength - (long) blockNumber * blockSize)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            int filled = 0;
+            while (filled < block.length && !inflater.finished()) {
+                int n = inflater.inflate(block, filled, block.length - filled);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                filled += n;
+            }
+            if (filled != block.length) {
+                throw new IOException("Compressed log block " + blockNumber + " is " + filled + " bytes, expected " + block.length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed log block " + blockNumber + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        synchronized (cache) {
+            cache.put(blockNumber, block);
+            blocksInflated++;
+        }
+        return block;
+    }
+
+    private static ByteBuffer readFully(FileChannel in, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Compressed log segment is truncated");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    String footer() {
+        return footer;
+    }
+
+    long dataLength() {
+        return dataLength;
+    }
+
+    public int blockCount() {
+        return starts.length - 1;
+    }
+
+    //How many blocks reads have had to inflate, cache misses only
+    public long blocksInflated() {
+        synchronized (cache) {
+            return blocksInflated;
+        }
+    }
+}
@@ -1,34 +1,48 @@
 package server;
 
-import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import common.FrameCodec;
 import common.OnlineStatus;
 import common.User;
 
-public class ConnectionManager {
+public class ConnectionManager implements ChatManager.MembershipListener {
     private final ExecutorService threadPool;
-    private final Map<String, Socket> clientSockets;
-    private final Map<String, ObjectInputStream> clientInput;
-    private final Map<String, ObjectOutputStream> clientOutput;
+    private final Map<String, OutboundQueue> clientQueues;
+    //chatID -> queues of that chat's online members, updated on login, logout and membership
+    //changes so a message fans out over a ready array instead of resolving each participant
+    private final Map<String, ChatTargets> chatTargets;
+    //user key -> chats whose targets hold that user's queue, for detaching on logout
+    private final Map<String, Set<String>> attachedChats;
     private final AtomicBoolean running;
+    private final OutboundLimits limits;
+    private final AtomicLong slowConsumersEvicted;
+    private final AtomicLong presenceUpdatesDropped;
 
     public ConnectionManager() {
-        this.threadPool = Executors.newCachedThreadPool();
-        this.clientSockets = new ConcurrentHashMap<>();
-        this.clientInput = new ConcurrentHashMap<>();
-        this.clientOutput = new ConcurrentHashMap<>();
+        this(OutboundLimits.DEFAULT);
+    }
+
+    public ConnectionManager(OutboundLimits limits) {
+        this.threadPool = Executors.newVirtualThreadPerTaskExecutor();
+        this.clientQueues = new ConcurrentHashMap<>();
+        this.chatTargets = new ConcurrentHashMap<>();
+        this.attachedChats = new ConcurrentHashMap<>();
         this.running = new AtomicBoolean(false);
+        this.limits = limits;
+        this.slowConsumersEvicted = new AtomicLong();
+        this.presenceUpdatesDropped = new AtomicLong();
     }
 
     public void startManager() {
@@ -45,17 +59,15 @@ public class ConnectionManager {
         threadPool.submit(() -> initializeClient(key, socket, user));
     }
 
-    //Register client with existing streams (to avoid creating duplicate streams)
-    public void registerClientStreams(User user, ObjectInputStream input, ObjectOutputStream output, Socket socket) {
+    //Register client with the channel its handler already reads from (blocking or NIO)
+    public void registerClientChannel(User user, ClientChannel channel) {
         ensureRunning();
-        if (user == null || socket == null || input == null || output == null) {
-            throw new IllegalArgumentException("User, socket, and streams must be provided");
+        if (user == null || channel == null) {
+            throw new IllegalArgumentException("User and channel must be provided");
         }
         String key = userKey(user);
         disconnectClient(user);
-        clientSockets.put(key, socket);
-        clientOutput.put(key, output);
-        clientInput.put(key, input);
+        clientQueues.put(key, new OutboundQueue(channel, limits, threadPool));
         user.setStatus(OnlineStatus.ONLINE);
     }
 
@@ -63,38 +75,179 @@ public class ConnectionManager {
         if (user == null) {
             return;
         }
+        //closing the queue flushes what is already queued, then closes the channel
         String key = userKey(user);
-        ObjectInputStream in = clientInput.remove(key);
-        ObjectOutputStream out = clientOutput.remove(key);
-        Socket socket = clientSockets.remove(key);
-        closeQuietly(in);
-        closeQuietly(out);
-        closeSocket(socket);
+        OutboundQueue queue = clientQueues.remove(key);
+        if (queue != null) {
+            queue.close();
+            Set<String> chats = attachedChats.remove(key);
+            if (chats != null) {
+                for (String chatID : chats) {
+                    ChatTargets targets = chatTargets.get(chatID);
+                    if (targets != null) {
+                        targets.remove(key, queue);
+                    }
+                }
+            }
+        }
         user.setStatus(OnlineStatus.OFFLINE);
     }
 
-    public OutputStream getOutputStream(User user) {
-        if (user == null) {
+    //Make a connected user a delivery target of their chats; called at login with their chat list
+    public void attachChats(User user, Collection<String> chatIDs) {
+        if (user == null || chatIDs == null) {
+            return;
+        }
+        String key = userKey(user);
+        OutboundQueue queue = clientQueues.get(key);
+        if (queue == null) {
+            return;
+        }
+        for (String chatID : chatIDs) {
+            attach(key, queue, chatID);
+        }
+    }
+
+    private void attach(String key, OutboundQueue queue, String chatID) {
+        chatTargets.computeIfAbsent(chatID, id -> new ChatTargets()).put(key, queue);
+        attachedChats.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(chatID);
+    }
+
+    //Members who are offline are attached when they log in
+    @Override
+    public void onMembersAdded(String chatID, List<User> users) {
+        if (chatID == null) {
+            return;
+        }
+        for (User user : users) {
+            String key = userKey(user);
+            OutboundQueue queue = clientQueues.get(key);
+            if (queue != null) {
+                attach(key, queue, chatID);
+            }
+        }
+    }
+
+    @Override
+    public void onMemberRemoved(String chatID, User user) {
+        if (chatID == null || user == null) {
+            return;
+        }
+        String key = userKey(user);
+        ChatTargets targets = chatTargets.get(chatID);
+        if (targets != null) {
+            targets.remove(key, null);
+        }
+        Set<String> chats = attachedChats.get(key);
+        if (chats != null) {
+            chats.remove(chatID);
+        }
+    }
+
+    //Queue pre-encoded frames for every online member of a chat except one (the sender).
+    //One pass over the chat's target array; returns how many members it was queued for
+    public int sendToChat(String chatID, String exceptUserID, byte[][] frames) {
+        ChatTargets targets = chatID == null ? null : chatTargets.get(chatID);
+        if (targets == null) {
+            return 0;
+        }
+        int delivered = 0;
+        for (Target target : targets.members) {
+            if (target.key.equals(exceptUserID)) {
+                continue;
+            }
+            OutboundQueue.Result result = target.queue.enqueueFrames(frames);
+            if (record(target.key, result)) {
+                delivered++;
+            } else if (result == OutboundQueue.Result.CLOSED) {
+                //left behind by a logout that raced with an attach
+                targets.remove(target.key, target.queue);
+            }
+        }
+        return delivered;
+    }
+
+    //Queue objects for delivery to a user without blocking on their socket
+    //Returns false if the user isn't connected or was just evicted as a slow consumer
+    public boolean send(User user, Object... objects) {
+        byte[][] frames = encode(user, objects);
+        return frames != null && deliver(user, false, frames);
+    }
+
+    //Presence updates are the first thing shed when a client falls behind
+    public boolean sendPresence(User user, Object... objects) {
+        byte[][] frames = encode(user, objects);
+        return frames != null && deliver(user, true, frames);
+    }
+
+    //Same as send() for frames encoded once with FrameCodec and fanned out to many users
+    public boolean sendFrames(User user, byte[]... frames) {
+        return deliver(user, false, frames);
+    }
+
+    public boolean sendPresenceFrames(User user, byte[]... frames) {
+        return deliver(user, true, frames);
+    }
+
+    private byte[][] encode(User user, Object[] objects) {
+        try {
+            return FrameCodec.encodeFrames(objects);
+        } catch (IOException e) {
+            System.err.println("Failed to encode frame for " + (user != null ? user.getUserID() : "unknown") + ": " + e.getMessage());
             return null;
         }
-        return clientOutput.get(userKey(user));
     }
 
-    public InputStream getInputStream(User user) {
+    private boolean deliver(User user, boolean droppable, byte[][] frames) {
         if (user == null) {
-            return null;
+            return false;
+        }
+        String key = userKey(user);
+        OutboundQueue queue = clientQueues.get(key);
+        if (queue == null) {
+            return false;
+        }
+        return record(key, droppable ? queue.enqueueDroppableFrames(frames) : queue.enqueueFrames(frames));
+    }
+
+    //Count shed and evicted outcomes; true if the frames were queued
+    private boolean record(String key, OutboundQueue.Result result) {
+        switch (result) {
+            case QUEUED:
+                return true;
+            case DROPPED:
+                presenceUpdatesDropped.incrementAndGet();
+                return false;
+            case EVICTED:
+                slowConsumersEvicted.incrementAndGet();
+                System.out.println("Evicted slow consumer: " + key);
+                return false;
+            default:
+                return false;
         }
-        return clientInput.get(userKey(user));
+    }
+
+    public long getSlowConsumersEvicted() {
+        return slowConsumersEvicted.get();
+    }
+
+    public long getPresenceUpdatesDropped() {
+        return presenceUpdatesDropped.get();
+    }
+
+    //Outbound bytes still held for a user's connection, 0 if they aren't connected
+    public long getBacklogBytes(User user) {
+        OutboundQueue queue = user == null ? null : clientQueues.get(userKey(user));
+        return queue == null ? 0 : queue.backlogBytes();
+    }
+
+    public boolean isConnected(User user) {
+        return user != null && clientQueues.containsKey(userKey(user));
     }
 
     private void initializeClient(String key, Socket socket, User user) {
         try {
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush();
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-            clientSockets.put(key, socket);
-            clientOutput.put(key, out);
-            clientInput.put(key, in);
+            clientQueues.put(key, new OutboundQueue(new SocketClientChannel(socket), limits, threadPool));
             user.setStatus(OnlineStatus.ONLINE);
         } catch (IOException e) {
             closeSocket(socket);
@@ -120,13 +273,51 @@ public class ConnectionManager {
         return username;
     }
 
-    private void closeQuietly(Closeable closeable) {
-        if (closeable == null) {
-            return;
+    //A chat's online members, replaced as a whole on every change. Changes are rare next to
+    //messages, so senders read the current array without locking or copying
+    private static final class ChatTargets {
+        private static final Target[] NONE = new Target[0];
+        private volatile Target[] members = NONE;
+
+        synchronized void put(String key, OutboundQueue queue) {
+            Target[] current = members;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].key.equals(key)) {
+                    if (current[i].queue != queue) {
+                        Target[] updated = current.clone();
+                        updated[i] = new Target(key, queue);
+                        members = updated;
+                    }
+                    return;
+                }
+            }
+            Target[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = new Target(key, queue);
+            members = updated;
         }
-        try {
-            closeable.close();
-        } catch (IOException ignored) {
+
+        //Drop the user's entry; if queue is given, only while it still points at that queue
+        synchronized void remove(String key, OutboundQueue queue) {
+            Target[] current = members;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].key.equals(key) && (queue == null || current[i].queue == queue)) {
+                    Target[] updated = new Target[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    members = updated;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class Target {
+        private final String key;
+        private final OutboundQueue queue;
+
+        Target(String key, OutboundQueue queue) {
+            this.key = key;
+            this.queue = queue;
         }
     }
 
@@ -0,0 +1,169 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.ChatSession;
+import common.User;
+
+//Presence scoped to contacts (-Dpresence.scope=contacts): a user only hears about people they
+//share a chat with, so a change costs one frame per online contact instead of one per online
+//user. Each recipient sees a different subset of the changes, so versions are kept per
+//recipient; the client's gap check works the same as with the global version.
+//Recipients' versions are assigned and their frames queued under one lock, so each client
+//receives them in order whether they come from a batch, a snapshot or a membership change.
+public class ContactPresence implements PresenceAggregator.BatchListener, ChatManager.MembershipListener {
+
+    private final ChatManager chats;
+    private final ConnectionManager connections;
+    //the server's userID -> User map of everyone logged in
+    private final Map<String, User> online;
+    private final ReentrantLock lock;
+    //userID -> last presence version sent to that user
+    private final Map<String, Long> versions;
+
+    public ContactPresence(ChatManager chats, ConnectionManager connections, Map<String, User> online) {
+        this.chats = chats;
+        this.connections = connections;
+        this.online = online;
+        this.lock = new ReentrantLock();
+        this.versions = new HashMap<>();
+    }
+
+    //Split the batch by recipient: each change goes to the changed user's online contacts only.
+    //Contacts are looked up once per changed user and before taking the lock, so a big batch
+    //doesn't hold up snapshots and membership changes while it walks the chats
+    @Override
+    public void onBatch(long version, List<Object> changes) {
+        Map<String, List<Object>> byRecipient = new LinkedHashMap<>();
+        Map<String, Set<String>> contactsByUser = new HashMap<>();
+        for (Object change : changes) {
+            String userID = change instanceof User ? ((User) change).getUserID() : (String) change;
+            Set<String> contacts = contactsByUser.computeIfAbsent(userID, chats::getContactIDs);
+            for (String contactID : contacts) {
+                if (online.containsKey(contactID)) {
+                    byRecipient.computeIfAbsent(contactID, id -> new ArrayList<>()).add(change);
+                }
+            }
+        }
+        lock.lock();
+        try {
+            for (Map.Entry<String, List<Object>> entry : byRecipient.entrySet()) {
+                send(entry.getKey(), entry.getValue());
+            }
+            for (Object change : changes) {
+                //Gone and not back yet: their next login starts over with a snapshot
+                if (change instanceof String && !online.containsKey(change)) {
+                    versions.remove(change);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Hand the reader the recipient's contacts out of the published online list, at the recipient's next version
+    public void snapshot(User recipient, List<User> published, PresenceAggregator.SnapshotReader reader) throws IOException {
+        lock.lock();
+        try {
+            Set<String> contacts = chats.getContactIDs(recipient.getUserID());
+            List<User> visible = new ArrayList<>();
+            for (User user : published) {
+                if (contacts.contains(user.getUserID())) {
+                    visible.add(user);
+                }
+            }
+            reader.read(nextVersion(recipient.getUserID()), visible);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //New members and the chat's online members become visible to each other straight away: one
+    //delta per online member, listing the online newcomers (or, for a newcomer, everyone else online).
+    //Re-announcing someone a client already lists is harmless; it replaces the entry
+    @Override
+    public void onMembersAdded(String chatID, List<User> users) {
+        ChatSession session = chats.getChatSession(chatID);
+        if (session == null) {
+            return;
+        }
+        Set<String> joined = new HashSet<>();
+        for (User user : users) {
+            joined.add(user.getUserID());
+        }
+        lock.lock();
+        try {
+            List<User> members = new ArrayList<>();
+            for (User participant : session.getParticipants()) {
+                User member = online.get(participant.getUserID());
+                if (member != null) {
+                    members.add(member);
+                }
+            }
+            for (User recipient : members) {
+                boolean newcomer = joined.contains(recipient.getUserID());
+                List<Object> visible = new ArrayList<>();
+                for (User member : members) {
+                    if (member != recipient && (newcomer || joined.contains(member.getUserID()))) {
+                        visible.add(member);
+                    }
+                }
+                if (!visible.isEmpty()) {
+                    send(recipient.getUserID(), visible);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Someone who no longer shares any chat with a remaining member drops off each other's lists
+    @Override
+    public void onMemberRemoved(String chatID, User user) {
+        ChatSession session = chats.getChatSession(chatID);
+        if (session == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            Set<String> stillShared = chats.getContactIDs(user.getUserID());
+            boolean removedOnline = online.containsKey(user.getUserID());
+            List<Object> gone = new ArrayList<>();
+            for (User participant : session.getParticipants()) {
+                String otherID = participant.getUserID();
+                if (stillShared.contains(otherID) || otherID.equals(user.getUserID())) {
+                    continue;
+                }
+                if (removedOnline && online.containsKey(otherID)) {
+                    send(otherID, List.of(user.getUserID()));
+                    gone.add(otherID);
+                }
+            }
+            if (!gone.isEmpty()) {
+                send(user.getUserID(), gone);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void send(String userID, List<Object> changes) {
+        User recipient = online.get(userID);
+        if (recipient != null) {
+            //Shed first if this client is falling behind; the version gap makes it resync
+            connections.sendPresence(recipient, "PRESENCE_DELTA:" + nextVersion(userID), changes);
+        }
+    }
+
+    private long nextVersion(String userID) {
+        return versions.merge(userID, 1L, Long::sum);
+    }
+}
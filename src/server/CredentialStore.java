@@ -0,0 +1,159 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import common.User;
+import common.UserRole;
+
+//The credentials file held in memory as a username -> credential index, so a login is a hash
+//lookup instead of a scan of the file. The index is immutable and replaced as a whole when
+//the file is reloaded, so readers never see a half-loaded file and never take a lock.
+//Expected file format: username,password,role
+public class CredentialStore {
+
+    private final Path file;
+    private volatile Map<String, Credential> credentials;
+    private WatchService watcher;
+
+    public CredentialStore(String credentialFile) {
+        this.file = Paths.get(credentialFile).toAbsolutePath();
+        reload();
+    }
+
+    //Credential for the username, or null if it isn't registered
+    public Credential lookup(String username) {
+        return username == null ? null : credentials.get(username);
+    }
+
+    //Every registered credential, in file order
+    public List<Credential> all() {
+        return new ArrayList<>(credentials.values());
+    }
+
+    public int size() {
+        return credentials.size();
+    }
+
+    //Re-read the file and swap in the new index; a missing file means nobody can log in
+    public void reload() {
+        Map<String, Credential> loaded = new LinkedHashMap<>();
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] parts = line.split(",");
+                if (line.trim().isEmpty() || parts.length < 3) {
+                    continue;
+                }
+                String username = parts[0].trim();
+                try {
+                    UserRole role = UserRole.valueOf(parts[2].trim().toUpperCase());
+                    loaded.putIfAbsent(username, new Credential(username, parts[1].trim(), role));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("ERROR: Invalid role in credentials file for " + username + ": " + parts[2].trim());
+                }
+            }
+        } catch (NoSuchFileException e) {
+            System.err.println("ERROR: Credentials file not found at: " + file);
+        } catch (IOException e) {
+            //keep serving the previous index rather than locking everyone out
+            System.err.println("ERROR reading credentials file: " + e.getMessage());
+            if (credentials != null) {
+                return;
+            }
+        }
+        credentials = Collections.unmodifiableMap(loaded);
+    }
+
+    //Reload whenever the file is written, replaced or removed. Runs on a daemon thread until close()
+    public synchronized void watch() throws IOException {
+        if (watcher != null) {
+            return;
+        }
+        watcher = FileSystems.getDefault().newWatchService();
+        file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        WatchService service = watcher;
+        Thread thread = new Thread(() -> watchLoop(service), "credentials-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ignored) {
+            }
+            watcher = null;
+        }
+    }
+
+    private void watchLoop(WatchService service) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    //OVERFLOW has no context; reload in case it hid our file
+                    Object changedName = event.context();
+                    if (changedName == null || file.getFileName().equals(changedName)) {
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    reload();
+                    System.out.println("Reloaded " + credentials.size() + " credentials from " + file);
+                }
+                if (!key.reset()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //closed
+        }
+    }
+
+    public static final class Credential {
+        private final String username;
+        private final String password;
+        private final UserRole role;
+
+        Credential(String username, String password, UserRole role) {
+            this.username = username;
+            this.password = password;
+            this.role = role;
+        }
+
+        public boolean matches(String password) {
+            return this.password.equals(password);
+        }
+
+        //A fresh User each time; callers change its status
+        public User toUser() {
+            return new User(username, password, role);
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public UserRole getRole() {
+            return role;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import common.Message;
+
+//Parses MESSAGE| lines straight from the log's bytes: the '|'s are found by scanning, fields
+//are decoded one at a time and the chatID is compared as bytes first, so a line for another
+//chat costs no garbage at all. Timestamps in the form LocalDateTime.toString() writes are read
+//digit by digit; anything else goes through LocalDateTime.parse.
+public final class LogLineParser {
+
+    private static final byte[] MESSAGE_PREFIX = "MESSAGE|".getBytes(StandardCharsets.US_ASCII);
+
+    private LogLineParser() {
+    }
+
+    //MESSAGE|messageID|chatID|senderID|timestamp|content in bytes [start, end), or null if it
+    //isn't one or (when chatID is given, as UTF-8 bytes) it belongs to a different chat
+    public static Message parseMessage(byte[] line, int start, int end, byte[] chatID) {
+        if (end - start < MESSAGE_PREFIX.length
+                || !Arrays.equals(line, start, start + MESSAGE_PREFIX.length, MESSAGE_PREFIX, 0, MESSAGE_PREFIX.length)) {
+            return null;
+        }
+        int idStart = start + MESSAGE_PREFIX.length;
+        int idEnd = next(line, idStart, end);
+        int chatEnd = next(line, idEnd + 1, end);
+        int senderEnd = next(line, chatEnd + 1, end);
+        int timeEnd = next(line, senderEnd + 1, end);
+        if (idEnd < 0 || chatEnd < 0 || senderEnd < 0 || timeEnd < 0) {
+            return null;
+        }
+        if (chatID != null && !Arrays.equals(line, idEnd + 1, chatEnd, chatID, 0, chatID.length)) {
+            return null;
+        }
+        int contentEnd = next(line, timeEnd + 1, end);
+        if (contentEnd < 0) {
+            contentEnd = end;
+        }
+        return new Message(text(line, idStart, idEnd), text(line, idEnd + 1, chatEnd), text(line, chatEnd + 1, senderEnd),
+                parseTime(line, senderEnd + 1, timeEnd), text(line, timeEnd + 1, contentEnd).replace('/', '|'));
+    }
+
+    //yyyy-MM-ddTHH:mm, then optionally :ss and .fraction of up to 9 digits
+    static LocalDateTime parseTime(byte[] text, int start, int end) {
+        int length = end - start;
+        if (length >= 16 && text[start + 4] == '-' && text[start + 7] == '-' && text[start + 10] == 'T' && text[start + 13] == ':') {
+            int year = digits(text, start, 4);
+            int month = digits(text, start + 5, 2);
+            int day = digits(text, start + 8, 2);
+            int hour = digits(text, start + 11, 2);
+            int minute = digits(text, start + 14, 2);
+            int second = 0;
+            int nanos = 0;
+            boolean valid = year >= 0 && month >= 0 && day >= 0 && hour >= 0 && minute >= 0;
+            if (valid && length > 16) {
+                valid = length >= 19 && text[start + 16] == ':' && (second = digits(text, start + 17, 2)) >= 0;
+                if (valid && length > 19) {
+                    int fraction = length - 20;
+                    valid = text[start + 19] == '.' && fraction >= 1 && fraction <= 9 && (nanos = digits(text, start + 20, fraction)) >= 0;
+                    for (int i = fraction; i < 9; i++) {
+                        nanos *= 10;
+                    }
+                }
+            }
+            if (valid) {
+                try {
+                    return LocalDateTime.of(year, month, day, hour, minute, second, nanos);
+                } catch (DateTimeException e) {
+                    //out of range; let parse report it the way it always has
+                }
+            }
+        }
+        return LocalDateTime.parse(text(text, start, end));
+    }
+
+    //The value of count ASCII digits, or -1 if any of them isn't one
+    private static int digits(byte[] text, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            int digit = text[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int next(byte[] line, int from, int end) {
+        if (from <= 0) {
+            return -1;
+        }
+        for (int i = from; i < end; i++) {
+            if (line[i] == '|') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String text(byte[] line, int from, int to) {
+        return new String(line, from, to - from, StandardCharsets.UTF_8);
+    }
+}
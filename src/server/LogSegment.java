@@ -0,0 +1,315 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import common.LogFilter;
+
+//One file of the chat log, holding the lines at log offsets [base, base + length).
+//The active segment is the log file itself and grows. A sealed one has a footer line after its
+//data: SEGMENT|length|records|minTime|maxTime|chatID,chatID,... Offsets never count footers, so
+//a line keeps its offset when its segment is sealed, and readers use the footer to skip segments
+//that can't hold the chat or time range they want.
+//A sealed segment may later be replaced by a compressed copy (CompressedBlocks) with the same footer.
+public class LogSegment {
+
+    static final String FOOTER_PREFIX = "SEGMENT|";
+    private static final int FOOTER_READ = 64 * 1024;
+
+    private final long base;
+    private volatile Path file;
+    private volatile long length;
+    private volatile boolean sealed;
+    //what the segment holds; only the writer changes these, and only until the segment is sealed.
+    //The chat IDs are a set while the segment is active and a sorted array once it is sealed
+    private Set<String> chatIDs;
+    private String[] sealedChatIDs;
+    private int records;
+    private LocalDateTime minTime;
+    private LocalDateTime maxTime;
+    //opened on first read and kept; it follows the file through the rename when sealed
+    private FileChannel reader;
+    //block index of a compressed segment, null while the data is plain text
+    private CompressedBlocks blocks;
+    //plain sealed data mapped read-only, made on first mapped() call
+    private MappedByteBuffer mapped;
+    private int mappings;
+
+    LogSegment(Path file, long base, long length) {
+        this.file = file;
+        this.base = base;
+        this.length = length;
+        this.chatIDs = new HashSet<>();
+    }
+
+    //A sealed segment, described by the footer at the end of its file
+    static LogSegment readSealed(Path file, long base) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            int tail = (int) Math.min(size, FOOTER_READ);
+            while (true) {
+                ByteBuffer buffer = ByteBuffer.allocate(tail);
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer, size - tail + buffer.position()) < 0) {
+                        throw new IOException("Log segment " + file + " shrank while reading its footer");
+                    }
+                }
+                byte[] bytes = buffer.array();
+                //the footer is the last line; it starts after the '\n' before its own
+                int start = -1;
+                for (int i = tail - 2; i >= 0; i--) {
+                    if (bytes[i] == '\n') {
+                        start = i + 1;
+                        break;
+                    }
+                }
+                if (start < 0 && tail < size) {
+                    tail = (int) Math.min(size, (long) tail * 2);
+                    continue;
+                }
+                start = Math.max(start, 0);
+                String footer = new String(bytes, start, tail - start, StandardCharsets.UTF_8).trim();
+                LogSegment segment = parseFooter(file, base, footer);
+                if (segment == null || segment.length != size - tail + start) {
+                    throw new IOException("Bad footer in log segment " + file);
+                }
+                return segment;
+            }
+        }
+    }
+
+    //A compressed segment, described by the footer stored after its block index
+    static LogSegment readCompressed(Path file, long base) throws IOException {
+        FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            CompressedBlocks blocks = CompressedBlocks.read(in, file);
+            LogSegment segment = parseFooter(file, base, blocks.footer());
+            if (segment == null || segment.length != blocks.dataLength()) {
+                throw new IOException("Bad footer in compressed log segment " + file);
+            }
+            segment.blocks = blocks;
+            segment.reader = in;
+            return segment;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    //SEGMENT|length|records|minTime|maxTime|chatIDs, or null if that isn't what the line is
+    static LogSegment parseFooter(Path file, long base, String line) {
+        if (!line.startsWith(FOOTER_PREFIX)) {
+            return null;
+        }
+        String[] parts = line.split("\\|", 6);
+        if (parts.length < 6) {
+            return null;
+        }
+        try {
+            LogSegment segment = new LogSegment(file, base, Long.parseLong(parts[1]));
+            segment.records = Integer.parseInt(parts[2]);
+            segment.minTime = parts[3].isEmpty() ? null : LocalDateTime.parse(parts[3]);
+            segment.maxTime = parts[4].isEmpty() ? null : LocalDateTime.parse(parts[4]);
+            if (!parts[5].isEmpty()) {
+                segment.chatIDs.addAll(Arrays.asList(parts[5].split(",")));
+            }
+            segment.compactChatIDs();
+            segment.sealed = true;
+            return segment;
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    String footer() {
+        return FOOTER_PREFIX + length + "|" + records + "|"
+                + (minTime != null ? minTime.toString() : "") + "|"
+                + (maxTime != null ? maxTime.toString() : "") + "|"
+                + String.join(",", getChatIDs()) + "\n";
+    }
+
+    private void compactChatIDs() {
+        String[] sorted = chatIDs.toArray(new String[0]);
+        Arrays.sort(sorted);
+        sealedChatIDs = sorted;
+        chatIDs = null;
+    }
+
+    //Count one MESSAGE| or SESSION| record written to the active segment
+    void record(String chatID, LocalDateTime time) {
+        records++;
+        if (chatID != null) {
+            chatIDs.add(chatID);
+        }
+        if (time != null) {
+            if (minTime == null || time.isBefore(minTime)) {
+                minTime = time;
+            }
+            if (maxTime == null || time.isAfter(maxTime)) {
+                maxTime = time;
+            }
+        }
+    }
+
+    //Same, from a line already in the file: MESSAGE|messageID|chatID|senderID|timestamp|content
+    //or SESSION|chatID|timestamp|isGroup|participants|name
+    void recordLine(String line) {
+        String[] parts = line.split("\\|", 6);
+        try {
+            if (line.startsWith("MESSAGE|") && parts.length >= 5) {
+                record(parts[2], LocalDateTime.parse(parts[4]));
+            } else if (line.startsWith("SESSION|") && parts.length >= 3) {
+                record(parts[1], LocalDateTime.parse(parts[2]));
+            }
+        } catch (DateTimeParseException e) {
+            record(line.startsWith("MESSAGE|") ? parts[2] : parts[1], null);
+        }
+    }
+
+    void setLength(long length) {
+        this.length = length;
+    }
+
+    //Rename the file once its footer is written; readers that already opened it keep reading
+    synchronized void seal(Path sealedFile) throws IOException {
+        Files.move(file, sealedFile, StandardCopyOption.ATOMIC_MOVE);
+        file = sealedFile;
+        compactChatIDs();
+        sealed = true;
+    }
+
+    //False only if the segment is sealed and its footer rules out every line the filter could match
+    public boolean mayContain(LogFilter filter) {
+        if (!sealed || filter.isEmpty()) {
+            return true;
+        }
+        if (records == 0) {
+            return false;
+        }
+        if (filter.getChatID() != null && Arrays.binarySearch(sealedChatIDs, filter.getChatID()) < 0) {
+            return false;
+        }
+        if (minTime == null) {
+            return true;
+        }
+        return (filter.getFrom() == null || !maxTime.isBefore(filter.getFrom()))
+                && (filter.getTo() == null || minTime.isBefore(filter.getTo()));
+    }
+
+    //Read into dst from log offset position, stopping at the end of this segment's data; -1 there
+    int read(ByteBuffer dst, long position) throws IOException {
+        long remaining = end() - position;
+        if (remaining <= 0) {
+            return -1;
+        }
+        int limit = dst.limit();
+        if (dst.remaining() > remaining) {
+            dst.limit(dst.position() + (int) remaining);
+        }
+        try {
+            if (blocks != null) {
+                return blocks.read(channel(), dst, position - base);
+            }
+            return channel().read(dst, position - base);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    //A sealed segment's data mapped read-only, or null if it is still active, compressed or too
+    //big for one mapping. Sealed data never changes, so it is mapped once. The active segment
+    //grows with every batch and would need a new mapping each time, so it is read through the
+    //channel instead. Shared by every reader, so only use absolute gets on it
+    synchronized ByteBuffer mapped() throws IOException {
+        if (!sealed || blocks != null || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        if (mapped == null) {
+            mapped = channel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            mappings++;
+        }
+        return mapped;
+    }
+
+    //How many times the data has been mapped; at most once
+    public synchronized int getMappings() {
+        return mappings;
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (reader == null) {
+            reader = FileChannel.open(file, StandardOpenOption.READ);
+        }
+        return reader;
+    }
+
+    synchronized void close() throws IOException {
+        mapped = null;
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    public long getBase() {
+        return base;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long end() {
+        return base + length;
+    }
+
+    public boolean isSealed() {
+        return sealed;
+    }
+
+    public boolean isCompressed() {
+        return blocks != null;
+    }
+
+    //Null unless compressed
+    public CompressedBlocks getBlocks() {
+        return blocks;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getRecords() {
+        return records;
+    }
+
+    public LocalDateTime getMinTime() {
+        return minTime;
+    }
+
+    public LocalDateTime getMaxTime() {
+        return maxTime;
+    }
+
+    public Collection<String> getChatIDs() {
+        return sealedChatIDs != null ? Collections.unmodifiableList(Arrays.asList(sealedChatIDs)) : Collections.unmodifiableSet(chatIDs);
+    }
+}
@@ -1,32 +1,108 @@
 package server;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
+import common.ChatSession;
+import common.LogFilter;
 import common.Message;
 import common.User;
-import common.UserRole;
 
 public class Logger {
 
+    private static final long DEFAULT_FLUSH_MILLIS = 5;
+    private static final int DEFAULT_BATCH_RECORDS = 256;
+    private static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final int READ_WINDOW = 8 * 1024;
+    //most bytes one log page request scans, so a filter that rarely matches can't read a huge log in one go
+    private static final long LOG_PAGE_SCAN_BYTES = 4L * 1024 * 1024;
+
     private final String logFile;
     private final String credentialsFile;
+    //loaded on first lookup unless the server shares the one Authentication watches
+    private volatile CredentialStore credentials;
+
+    //Group commit: appends only add a line to the in-memory batch. The flusher thread writes
+    //the whole batch with one FileChannel write every flushMillis, or as soon as it holds
+    //batchRecords lines, and fsyncs it too when fsync is on.
+    private final long flushNanos;
+    private final int batchRecords;
+    private final boolean fsync;
+    //the log rolls over to a new segment file once the current one holds this many bytes,
+    //and sealed segments are compressed in the background unless -Dlog.compress=false.
+    //History reads go through memory-mapped segments unless -Dlog.mmap=false (off on Windows)
+    private final long segmentBytes;
+    private final boolean compress;
+    private final boolean mmap;
+
+    //guards the batch; held only long enough to copy a line in
+    private final ReentrantLock appendLock;
+    private final Condition batchReady;
+    private ByteArrayOutputStream batch;
+    private int batchCount;
+    //MESSAGE| and SESSION| lines in the batch, for the chat index
+    private List<IndexEntry> batchEntries;
+    private long appendedSeq;
+    private boolean closed;
+    private Thread flusher;
+
+    //guards the file: batch writes, fsyncs and readers. ReentrantLocks instead of monitors
+    //so virtual threads blocked on file I/O here don't pin their carrier thread
+    private final ReentrantLock fileLock;
+    private SegmentedLog log;
+    private volatile long durableSeq;
+    //built on first use (or by buildIndex() at startup), then kept current by every batch write
+    private ChatLogIndex index;
+    //full-text index fed the same way once attached; null if search is off
+    private SearchIndex search;
 
     public Logger(String logFile, String credentialsFile) {
+        this(logFile, credentialsFile,
+                Long.getLong("log.flushMillis", DEFAULT_FLUSH_MILLIS),
+                Integer.getInteger("log.batchRecords", DEFAULT_BATCH_RECORDS),
+                Boolean.getBoolean("log.fsync"),
+                Long.getLong("log.segmentBytes", DEFAULT_SEGMENT_BYTES));
+    }
+
+    public Logger(String logFile, String credentialsFile, long flushMillis, int batchRecords, boolean fsync) {
+        this(logFile, credentialsFile, flushMillis, batchRecords, fsync, Long.getLong("log.segmentBytes", DEFAULT_SEGMENT_BYTES));
+    }
+
+    public Logger(String logFile, String credentialsFile, long flushMillis, int batchRecords, boolean fsync, long segmentBytes) {
+        if (flushMillis < 1 || batchRecords < 1 || segmentBytes < 1) {
+            throw new IllegalArgumentException("Flush interval, batch size and segment size must be positive");
+        }
         this.logFile = logFile;
         this.credentialsFile = credentialsFile;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.batchRecords = batchRecords;
+        this.fsync = fsync;
+        this.segmentBytes = segmentBytes;
+        this.compress = Boolean.parseBoolean(System.getProperty("log.compress", "true"));
+        this.mmap = Boolean.parseBoolean(System.getProperty("log.mmap", String.valueOf(SegmentedLog.MAP_BY_DEFAULT)));
+        this.appendLock = new ReentrantLock();
+        this.batchReady = appendLock.newCondition();
+        this.batch = new ByteArrayOutputStream(8192);
+        this.batchEntries = new ArrayList<>();
+        this.fileLock = new ReentrantLock();
     }
 
     //log a message in logFile with MESSAGE| prefix
-    public synchronized void logMessage(Message message) {
+    //Returns the record's sequence number for awaitDurable()
+    public long logMessage(Message message) {
         String line = String.format("MESSAGE|%s|%s|%s|%s|%s",
                 message.getMessageID(),
                 message.getChatID(),
@@ -34,83 +110,390 @@ public class Logger {
                 message.getTimeStamp().toString(),
                 message.getContent().replace("|", "/")
         );
+        return append(line, new IndexEntry(String.valueOf(message.getChatID()), false,
+                ChatLogIndex.idHash(message.getMessageID()), message.getTimeStamp()));
+    }
+
+    private long append(String line, IndexEntry entry) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        appendLock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Logger is closed");
+            }
+            if (flusher == null) {
+                //started on first append so a Logger that is only read from costs no thread
+                flusher = Thread.ofPlatform().daemon().name("log-flusher").start(this::runFlusher);
+            }
+            entry.batchOffset = batch.size();
+            batchEntries.add(entry);
+            batch.write(bytes, 0, bytes.length);
+            batchCount++;
+            if (batchCount == 1 || batchCount >= batchRecords) {
+                batchReady.signal();
+            }
+            return ++appendedSeq;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    //Block until the record with this sequence number is written and fsynced, joining
+    //whatever batch is pending rather than syncing it alone. False if the write failed.
+    public boolean awaitDurable(long seq) {
+        if (seq <= durableSeq) {
+            return true;
+        }
+        fileLock.lock();
+        try {
+            if (seq > durableSeq) {
+                flushLocked(true);
+            }
+            return seq <= durableSeq;
+        } finally {
+            fileLock.unlock();
+        }
+    }
 
-        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(logFile, true)))) {
-            out.println(line);
+    //Write out the pending batch and fsync it, then stop the flusher
+    public void close() {
+        appendLock.lock();
+        try {
+            closed = true;
+            batchReady.signal();
+        } finally {
+            appendLock.unlock();
+        }
+        fileLock.lock();
+        try {
+            flushLocked(true);
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+            if (search != null) {
+                search.save();
+            }
         } catch (IOException e) {
-            System.err.println("ERROR writing to log: " + e.getMessage());
+            System.err.println("ERROR closing log: " + e.getMessage());
+        } finally {
+            fileLock.unlock();
         }
     }
 
+    private void runFlusher() {
+        try {
+            while (true) {
+                appendLock.lock();
+                try {
+                    while (batchCount == 0 && !closed) {
+                        batchReady.await();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    //let the batch fill for up to one interval
+                    long remaining = flushNanos;
+                    while (batchCount < batchRecords && !closed && remaining > 0) {
+                        remaining = batchReady.awaitNanos(remaining);
+                    }
+                } finally {
+                    appendLock.unlock();
+                }
+                fileLock.lock();
+                try {
+                    flushLocked(fsync);
+                } finally {
+                    fileLock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-    //read all messages for a chat (filter by MESSAGE| prefix)
-    public synchronized List<Message> getMessagesForChat(String chatID) {
-        List<Message> messages = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(logFile))) {
-            String line;
+    //Caller holds fileLock: one write for everything appended so far, then an optional fsync.
+    //A batch that can't be written goes back in front of the pending one, so durableSeq never
+    //passes a record that isn't in the file and awaitDurable() says false until it is
+    private void flushLocked(boolean sync) {
+        byte[] pending;
+        List<IndexEntry> entries;
+        long seq;
+        appendLock.lock();
+        try {
+            pending = batchCount == 0 ? null : batch.toByteArray();
+            entries = batchEntries;
+            seq = appendedSeq;
+            if (pending != null) {
+                batch.reset();
+                batchCount = 0;
+                batchEntries = new ArrayList<>();
+            }
+        } finally {
+            appendLock.unlock();
+        }
 
-            while ((line = br.readLine()) != null) {
-                if (!line.startsWith("MESSAGE|")) {
-					continue;
-				}
+        boolean written = false;
+        try {
+            if (pending != null) {
+                SegmentedLog out = log();
+                long base = out.append(pending);
+                written = true;
+                for (IndexEntry entry : entries) {
+                    out.record(entry.chatID, entry.time);
+                }
+                if (index != null) {
+                    for (IndexEntry entry : entries) {
+                        if (entry.session) {
+                            index.addSession(base + entry.batchOffset);
+                        } else {
+                            index.add(entry.chatID, base + entry.batchOffset, entry.idHash);
+                        }
+                    }
+                }
+                if (search != null) {
+                    for (IndexEntry entry : entries) {
+                        if (!entry.session) {
+                            search.addLine(lineAt(pending, entry.batchOffset), base + entry.batchOffset);
+                        }
+                    }
+                    search.advanceTo(base + pending.length);
+                }
+            }
+            if (sync && durableSeq < seq) {
+                if (log != null) {
+                    log.force();
+                }
+                durableSeq = seq;
+            }
+            if (pending != null && log.rollIfFull() && index != null) {
+                saveSegmentIndex();
+            }
+        } catch (IOException e) {
+            if (pending != null && !written) {
+                requeue(pending, entries);
+                System.err.println("ERROR writing to log, keeping " + entries.size() + " records to retry: " + e.getMessage());
+            } else {
+                System.err.println("ERROR writing to log: " + e.getMessage());
+            }
+        }
+    }
 
-                String[] parts = line.substring(8).split("\\|");
-                if ((parts.length < 5) || !parts[1].equals(chatID)) {
-					continue;
-				}
+    //Put a batch that failed to write back ahead of whatever was appended since
+    private void requeue(byte[] failed, List<IndexEntry> failedEntries) {
+        appendLock.lock();
+        try {
+            ByteArrayOutputStream merged = new ByteArrayOutputStream(failed.length + batch.size() + 8192);
+            merged.write(failed, 0, failed.length);
+            merged.write(batch.toByteArray(), 0, batch.size());
+            for (IndexEntry entry : batchEntries) {
+                entry.batchOffset += failed.length;
+            }
+            failedEntries.addAll(batchEntries);
+            batch = merged;
+            batchEntries = failedEntries;
+            batchCount = failedEntries.size();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    //Caller holds fileLock: save the chat index entries of the segment just sealed, so the next
+    //start reads them instead of scanning it. Without the file that start scans it once
+    private void saveSegmentIndex() {
+        List<LogSegment> segments = log.segments();
+        LogSegment sealed = segments.get(segments.size() - 2);
+        try {
+            ChatLogIndex.saveSegment(index, log, sealed);
+        } catch (IOException e) {
+            System.err.println("ERROR saving chat index for log segment " + sealed.getFile().getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    private static String lineAt(byte[] batch, int start) {
+        int end = start;
+        while (end < batch.length && batch[end] != '\n') {
+            end++;
+        }
+        return new String(batch, start, end - start, StandardCharsets.UTF_8);
+    }
 
-                String messageID = parts[0];
-                String msgchatID = parts[1];
-                String senderID = parts[2];
-                LocalDateTime timestamp = LocalDateTime.parse(parts[3]);
-                String content = parts[4].replace("/", "|");
+    //Caller holds fileLock. Opened on first use, not in the constructor, so the file can still be replaced before then
+    private SegmentedLog log() throws IOException {
+        if (log == null) {
+            log = SegmentedLog.open(Paths.get(logFile), segmentBytes, compress, mmap);
+        }
+        return log;
+    }
 
-                Message msg = new Message(messageID, msgchatID, senderID, timestamp, content);
-                messages.add(msg);
+    //Readers see every record appended before they were called
+    private void lockForRead() {
+        fileLock.lock();
+        flushLocked(false);
+    }
+
+    //Bring the search index up to date with the log, then keep it current with every batch write.
+    //A catch-up that indexed anything is saved straight away so the next start doesn't repeat it
+    public void attachSearchIndex(SearchIndex search) {
+        lockForRead();
+        try {
+            if (search.catchUp(log()) > 0) {
+                search.save();
             }
+            this.search = search;
+        } catch (IOException e) {
+            System.err.println("ERROR indexing log for search: " + e.getMessage());
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    //Messages matching the query, best first, from the chats given (null for every chat).
+    //The pending batch is written first so it is searchable; only the page's lines are read from the log
+    public SearchPage searchMessages(String query, Set<String> chatIDs, int from, int limit) {
+        lockForRead();
+        try {
+            if (search == null) {
+                return new SearchPage(0, new ArrayList<>());
+            }
+            SearchIndex.Results results = search.search(query, chatIDs, from, limit);
+            long[] offsets = new long[results.getHits().size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = results.getHits().get(i).getOffset();
+            }
+            return new SearchPage(results.getTotal(), readMessages(offsets, null));
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    //Scan the log once so the first history load doesn't pay for it
+    public void buildIndex() {
+        lockForRead();
+        try {
+            indexLocked();
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private ChatLogIndex indexLocked() {
+        if (index == null) {
+            try {
+                long start = System.nanoTime();
+                index = ChatLogIndex.scan(log());
+                System.out.println("Indexed " + index.messageCount() + " messages in " + index.chatCount() + " chats and "
+                        + index.sessionCount() + " sessions ("
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)");
+            } catch (IOException e) {
+                System.err.println("ERROR indexing log: " + e.getMessage());
+                return new ChatLogIndex();
+            }
+        }
+        return index;
+    }
+
+    //read all messages for a chat; the index says where its lines are, so only those are read
+    public List<Message> getMessagesForChat(String chatID) {
+        lockForRead();
+        try {
+            return readMessages(indexLocked().offsets(chatID), chatID);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    //One page of a chat's history, oldest first: the `limit` messages logged just before
+    //beforeMessageID, or the newest `limit` when it is null. Only that page is read from the
+    //log; an unknown cursor gives an empty page, as does paging past the first message.
+    public List<Message> getMessagePage(String chatID, String beforeMessageID, int limit) {
+        lockForRead();
+        try {
+            ChatLogIndex chats = indexLocked();
+            int end = chats.size(chatID);
+            if (beforeMessageID != null) {
+                int hash = ChatLogIndex.idHash(beforeMessageID);
+                int position = end;
+                while ((position = chats.findBefore(chatID, hash, position)) >= 0) {
+                    List<Message> candidate = readMessages(chats.offsets(chatID, position, position + 1), chatID);
+                    if (!candidate.isEmpty() && beforeMessageID.equals(candidate.get(0).getMessageID())) {
+                        break;
+                    }
+                }
+                if (position < 0) {
+                    return new ArrayList<>();
+                }
+                end = position;
+            }
+            return readMessages(chats.offsets(chatID, Math.max(0, end - limit), end), chatID);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    //Caller holds fileLock. Parsed from the log's bytes; with a chatID, lines for any other chat
+    //are dropped before anything is decoded
+    private List<Message> readMessages(long[] offsets, String chatID) {
+        List<Message> messages = new ArrayList<>(offsets.length);
+        byte[] chat = chatID != null ? chatID.getBytes(StandardCharsets.UTF_8) : null;
+        try {
+            log().readLines(offsets, (bytes, start, end) -> {
+                Message msg = LogLineParser.parseMessage(bytes, start, end, chat);
+                if (msg != null) {
+                    messages.add(msg);
+                }
+            });
         } catch (IOException e) {
             System.err.println("ERROR reading log: " + e.getMessage());
         }
         return messages;
     }
 
+    //Caller holds fileLock
+    private List<String> readLines(long[] offsets) {
+        List<String> lines = new ArrayList<>(offsets.length);
+        try {
+            log().readLines(offsets, (bytes, start, end) -> lines.add(new String(bytes, start, end - start, StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            System.err.println("ERROR reading log: " + e.getMessage());
+        }
+        return lines;
+    }
+
     //log a chat session in logFile with SESSION| prefix
-    public synchronized void logSession(ChatSession session) {
+    public long logSession(ChatSession session) {
         String participants = session.getParticipants().stream().map(User::getUserID).collect(Collectors.joining(","));
         String chatName = session.getChatName() != null ? session.getChatName() : "";
+        LocalDateTime now = LocalDateTime.now();
         String line = String.format("SESSION|%s|%s|%b|%s|%s",
                 session.getChatID(),
-                LocalDateTime.now().toString(),
+                now.toString(),
                 session.isGroup(),
                 participants,
                 chatName);
 
-        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(logFile, true)))) {
-            out.println(line);
-        } catch (IOException e) {
-            System.err.println("ERROR writing session log: " + e.getMessage());
-        }
+        return append(line, new IndexEntry(session.getChatID(), true, 0, now));
     }
 
-    //read all chat sessions from file (filter by SESSION| prefix)
-    public synchronized List<String> readAllSessions() {
+    //read all chat sessions from file, without the SESSION| prefix; only those lines are read
+    public List<String> readAllSessions() {
         List<String> lines = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(logFile))) {
-            String line;
-            while ((line = br.readLine()) != null) {
+        lockForRead();
+        try {
+            for (String line : readLines(indexLocked().sessionOffsets())) {
                 if (line.startsWith("SESSION|")) {
                     lines.add(line.substring(8));
                 }
             }
-        } catch (IOException e) {
-            System.err.println("ERROR reading sessions log: " + e.getMessage());
+        } finally {
+            fileLock.unlock();
         }
         return lines;
     }
 
 
     //get sessions containing a user
-    public synchronized List<String> filterSessionsByUser(String userID) {
+    public List<String> filterSessionsByUser(String userID) {
         return readAllSessions().stream().filter(line -> {
             String[] parts = line.split("\\|");
             if (parts.length < 4) {
@@ -126,33 +509,45 @@ public class Logger {
         }).collect(Collectors.toList());
     }
 
-    //load user by ID from credentials file
-    public synchronized User loadUserByID(String userID) {
-        try (BufferedReader br = new BufferedReader(new FileReader(credentialsFile))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length < 3) {
-					continue;
-				}
-                if (parts[0].equals(userID)) {
-                    String username = parts[0];
-                    String password = parts[1];
-                    UserRole role = UserRole.valueOf(parts[2].toUpperCase());
+    //load user by ID from the in-memory credential index
+    public User loadUserByID(String userID) {
+        CredentialStore.Credential credential = credentialStore().lookup(userID);
+        return credential == null ? null : credential.toUser();
+    }
 
-                    return new User(username, password, role);		//now updated to match new main User constructor (username, password, role)
+    public void setCredentialStore(CredentialStore credentials) {
+        this.credentials = credentials;
+    }
+
+    private CredentialStore credentialStore() {
+        CredentialStore store = credentials;
+        if (store == null) {
+            synchronized (this) {
+                if (credentials == null) {
+                    credentials = new CredentialStore(credentialsFile);
                 }
+                store = credentials;
             }
-        } catch (IOException e) {
-            System.err.println("ERROR loading user: " + e.getMessage());
         }
-        return null;
+        return store;
     }
 
-    //Read entire log file contents (for admin viewing)
-    public synchronized String readAllLogs() {
+    //Read the entire log, every segment. Only for small logs; the admin viewer pages with readLogPage
+    public String readAllLogs() {
         StringBuilder content = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(logFile))) {
+        SegmentedLog current;
+        long end;
+        lockForRead();
+        try {
+            current = log();
+            end = current.size();
+        } catch (IOException e) {
+            System.err.println("ERROR reading log file: " + e.getMessage());
+            return "Error reading log file: " + e.getMessage();
+        } finally {
+            fileLock.unlock();
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(current.newInputStream(0, end), StandardCharsets.UTF_8))) {
             String line;
             while ((line = br.readLine()) != null) {
                 content.append(line).append("\n");
@@ -163,4 +558,132 @@ public class Logger {
         }
         return content.toString();
     }
+
+    //Up to limit lines matching the filter, starting at byte offset (a line start, 0 for the top).
+    //Sealed segments whose footer rules out the filter's chat or time range are skipped unread.
+    //The page ends early after scanning LOG_PAGE_SCAN_BYTES; its nextOffset says where to continue,
+    //or is -1 once the end of the log is reached. Only the pending batch is flushed under the file
+    //lock: the log is append-only, so everything before the end seen then is read without holding it.
+    public LogPage readLogPage(long offset, int limit, LogFilter filter) {
+        SegmentedLog in;
+        long end;
+        lockForRead();
+        try {
+            in = log();
+            end = in.size();
+        } catch (IOException e) {
+            System.err.println("ERROR reading log: " + e.getMessage());
+            return new LogPage(offset, -1, new ArrayList<>());
+        } finally {
+            fileLock.unlock();
+        }
+
+        long start = Math.max(0, Math.min(offset, end));
+        long position = start;
+        long scanned = 0;
+        List<String> lines = new ArrayList<>();
+        if (position < end) {
+            try {
+                ByteBuffer window = ByteBuffer.allocate(READ_WINDOW);
+                while (position < end && lines.size() < limit && scanned < LOG_PAGE_SCAN_BYTES) {
+                    LogSegment segment = in.segmentAt(position);
+                    long segmentEnd = Math.min(end, segment.end());
+                    if (!segment.mayContain(filter)) {
+                        position = segmentEnd;
+                        continue;
+                    }
+                    in.fill(window, position);
+                    window.limit((int) Math.min(window.limit(), segmentEnd - position));
+                    int lineStart = 0;
+                    int lineEnd;
+                    while (lines.size() < limit && (lineEnd = SegmentedLog.lineEnd(window, lineStart)) >= 0) {
+                        addIfMatches(lines, window, lineStart, lineEnd, filter);
+                        lineStart = lineEnd + 1;
+                    }
+                    if (lineStart == 0 && lines.size() < limit) {
+                        if (window.limit() == window.capacity()) {
+                            //line longer than the window
+                            window = ByteBuffer.allocate(window.capacity() * 2);
+                            continue;
+                        }
+                        //last line without a trailing newline
+                        addIfMatches(lines, window, 0, window.limit(), filter);
+                        lineStart = window.limit();
+                    }
+                    position += lineStart;
+                    scanned += lineStart;
+                }
+            } catch (IOException e) {
+                System.err.println("ERROR reading log: " + e.getMessage());
+            }
+        }
+        return new LogPage(start, position < end ? position : -1, lines);
+    }
+
+    private static void addIfMatches(List<String> lines, ByteBuffer window, int from, int to, LogFilter filter) {
+        String line = new String(window.array(), from, to - from, StandardCharsets.UTF_8);
+        if (filter.matches(line)) {
+            lines.add(line);
+        }
+    }
+
+    //One page of search results, best first, and how many matched in all
+    public static final class SearchPage {
+        private final int total;
+        private final List<Message> messages;
+
+        SearchPage(int total, List<Message> messages) {
+            this.total = total;
+            this.messages = messages;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public List<Message> getMessages() {
+            return messages;
+        }
+    }
+
+    //One page of raw log lines and where the next one starts (-1 at the end of the log)
+    public static final class LogPage {
+        private final long offset;
+        private final long nextOffset;
+        private final List<String> lines;
+
+        LogPage(long offset, long nextOffset, List<String> lines) {
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+            this.lines = lines;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getNextOffset() {
+            return nextOffset;
+        }
+
+        public List<String> getLines() {
+            return lines;
+        }
+    }
+
+    //A batched line the indexes and the segment footer need to hear about once it has a log offset
+    private static final class IndexEntry {
+        private final String chatID;
+        private final boolean session;
+        private final int idHash;
+        private final LocalDateTime time;
+        private int batchOffset;
+
+        IndexEntry(String chatID, boolean session, int idHash, LocalDateTime time) {
+            this.chatID = chatID;
+            this.session = session;
+            this.idHash = idHash;
+            this.time = time;
+        }
+    }
 }
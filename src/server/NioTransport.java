@@ -0,0 +1,528 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import common.FrameCodec;
+
+//Non-blocking server transport: one acceptor plus a small, fixed pool of selector
+//event loops. Each loop only reads and decodes frames and writes queued ones; every
+//complete frame goes to the worker executor, which runs one connection's frames one
+//at a time and in order. Handlers can then read the log or check credentials without
+//stalling every other connection on the loop, and idle clients still cost a socket
+//and a buffer instead of a thread.
+public class NioTransport {
+
+    private static final int INITIAL_READ_BUFFER = 8 * 1024;
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final int MAX_GATHER = 64;
+    //a connection stops being read once this many of its frames wait for a worker,
+    //and is read again when half of them are done
+    private static final int MAX_QUEUED_FRAMES = 64;
+
+    //Callbacks for one connection; invoked on a worker thread, never the event loop,
+    //one at a time and in the order the frames arrived. onDisconnect comes last
+    public interface ConnectionHandler {
+        void onFrame(Object frame);
+        void onDisconnect();
+
+        //Largest frame the client may send next; asked on the event loop as each header arrives
+        default int maxFrameSize() {
+            return FrameCodec.MAX_FRAME_SIZE;
+        }
+    }
+
+    private final int port;
+    private final Function<ClientChannel, ConnectionHandler> handlerFactory;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final boolean ownWorkers;
+    private final AtomicInteger nextLoop;
+    private volatile boolean running;
+    private ServerSocketChannel serverChannel;
+
+    //Handlers run on virtual threads, which unmount while they wait on the log or the disk
+    public NioTransport(int port, int loopCount, Function<ClientChannel, ConnectionHandler> handlerFactory) {
+        this(port, loopCount, Executors.newVirtualThreadPerTaskExecutor(), true, handlerFactory);
+    }
+
+    public NioTransport(int port, int loopCount, ExecutorService workers, Function<ClientChannel, ConnectionHandler> handlerFactory) {
+        this(port, loopCount, workers, false, handlerFactory);
+    }
+
+    private NioTransport(int port, int loopCount, ExecutorService workers, boolean ownWorkers,
+            Function<ClientChannel, ConnectionHandler> handlerFactory) {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("At least one event loop is required");
+        }
+        this.port = port;
+        this.handlerFactory = handlerFactory;
+        this.loops = new EventLoop[loopCount];
+        this.workers = workers;
+        this.ownWorkers = ownWorkers;
+        this.nextLoop = new AtomicInteger();
+    }
+
+    //Binds, starts the event loops and accepts on the calling thread until shutdown()
+    public void serve() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        running = true;
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+        System.out.println("Server started on port: " + port + " (NIO, " + loops.length + " event loops)");
+        System.out.println("Waiting for clients...");
+
+        try {
+            while (running) {
+                SocketChannel client = serverChannel.accept();
+                try {
+                    client.configureBlocking(false);
+                    client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    System.out.println("New client connected: " + client.getRemoteAddress());
+                    loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(client);
+                } catch (IOException e) {
+                    System.err.println("Failed to accept client: " + e.getMessage());
+                    client.close();
+                }
+            }
+        } catch (ClosedChannelException e) {
+            //shutdown() closed the listening socket
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException ignored) {
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+        if (ownWorkers) {
+            workers.shutdown();
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+        private final AtomicBoolean wakeupPending;
+        private final Thread thread;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.wakeupPending = new AtomicBoolean(false);
+            this.thread = new Thread(this, "nio-loop-" + index);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void register(SocketChannel client) {
+            execute(() -> {
+                NioConnection connection = new NioConnection(this, client);
+                try {
+                    connection.key = client.register(selector, SelectionKey.OP_READ, connection);
+                    connection.handler = handlerFactory.apply(connection);
+                } catch (IOException e) {
+                    System.err.println("Failed to register client: " + e.getMessage());
+                    connection.closeNow();
+                }
+            });
+        }
+
+        //Run a task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    wakeupPending.set(false);
+                    runTasks();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.readFrames();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flushWrites();
+                        }
+                    }
+                    //Flushes and resumed reads queued while handling keys skipped the wakeup, so run them now
+                    runTasks();
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                } catch (RuntimeException | Error e) {
+                    //Last resort: the loop's other connections must keep being served
+                    System.err.println("Event loop error: " + e);
+                    e.printStackTrace();
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).closeNow();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Event loop task failed: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private final class NioConnection implements ClientChannel {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final String remoteAddress;
+        private final Queue<ByteBuffer> writeQueue;
+        private final AtomicBoolean flushScheduled;
+        private final ByteBuffer[] gather;
+        private final AtomicInteger pendingFrames;
+        private final AtomicLong pendingBytes;
+        //handler calls waiting for a worker, run one at a time by whichever worker holds draining
+        private final Queue<Runnable> inbox;
+        private final AtomicBoolean draining;
+        private final AtomicInteger queuedFrames;
+        private final AtomicBoolean readPaused;
+        private ByteBuffer readBuffer;
+        private SelectionKey key;
+        private ConnectionHandler handler;
+        private volatile boolean closing;
+        private volatile boolean closed;
+
+        NioConnection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+            this.writeQueue = new ConcurrentLinkedQueue<>();
+            this.flushScheduled = new AtomicBoolean(false);
+            this.gather = new ByteBuffer[MAX_GATHER];
+            this.pendingFrames = new AtomicInteger();
+            this.pendingBytes = new AtomicLong();
+            this.inbox = new ConcurrentLinkedQueue<>();
+            this.draining = new AtomicBoolean(false);
+            this.queuedFrames = new AtomicInteger();
+            this.readPaused = new AtomicBoolean(false);
+            this.readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        }
+
+        //Called by the loop when the socket is readable
+        void readFrames() {
+            try {
+                int read = channel.read(readBuffer);
+                if (read < 0) {
+                    closeNow();
+                    return;
+                }
+                decodeFrames();
+            } catch (IOException e) {
+                System.err.println("Dropping client " + remoteAddress + ": " + e.getMessage());
+                closeNow();
+            } catch (RuntimeException | StackOverflowError e) {
+                dropUndecodable(e);
+            }
+        }
+
+        //A frame the codec choked on costs only this connection, never the loop
+        private void dropUndecodable(Throwable e) {
+            System.err.println("Dropping client " + remoteAddress + " after a decoding failure: " + e);
+            closeNow();
+        }
+
+        //Loop thread only: dispatch every complete frame in the read buffer, or stop early
+        //if too many are already waiting for a worker. The buffer only grows once it is full
+        //of a frame's bytes, doubling up to that frame's size, and goes back to its initial
+        //size once a large frame has been consumed
+        private void decodeFrames() throws IOException {
+            readBuffer.flip();
+            int partialFrame = 0;
+            while (readBuffer.remaining() >= FrameCodec.HEADER_SIZE && !pauseReads()) {
+                int start = readBuffer.position();
+                int length = FrameCodec.checkLength(readBuffer.getInt(start), handler.maxFrameSize());
+                int frameSize = FrameCodec.HEADER_SIZE + length;
+                if (readBuffer.remaining() < frameSize) {
+                    partialFrame = frameSize;
+                    break;
+                }
+                Object frame = FrameCodec.decode(readBuffer.array(), start + FrameCodec.HEADER_SIZE, length);
+                readBuffer.position(start + frameSize);
+                dispatch(frame);
+            }
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining() && readBuffer.capacity() < partialFrame) {
+                resize((int) Math.min(partialFrame, 2L * readBuffer.capacity()));
+            } else if (readBuffer.capacity() > INITIAL_READ_BUFFER && partialFrame <= INITIAL_READ_BUFFER
+                    && readBuffer.position() <= INITIAL_READ_BUFFER) {
+                resize(INITIAL_READ_BUFFER);
+            }
+        }
+
+        private void resize(int capacity) {
+            ByteBuffer resized = ByteBuffer.allocate(capacity);
+            readBuffer.flip();
+            resized.put(readBuffer);
+            readBuffer = resized;
+        }
+
+        //Loop thread only. Checked again after pausing, as the worker may have caught up in between
+        private boolean pauseReads() {
+            if (queuedFrames.get() < MAX_QUEUED_FRAMES) {
+                return false;
+            }
+            readPaused.set(true);
+            if (queuedFrames.get() <= MAX_QUEUED_FRAMES / 2 && readPaused.compareAndSet(true, false)) {
+                return false;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            return true;
+        }
+
+        //Loop thread only: read again and dispatch the frames left in the buffer when reads paused
+        private void resumeReads() {
+            if (closed) {
+                return;
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            try {
+                decodeFrames();
+            } catch (IOException e) {
+                System.err.println("Dropping client " + remoteAddress + ": " + e.getMessage());
+                closeNow();
+            } catch (RuntimeException | StackOverflowError e) {
+                dropUndecodable(e);
+            }
+        }
+
+        private int readInterest() {
+            return readPaused.get() ? 0 : SelectionKey.OP_READ;
+        }
+
+        private void dispatch(Object frame) {
+            queuedFrames.incrementAndGet();
+            submit(() -> {
+                try {
+                    handler.onFrame(frame);
+                } catch (RuntimeException e) {
+                    System.err.println("Error handling frame from " + remoteAddress);
+                    e.printStackTrace();
+                } finally {
+                    if (queuedFrames.decrementAndGet() <= MAX_QUEUED_FRAMES / 2 && readPaused.compareAndSet(true, false)) {
+                        loop.execute(this::resumeReads);
+                    }
+                }
+            });
+        }
+
+        //Queue a handler call behind this connection's others; a worker is started only if
+        //none is already draining them, so calls never overlap
+        private void submit(Runnable task) {
+            inbox.add(task);
+            if (draining.compareAndSet(false, true)) {
+                try {
+                    workers.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    //shutting down; finish on this thread
+                    drain();
+                }
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable task;
+                while ((task = inbox.poll()) != null) {
+                    task.run();
+                }
+                draining.set(false);
+                //a task added after the last poll but before draining was cleared is ours to run
+                if (inbox.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void sendFrames(byte[]... frames) throws IOException {
+            if (closing || closed) {
+                throw new ClosedChannelException();
+            }
+            long bytes = 0;
+            synchronized (writeQueue) {
+                for (byte[] frame : frames) {
+                    writeQueue.add(ByteBuffer.wrap(frame));
+                    bytes += frame.length;
+                }
+            }
+            pendingFrames.addAndGet(frames.length);
+            pendingBytes.addAndGet(bytes);
+            scheduleFlush();
+        }
+
+        @Override
+        public int pendingFrames() {
+            return pendingFrames.get();
+        }
+
+        @Override
+        public long pendingBytes() {
+            return pendingBytes.get();
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flushWrites);
+            }
+        }
+
+        //Loop thread only: gather queued frames into as few writes as the socket accepts,
+        //then wait for OP_WRITE if it stops accepting
+        void flushWrites() {
+            flushScheduled.set(false);
+            if (closed) {
+                return;
+            }
+            try {
+                while (!writeQueue.isEmpty()) {
+                    int count = 0;
+                    for (ByteBuffer frame : writeQueue) {
+                        gather[count++] = frame;
+                        if (count == MAX_GATHER) {
+                            break;
+                        }
+                    }
+                    channel.write(gather, 0, count);
+
+                    int written = 0;
+                    while (written < count && !gather[written].hasRemaining()) {
+                        writeQueue.poll();
+                        pendingFrames.decrementAndGet();
+                        pendingBytes.addAndGet(-gather[written].limit());
+                        written++;
+                    }
+                    Arrays.fill(gather, 0, count, null);
+                    if (written < count) {
+                        key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(readInterest());
+                if (closing) {
+                    closeNow();
+                }
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closing && !closed;
+        }
+
+        @Override
+        public void close() {
+            if (closing || closed) {
+                return;
+            }
+            closing = true;
+            flushScheduled.set(true);
+            loop.execute(this::flushWrites);
+        }
+
+        @Override
+        public void abort(byte[] finalFrame) {
+            closing = true;
+            loop.execute(() -> {
+                if (closed) {
+                    return;
+                }
+                //the final frame only makes sense if no frame is half written
+                ByteBuffer head = writeQueue.peek();
+                if (finalFrame != null && (head == null || head.position() == 0)) {
+                    try {
+                        channel.write(ByteBuffer.wrap(finalFrame));
+                    } catch (IOException ignored) {
+                    }
+                }
+                closeNow();
+            });
+        }
+
+        //Loop thread only
+        void closeNow() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            writeQueue.clear();
+            pendingFrames.set(0);
+            pendingBytes.set(0);
+            if (handler != null) {
+                submit(handler::onDisconnect);
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+    }
+}
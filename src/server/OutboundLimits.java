@@ -0,0 +1,58 @@
+package server;
+
+//Per-connection backpressure watermarks, in queued frames and queued bytes. Both count
+//what is waiting in the OutboundQueue plus what the transport has accepted but not yet
+//written to the socket. Past the low watermark presence updates are shed; past the
+//high watermark the client is evicted as a slow consumer.
+public class OutboundLimits {
+
+    public static final OutboundLimits DEFAULT = new OutboundLimits(256, 1L << 20, 1024, 8L << 20);
+
+    private final int lowFrames;
+    private final long lowBytes;
+    private final int highFrames;
+    private final long highBytes;
+
+    public OutboundLimits(int lowFrames, long lowBytes, int highFrames, long highBytes) {
+        if (lowFrames < 1 || lowBytes < 1 || highFrames < lowFrames || highBytes < lowBytes) {
+            throw new IllegalArgumentException("Watermarks must be positive and low <= high");
+        }
+        this.lowFrames = lowFrames;
+        this.lowBytes = lowBytes;
+        this.highFrames = highFrames;
+        this.highBytes = highBytes;
+    }
+
+    //Server startup: -Doutbound.lowFrames, -Doutbound.lowBytes, -Doutbound.highFrames, -Doutbound.highBytes
+    public static OutboundLimits fromSystemProperties() {
+        return new OutboundLimits(
+                Integer.getInteger("outbound.lowFrames", DEFAULT.lowFrames),
+                Long.getLong("outbound.lowBytes", DEFAULT.lowBytes),
+                Integer.getInteger("outbound.highFrames", DEFAULT.highFrames),
+                Long.getLong("outbound.highBytes", DEFAULT.highBytes));
+    }
+
+    public boolean aboveLow(int frames, long bytes) {
+        return frames > lowFrames || bytes > lowBytes;
+    }
+
+    public boolean aboveHigh(int frames, long bytes) {
+        return frames > highFrames || bytes > highBytes;
+    }
+
+    public int getLowFrames() {
+        return lowFrames;
+    }
+
+    public long getLowBytes() {
+        return lowBytes;
+    }
+
+    public int getHighFrames() {
+        return highFrames;
+    }
+
+    public long getHighBytes() {
+        return highBytes;
+    }
+}
@@ -0,0 +1,198 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.DisconnectReason;
+import common.FrameCodec;
+
+//Outbound queue for one client connection. Senders only enqueue; a single drain task
+//at a time writes everything that is pending to the channel in one send, so concurrent
+//senders never interleave on the stream and a slow client only delays its own queue.
+//Objects are encoded on enqueue (or arrive pre-encoded) so the backlog can be measured
+//against OutboundLimits.
+public class OutboundQueue {
+
+    public enum Result {
+        QUEUED,
+        //droppable frames shed because the client is past the low watermark
+        DROPPED,
+        //client crossed the high watermark and was disconnected
+        EVICTED,
+        CLOSED
+    }
+
+    //most frames written to the channel in one coalesced send
+    private static final int MAX_BATCH = 256;
+
+    private final ClientChannel channel;
+    private final OutboundLimits limits;
+    private final Executor writer;
+    private final Queue<byte[][]> pending;
+    private final AtomicInteger queuedFrames;
+    private final AtomicLong queuedBytes;
+    private final AtomicBoolean draining;
+    private final AtomicBoolean closed;
+
+    public OutboundQueue(ClientChannel channel, OutboundLimits limits, Executor writer) {
+        this.channel = channel;
+        this.limits = limits;
+        this.writer = writer;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.queuedFrames = new AtomicInteger();
+        this.queuedBytes = new AtomicLong();
+        this.draining = new AtomicBoolean(false);
+        this.closed = new AtomicBoolean(false);
+    }
+
+    //Queue objects to be written back to back
+    public Result enqueue(Object... objects) throws IOException {
+        return offer(false, FrameCodec.encodeFrames(objects));
+    }
+
+    //Same as enqueue, but shed instead of queued once the client is past the low watermark
+    public Result enqueueDroppable(Object... objects) throws IOException {
+        return offer(true, FrameCodec.encodeFrames(objects));
+    }
+
+    //Queue frames already encoded with FrameCodec, e.g. one message encoded once for a whole group.
+    //The arrays are shared with other queues and must not be modified afterwards
+    public Result enqueueFrames(byte[]... frames) {
+        return offer(false, frames);
+    }
+
+    public Result enqueueDroppableFrames(byte[]... frames) {
+        return offer(true, frames);
+    }
+
+    private Result offer(boolean droppable, byte[][] frames) {
+        if (closed.get()) {
+            return Result.CLOSED;
+        }
+        long bytes = 0;
+        for (byte[] frame : frames) {
+            bytes += frame.length;
+        }
+
+        int backlogFrames = backlogFrames() + frames.length;
+        long backlogBytes = backlogBytes() + bytes;
+        if (limits.aboveHigh(backlogFrames, backlogBytes)) {
+            return evict() ? Result.EVICTED : Result.CLOSED;
+        }
+        if (droppable && limits.aboveLow(backlogFrames, backlogBytes)) {
+            return Result.DROPPED;
+        }
+
+        pending.add(frames);
+        queuedFrames.addAndGet(frames.length);
+        queuedBytes.addAndGet(bytes);
+        scheduleDrain();
+        return Result.QUEUED;
+    }
+
+    //Stop accepting objects; whatever is already queued is written before the channel closes
+    public void close() {
+        closed.set(true);
+        scheduleDrain();
+    }
+
+    public int queuedFrames() {
+        return queuedFrames.get();
+    }
+
+    public long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    //Everything this connection still holds for the client: queued here plus accepted by the
+    //transport but unwritten. Frames are encoded independently, so nothing else is retained
+    //per connection once they are written.
+    public int backlogFrames() {
+        return queuedFrames.get() + channel.pendingFrames();
+    }
+
+    public long backlogBytes() {
+        return queuedBytes.get() + channel.pendingBytes();
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    public ClientChannel getChannel() {
+        return channel;
+    }
+
+    //Drop the backlog and cut the client off with a SLOW_CONSUMER reason, once
+    private boolean evict() {
+        if (!closed.compareAndSet(false, true)) {
+            return false;
+        }
+        pending.clear();
+        queuedFrames.set(0);
+        queuedBytes.set(0);
+
+        byte[] reason = null;
+        try {
+            reason = FrameCodec.encode("DISCONNECT:" + DisconnectReason.SLOW_CONSUMER);
+        } catch (IOException ignored) {
+        }
+        channel.abort(reason);
+        return true;
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            writer.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        List<byte[]> batch = new ArrayList<>();
+        while (true) {
+            byte[][] next;
+            long bytes = 0;
+            while (batch.size() < MAX_BATCH && (next = pending.poll()) != null) {
+                for (byte[] frame : next) {
+                    batch.add(frame);
+                    bytes += frame.length;
+                }
+            }
+
+            if (batch.isEmpty()) {
+                draining.set(false);
+                //an enqueue may have raced with the release above; only one of us keeps draining
+                if (pending.isEmpty() || !draining.compareAndSet(false, true)) {
+                    if (closed.get() && pending.isEmpty()) {
+                        channel.close();
+                    }
+                    return;
+                }
+                continue;
+            }
+
+            try {
+                channel.sendFrames(batch.toArray(new byte[0][]));
+            } catch (IOException e) {
+                //Client went away; drop what's left, its handler cleans up the user
+                closed.set(true);
+                pending.clear();
+                queuedFrames.set(0);
+                queuedBytes.set(0);
+                channel.close();
+                batch.clear();
+                continue;
+            }
+            queuedFrames.addAndGet(-batch.size());
+            queuedBytes.addAndGet(-bytes);
+            batch.clear();
+        }
+    }
+}
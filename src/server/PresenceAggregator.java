@@ -0,0 +1,195 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.User;
+
+//Collects online/offline transitions for windowMillis and publishes them as one versioned batch,
+//so a reconnect storm costs each client one update per window instead of one per event. Only a
+//user's latest transition in the window counts: going offline and back online (or the reverse)
+//inside it publishes nothing. A window of 0 publishes every transition as it happens.
+//Batches and snapshots are handed out under one lock, so whatever the caller queues from them
+//reaches each client in version order.
+public class PresenceAggregator {
+
+    public static final long DEFAULT_WINDOW_MILLIS = 150;
+
+    //Receives each batch: a User for everyone who came online, a userID String for everyone who left
+    public interface BatchListener {
+        void onBatch(long version, List<Object> changes);
+    }
+
+    //Receives the published online list and the version it is current as of
+    public interface SnapshotReader {
+        void read(long version, List<User> online) throws IOException;
+    }
+
+    private final long windowMillis;
+    private final BatchListener listener;
+    private final ReentrantLock lock;
+    //what clients have been told, as of version
+    private final Map<String, User> published;
+    //latest transition per user this window; a null value means went offline
+    private final Map<String, User> pending;
+    private long version;
+    private boolean flushScheduled;
+    private ScheduledExecutorService timer;
+
+    private long eventsReceived;
+    private long eventsSent;
+    private long batchesSent;
+
+    public PresenceAggregator(BatchListener listener) {
+        this(Long.getLong("presence.windowMillis", DEFAULT_WINDOW_MILLIS), listener);
+    }
+
+    public PresenceAggregator(long windowMillis, BatchListener listener) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Presence window can't be negative");
+        }
+        this.windowMillis = windowMillis;
+        this.listener = listener;
+        this.lock = new ReentrantLock();
+        this.published = new LinkedHashMap<>();
+        this.pending = new LinkedHashMap<>();
+    }
+
+    public void online(User user) {
+        record(user.getUserID(), user);
+    }
+
+    public void offline(String userID) {
+        record(userID, null);
+    }
+
+    private void record(String userID, User user) {
+        lock.lock();
+        try {
+            pending.put(userID, user);
+            eventsReceived++;
+            if (windowMillis == 0) {
+                flush();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                if (timer == null) {
+                    //started on the first event so an idle aggregator costs no thread
+                    timer = Executors.newSingleThreadScheduledExecutor(
+                            Thread.ofPlatform().daemon().name("presence-flusher").factory());
+                }
+                timer.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Publish whatever the window collected; a no-op if nothing changed
+    public void flush() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            List<Object> changes = new ArrayList<>();
+            for (Map.Entry<String, User> entry : pending.entrySet()) {
+                String userID = entry.getKey();
+                User user = entry.getValue();
+                if (user != null && !published.containsKey(userID)) {
+                    published.put(userID, user);
+                    changes.add(user);
+                } else if (user == null && published.remove(userID) != null) {
+                    changes.add(userID);
+                } else if (user != null) {
+                    //back online within the window; keep the newest User object
+                    published.put(userID, user);
+                }
+            }
+            pending.clear();
+            if (changes.isEmpty()) {
+                return;
+            }
+            version++;
+            eventsSent += changes.size();
+            batchesSent++;
+            listener.onBatch(version, changes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void snapshot(SnapshotReader reader) throws IOException {
+        lock.lock();
+        try {
+            reader.read(version, new ArrayList<>(published.values()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            if (timer != null) {
+                timer.shutdownNow();
+                timer = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getVersion() {
+        lock.lock();
+        try {
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Transitions recorded, and how many of them reached clients; the rest were folded away
+    public long getEventsReceived() {
+        lock.lock();
+        try {
+            return eventsReceived;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEventsSent() {
+        lock.lock();
+        try {
+            return eventsSent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEventsCoalesced() {
+        lock.lock();
+        try {
+            return eventsReceived - eventsSent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBatchesSent() {
+        lock.lock();
+        try {
+            return batchesSent;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//Full-text index over message content: term -> the messages containing it, with how often.
+//Each indexed message (a doc) keeps its chatID, messageID and the offset of its MESSAGE| line,
+//so hits are read straight from the log. Logger feeds it every MESSAGE| line as its batch is
+//written; the index is saved next to the log together with the log offset it covers, and on
+//startup only the lines after that offset are indexed.
+//Searches and saves share a read lock, adds take the write lock.
+public class SearchIndex {
+
+    private static final int MAGIC = 0x53495831; //"SIX1"
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int SCAN_CHUNK = 1 << 20;
+
+    private final Path file;
+    private final ReentrantReadWriteLock lock;
+    private final Map<String, Postings> terms;
+    //chatIDs are shared by many docs; keep one copy of each
+    private final Map<String, String> chatIDs;
+    private String[] docChats;
+    private String[] docMessageIDs;
+    private long[] docOffsets;
+    private int docCount;
+    //everything in the log before this offset is indexed
+    private long indexedUpTo;
+
+    public SearchIndex(String indexFile) {
+        this.file = Paths.get(indexFile);
+        this.lock = new ReentrantReadWriteLock();
+        this.terms = new HashMap<>();
+        this.chatIDs = new HashMap<>();
+        this.docChats = new String[16];
+        this.docMessageIDs = new String[16];
+        this.docOffsets = new long[16];
+    }
+
+    //The saved index, or an empty one if there is none or it can't be read
+    public static SearchIndex open(String indexFile) {
+        SearchIndex index = new SearchIndex(indexFile);
+        try {
+            index.load();
+        } catch (NoSuchFileException e) {
+            //nothing saved yet
+        } catch (IOException e) {
+            System.err.println("ERROR loading search index, rebuilding it: " + e.getMessage());
+            index = new SearchIndex(indexFile);
+        }
+        return index;
+    }
+
+    //One hit: a message's line in the log and its score
+    public static final class Hit {
+        private final String chatID;
+        private final String messageID;
+        private final long offset;
+        private final double score;
+
+        Hit(String chatID, String messageID, long offset, double score) {
+            this.chatID = chatID;
+            this.messageID = messageID;
+            this.offset = offset;
+            this.score = score;
+        }
+
+        public String getChatID() {
+            return chatID;
+        }
+
+        public String getMessageID() {
+            return messageID;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+
+    //One page of hits and how many there are in all
+    public static final class Results {
+        private final int total;
+        private final List<Hit> hits;
+
+        Results(int total, List<Hit> hits) {
+            this.total = total;
+            this.hits = hits;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public List<Hit> getHits() {
+            return hits;
+        }
+    }
+
+    //Hits [from, from + limit) of the messages containing every term of the query, best first.
+    //Scored by tf-idf; ties go to the newer message. chats limits the hits to those chats, null for all
+    public Results search(String query, Set<String> chats, int from, int limit) {
+        List<String> queryTerms = new ArrayList<>(new LinkedHashSet<>(tokenize(query)));
+        List<Hit> hits = new ArrayList<>();
+        if (queryTerms.isEmpty()) {
+            return new Results(0, hits);
+        }
+        lock.readLock().lock();
+        try {
+            Postings[] lists = new Postings[queryTerms.size()];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = terms.get(queryTerms.get(i));
+                if (lists[i] == null) {
+                    return new Results(0, hits);
+                }
+            }
+            //walk the rarest term's docs and look each one up in the others
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+            List<double[]> matches = new ArrayList<>();
+            for (int i = 0; i < lists[0].size; i++) {
+                int doc = lists[0].docs[i];
+                if (chats != null && !chats.contains(docChats[doc])) {
+                    continue;
+                }
+                double score = weight(lists[0], i);
+                for (int t = 1; t < lists.length && score >= 0; t++) {
+                    int at = Arrays.binarySearch(lists[t].docs, 0, lists[t].size, doc);
+                    score = at < 0 ? -1 : score + weight(lists[t], at);
+                }
+                if (score >= 0) {
+                    matches.add(new double[] {score, doc});
+                }
+            }
+            matches.sort((a, b) -> a[0] != b[0] ? Double.compare(b[0], a[0]) : Double.compare(b[1], a[1]));
+            for (int i = Math.max(0, from); i < Math.min(matches.size(), from + limit); i++) {
+                int doc = (int) matches.get(i)[1];
+                hits.add(new Hit(docChats[doc], docMessageIDs[doc], docOffsets[doc], matches.get(i)[0]));
+            }
+            return new Results(matches.size(), hits);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private double weight(Postings postings, int at) {
+        return (1 + Math.log(postings.freqs[at])) * Math.log(1 + (double) docCount / postings.size);
+    }
+
+    //Index one MESSAGE|messageID|chatID|senderID|timestamp|content line found at offset; other lines are skipped
+    public void addLine(String line, long offset) {
+        if (!line.startsWith("MESSAGE|")) {
+            return;
+        }
+        String[] parts = line.split("\\|", 6);
+        if (parts.length < 6) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (offset < indexedUpTo) {
+                //already indexed before a restart
+                return;
+            }
+            addDoc(parts[2], parts[1], offset, parts[5]);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //Called once a batch is written: everything before end is in the index
+    public void advanceTo(long end) {
+        lock.writeLock().lock();
+        try {
+            indexedUpTo = Math.max(indexedUpTo, end);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //Index whatever the log holds past indexedUpTo, up to its current end. A log shorter than
+    //that offset was replaced, so the index starts over. Returns how many messages were indexed
+    public int catchUp(SegmentedLog log) throws IOException {
+        lock.writeLock().lock();
+        try {
+            long size = log.size();
+            if (size < indexedUpTo) {
+                clear();
+            }
+            long start = indexedUpTo;
+            int before = docCount;
+            if (size > start) {
+                scan(log.newInputStream(start, size), start);
+            }
+            indexedUpTo = size;
+            if (docCount > before || start == 0) {
+                System.out.println("Search index: " + docCount + " messages, " + terms.size() + " terms ("
+                        + (docCount - before) + " indexed from offset " + start + ")");
+            }
+            return docCount - before;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void scan(InputStream log, long start) throws IOException {
+        try (InputStream in = log) {
+            byte[] chunk = new byte[SCAN_CHUNK];
+            int length = 0;
+            long chunkOffset = start;
+            int read;
+            while ((read = in.read(chunk, length, chunk.length - length)) > 0) {
+                length += read;
+                int lineStart = 0;
+                for (int i = 0; i < length; i++) {
+                    if (chunk[i] == '\n') {
+                        indexLine(chunk, lineStart, i, chunkOffset + lineStart);
+                        lineStart = i + 1;
+                    }
+                }
+                //carry the unfinished last line over to the next chunk
+                length -= lineStart;
+                System.arraycopy(chunk, lineStart, chunk, 0, length);
+                chunkOffset += lineStart;
+                if (length == chunk.length) {
+                    chunk = Arrays.copyOf(chunk, chunk.length * 2);
+                }
+            }
+            if (length > 0) {
+                indexLine(chunk, 0, length, chunkOffset);
+            }
+        }
+    }
+
+    //Caller holds the write lock
+    private void indexLine(byte[] bytes, int start, int end, long offset) {
+        if (end - start < 8 || bytes[start] != 'M') {
+            return;
+        }
+        String[] parts = new String(bytes, start, end - start, StandardCharsets.UTF_8).split("\\|", 6);
+        if (parts.length == 6 && parts[0].equals("MESSAGE")) {
+            addDoc(parts[2], parts[1], offset, parts[5]);
+        }
+    }
+
+    //Caller holds the write lock
+    private void addDoc(String chatID, String messageID, long offset, String content) {
+        if (docCount == docOffsets.length) {
+            docChats = Arrays.copyOf(docChats, docCount * 2);
+            docMessageIDs = Arrays.copyOf(docMessageIDs, docCount * 2);
+            docOffsets = Arrays.copyOf(docOffsets, docCount * 2);
+        }
+        int doc = docCount++;
+        docChats[doc] = chatIDs.computeIfAbsent(chatID, id -> id);
+        docMessageIDs[doc] = messageID;
+        docOffsets[doc] = offset;
+        for (String term : tokenize(content)) {
+            terms.computeIfAbsent(term, t -> new Postings()).add(doc);
+        }
+    }
+
+    private void clear() {
+        terms.clear();
+        chatIDs.clear();
+        docCount = 0;
+        indexedUpTo = 0;
+    }
+
+    //Lower-cased runs of letters and digits, so "Meeting," and "meeting" are one term
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.append(Character.toLowerCase(c));
+                }
+            } else if (term.length() > 0) {
+                tokens.add(term.toString());
+                term.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    public int docCount() {
+        lock.readLock().lock();
+        try {
+            return docCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long indexedUpTo() {
+        lock.readLock().lock();
+        try {
+            return indexedUpTo;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //Write the index to a temporary file and move it over the old one, so a crash mid-save leaves the previous save
+    public void save() throws IOException {
+        lock.readLock().lock();
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(indexedUpTo);
+                List<String> chats = new ArrayList<>(chatIDs.keySet());
+                Map<String, Integer> chatNumbers = new HashMap<>();
+                out.writeInt(chats.size());
+                for (String chatID : chats) {
+                    chatNumbers.put(chatID, chatNumbers.size());
+                    out.writeUTF(chatID);
+                }
+                out.writeInt(docCount);
+                for (int doc = 0; doc < docCount; doc++) {
+                    out.writeInt(chatNumbers.get(docChats[doc]));
+                    out.writeUTF(docMessageIDs[doc]);
+                    out.writeLong(docOffsets[doc]);
+                }
+                out.writeInt(terms.size());
+                for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                    Postings postings = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(postings.size);
+                    for (int i = 0; i < postings.size; i++) {
+                        out.writeInt(postings.docs[i]);
+                        out.writeInt(postings.freqs[i]);
+                    }
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a search index: " + file);
+            }
+            indexedUpTo = in.readLong();
+            String[] chats = new String[in.readInt()];
+            for (int i = 0; i < chats.length; i++) {
+                chats[i] = in.readUTF();
+                chatIDs.put(chats[i], chats[i]);
+            }
+            docCount = in.readInt();
+            docChats = new String[Math.max(16, docCount)];
+            docMessageIDs = new String[docChats.length];
+            docOffsets = new long[docChats.length];
+            for (int doc = 0; doc < docCount; doc++) {
+                docChats[doc] = chats[in.readInt()];
+                docMessageIDs[doc] = in.readUTF();
+                docOffsets[doc] = in.readLong();
+            }
+            int termCount = in.readInt();
+            for (int t = 0; t < termCount; t++) {
+                String term = in.readUTF();
+                int size = in.readInt();
+                Postings postings = new Postings(size);
+                for (int i = 0; i < size; i++) {
+                    postings.docs[i] = in.readInt();
+                    postings.freqs[i] = in.readInt();
+                }
+                postings.size = size;
+                terms.put(term, postings);
+            }
+        }
+    }
+
+    //A term's docs in ascending order with the term's count in each; a doc's repeats are folded
+    //into one entry since a doc's terms are all added before the next doc
+    private static class Postings {
+        private int[] docs;
+        private int[] freqs;
+        private int size;
+
+        Postings() {
+            this(2);
+        }
+
+        Postings(int capacity) {
+            docs = new int[Math.max(2, capacity)];
+            freqs = new int[docs.length];
+        }
+
+        void add(int doc) {
+            if (size > 0 && docs[size - 1] == doc) {
+                freqs[size - 1]++;
+                return;
+            }
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docs[size] = doc;
+            freqs[size] = 1;
+            size++;
+        }
+    }
+}
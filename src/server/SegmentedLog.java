@@ -0,0 +1,514 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+//The chat log as a run of segment files read as one stream of bytes, so offsets into it work
+//the way offsets into the single file did. New lines go to the log file itself; once it holds
+//segmentBytes it is sealed (footer appended, renamed to <log>.<base offset, 20 digits>) and a new
+//empty log file takes over. A log from before segments is simply an active segment at offset 0.
+//With compress on, a "log-compressor" thread then rewrites each sealed segment as <name>.z
+//(CompressedBlocks) and swaps it in; the live tail is never compressed, so appends stay cheap.
+//Writes, seals and open() happen under Logger's file lock; reads take no lock, as segments
+//only ever grow, get sealed or get swapped for a compressed copy, and the segment list is
+//replaced, never changed.
+//With mmap on, history reads go through each plain sealed segment's mapping instead of read calls.
+//Off by default on Windows, where a mapped file can't be renamed or deleted, and sealing and
+//compression do both.
+public class SegmentedLog {
+
+    public static final boolean MAP_BY_DEFAULT = !System.getProperty("os.name", "").startsWith("Windows");
+    private static final String COMPRESSED_SUFFIX = ".z";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int READ_WINDOW = 8 * 1024;
+
+    private final Path logFile;
+    private final long segmentBytes;
+    private final boolean compress;
+    private final boolean mmap;
+    //sealed segments oldest first, then the active one; replaced under this object's monitor
+    private volatile List<LogSegment> segments;
+    private FileChannel writer;
+    //one segment compressed at a time, whether by the compressor thread or compressSealed()
+    private final ReentrantLock compressLock;
+    private ExecutorService compressor;
+    //segments swapped out for compressed copies; closed one swap later, so a read that
+    //picked one up just before the swap can still finish
+    private List<LogSegment> retired;
+
+    private SegmentedLog(Path logFile, long segmentBytes, boolean compress, boolean mmap, List<LogSegment> segments) {
+        this.logFile = logFile;
+        this.segmentBytes = segmentBytes;
+        this.compress = compress;
+        this.mmap = mmap;
+        this.segments = segments;
+        this.compressLock = new ReentrantLock();
+        this.retired = new ArrayList<>();
+    }
+
+    public static SegmentedLog open(Path logFile, long segmentBytes) throws IOException {
+        return open(logFile, segmentBytes, false);
+    }
+
+    public static SegmentedLog open(Path logFile, long segmentBytes, boolean compress) throws IOException {
+        return open(logFile, segmentBytes, compress, MAP_BY_DEFAULT);
+    }
+
+    //Find the sealed segments from their footers and scan the active one for its own metadata.
+    //A log file that already ends in a footer was being sealed when the server stopped; that
+    //rename is finished here, and a footer cut off part way is dropped.
+    public static SegmentedLog open(Path logFile, long segmentBytes, boolean compress, boolean mmap) throws IOException {
+        if (segmentBytes < 1) {
+            throw new IllegalArgumentException("Segment size must be positive");
+        }
+        List<LogSegment> segments = new ArrayList<>();
+        for (Map.Entry<Long, Path> entry : sealedFiles(logFile).entrySet()) {
+            long base = entry.getKey();
+            Path file = entry.getValue();
+            long expected = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).end();
+            if (base != expected) {
+                throw new IOException("Log segment " + file + " starts at " + base + " but the one before ends at " + expected);
+            }
+            segments.add(file.toString().endsWith(COMPRESSED_SUFFIX) ? LogSegment.readCompressed(file, base) : LogSegment.readSealed(file, base));
+        }
+        long base = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).end();
+        LogSegment active = scanActive(logFile, base);
+        if (active.isSealed()) {
+            segments.add(active);
+            active = new LogSegment(logFile, active.end(), 0);
+        }
+        segments.add(active);
+        SegmentedLog log = new SegmentedLog(logFile, segmentBytes, compress, mmap, segments);
+        if (compress) {
+            log.scheduleCompression();
+        }
+        return log;
+    }
+
+    //Sealed segment files by base offset. Where a compressed copy was finished but the plain
+    //file not yet deleted, the copy wins and the plain file goes now
+    private static TreeMap<Long, Path> sealedFiles(Path logFile) throws IOException {
+        Path dir = logFile.toAbsolutePath().getParent();
+        String prefix = logFile.getFileName().toString() + ".";
+        TreeMap<Long, Path> files = new TreeMap<>();
+        List<Path> superseded = new ArrayList<>();
+        try (Stream<Path> list = Files.list(dir)) {
+            list.forEach(path -> {
+                String name = path.getFileName().toString();
+                if (!name.startsWith(prefix)) {
+                    return;
+                }
+                String rest = name.substring(prefix.length());
+                boolean compressed = rest.endsWith(COMPRESSED_SUFFIX);
+                String digits = compressed ? rest.substring(0, rest.length() - COMPRESSED_SUFFIX.length()) : rest;
+                if (!digits.matches("\\d{20}")) {
+                    return;
+                }
+                Path other = files.put(Long.parseLong(digits), path);
+                if (other != null) {
+                    superseded.add(compressed ? other : path);
+                    if (!compressed) {
+                        files.put(Long.parseLong(digits), other);
+                    }
+                }
+            });
+        }
+        for (Path path : superseded) {
+            Files.deleteIfExists(path);
+        }
+        return files;
+    }
+
+    private static Path sealedName(Path logFile, long base) {
+        return logFile.resolveSibling(logFile.getFileName() + "." + String.format("%020d", base));
+    }
+
+    //Where ChatLogIndex saves a sealed segment's entries: <log>.<base offset, 20 digits>.idx
+    public Path indexFile(LogSegment segment) {
+        Path sealed = sealedName(logFile, segment.getBase());
+        return sealed.resolveSibling(sealed.getFileName() + INDEX_SUFFIX);
+    }
+
+    private static LogSegment scanActive(Path logFile, long base) throws IOException {
+        long size;
+        try {
+            size = Files.size(logFile);
+        } catch (NoSuchFileException e) {
+            return new LogSegment(logFile, base, 0);
+        }
+        LogSegment active = new LogSegment(logFile, base, size);
+        String last = null;
+        try (BufferedReader in = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (last != null) {
+                    active.recordLine(last);
+                }
+                last = line;
+            }
+        }
+        if (last == null) {
+            return active;
+        }
+        if (!last.startsWith(LogSegment.FOOTER_PREFIX)) {
+            active.recordLine(last);
+            return active;
+        }
+        //check how the file ends rather than trusting readLine, which drops the last '\n'
+        boolean terminated;
+        try (FileChannel in = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            ByteBuffer end = ByteBuffer.allocate(1);
+            in.read(end, size - 1);
+            terminated = end.get(0) == '\n';
+        }
+        long footerStart = size - last.getBytes(StandardCharsets.UTF_8).length - (terminated ? 1 : 0);
+        LogSegment sealed = terminated ? LogSegment.parseFooter(sealedName(logFile, base), base, last) : null;
+        if (sealed != null && sealed.getLength() == footerStart) {
+            System.out.println("Finishing the seal of log segment at offset " + base);
+            Files.move(logFile, sealed.getFile());
+            return sealed;
+        }
+        System.out.println("Dropping a partly written segment footer from " + logFile);
+        try (FileChannel out = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+            out.truncate(footerStart);
+        }
+        return scanActive(logFile, base);
+    }
+
+    //Append whole lines to the active segment; returns the log offset they start at.
+    //Measured from the file, not our own count, in case another Logger has appended to it too.
+    //A write that fails part way is cut back off, so a retry doesn't leave half a batch behind
+    public long append(byte[] lines) throws IOException {
+        LogSegment active = active();
+        long start = active.getBase() + write(lines);
+        active.setLength(start + lines.length - active.getBase());
+        return start;
+    }
+
+    //Note a record just appended, for the active segment's footer
+    public void record(String chatID, LocalDateTime time) {
+        active().record(chatID, time);
+    }
+
+    public void force() throws IOException {
+        if (writer != null) {
+            writer.force(false);
+        }
+    }
+
+    //Seal the active segment once it holds segmentBytes; call between batches, never inside one
+    public boolean rollIfFull() throws IOException {
+        LogSegment active = active();
+        if (active.getLength() < segmentBytes) {
+            return false;
+        }
+        write(active.footer().getBytes(StandardCharsets.UTF_8));
+        writer.force(true);
+        writer.close();
+        writer = null;
+        active.seal(sealedName(logFile, active.getBase()));
+
+        synchronized (this) {
+            List<LogSegment> next = new ArrayList<>(segments);
+            next.add(new LogSegment(logFile, active.end(), 0));
+            segments = next;
+        }
+        System.out.println("Sealed log segment " + active.getFile().getFileName() + " (" + active.getRecords() + " records)");
+        if (compress) {
+            scheduleCompression();
+        }
+        return true;
+    }
+
+    private synchronized void scheduleCompression() {
+        if (compressor == null) {
+            compressor = Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().name("log-compressor").factory());
+        }
+        if (!compressor.isShutdown()) {
+            compressor.execute(() -> {
+                try {
+                    compressSealed();
+                } catch (IOException e) {
+                    System.err.println("ERROR compressing log segment: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    //Compress every sealed segment that is still plain text; returns how many were done
+    public int compressSealed() throws IOException {
+        compressLock.lock();
+        try {
+            int done = 0;
+            for (LogSegment segment : segments) {
+                if (segment.isSealed() && !segment.isCompressed()) {
+                    compress(segment);
+                    done++;
+                }
+            }
+            return done;
+        } finally {
+            compressLock.unlock();
+        }
+    }
+
+    //Write the compressed copy next to the plain file, move it into place, swap it into the
+    //list and only then delete the plain file; a crash anywhere leaves one readable copy
+    private void compress(LogSegment segment) throws IOException {
+        Path plain = segment.getFile();
+        Path target = plain.resolveSibling(plain.getFileName() + COMPRESSED_SUFFIX);
+        Path temp = plain.resolveSibling(plain.getFileName() + COMPRESSED_SUFFIX + ".tmp");
+        long size;
+        try (InputStream data = newInputStream(segment.getBase(), segment.end())) {
+            size = CompressedBlocks.write(data, segment.getLength(), segment.footer(), temp);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        LogSegment compressed = LogSegment.readCompressed(target, segment.getBase());
+
+        List<LogSegment> closing;
+        synchronized (this) {
+            List<LogSegment> next = new ArrayList<>(segments);
+            next.set(next.indexOf(segment), compressed);
+            segments = next;
+            closing = retired;
+            retired = new ArrayList<>();
+            retired.add(segment);
+        }
+        for (LogSegment old : closing) {
+            old.close();
+        }
+        Files.delete(plain);
+        System.out.println("Compressed log segment " + plain.getFileName() + ": " + segment.getLength() + " -> " + size + " bytes");
+    }
+
+    //Opened on first write; a log that is only read is never created. Returns where in the file the bytes went
+    private long write(byte[] bytes) throws IOException {
+        if (writer == null) {
+            writer = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        long position = writer.size();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            while (buffer.hasRemaining()) {
+                writer.write(buffer);
+            }
+        } catch (IOException e) {
+            if (buffer.position() > 0) {
+                try {
+                    writer.truncate(position);
+                } catch (IOException ignored) {
+                    //the write's own error is the one reported
+                }
+            }
+            throw e;
+        }
+        return position;
+    }
+
+    //Offset just past the last line written
+    public long size() {
+        return active().end();
+    }
+
+    //Read into dst from log offset position, across segments; -1 at the end of the log
+    public int read(ByteBuffer dst, long position) throws IOException {
+        List<LogSegment> current = segments;
+        for (int i = indexOf(current, position); i < current.size(); i++) {
+            int read = current.get(i).read(dst, position);
+            if (read >= 0) {
+                return read;
+            }
+        }
+        return -1;
+    }
+
+    //Receives one line at a time; bytes[start, end) is the line without its '\n', and bytes is
+    //reused for the next line, so copy out anything kept
+    public interface LineVisitor {
+        void line(byte[] bytes, int start, int end);
+    }
+
+    //Hand visitor the line starting at each offset, in the order given. A line in a mapped
+    //sealed segment is copied straight out of the mapping; the rest, including the active
+    //segment's, come from a window of reads that lines close together share
+    public void readLines(long[] offsets, LineVisitor visitor) throws IOException {
+        List<LogSegment> current = segments;
+        byte[] line = new byte[256];
+        ByteBuffer window = null;
+        long windowStart = -1;
+        for (long offset : offsets) {
+            LogSegment segment = current.get(indexOf(current, offset));
+            ByteBuffer mapped = mmap && offset < segment.end() ? segment.mapped() : null;
+            if (mapped != null) {
+                int from = (int) (offset - segment.getBase());
+                int end = from;
+                while (end < mapped.limit() && mapped.get(end) != '\n') {
+                    end++;
+                }
+                if (end - from > line.length) {
+                    line = new byte[Math.max(end - from, line.length * 2)];
+                }
+                mapped.get(from, line, 0, end - from);
+                visitor.line(line, 0, end - from);
+                continue;
+            }
+            if (window == null) {
+                window = ByteBuffer.allocate(READ_WINDOW);
+            }
+            long relative = offset - windowStart;
+            int lineStart = 0;
+            int lineEnd = -1;
+            if (windowStart >= 0 && relative >= 0 && relative < window.limit()) {
+                lineStart = (int) relative;
+                lineEnd = lineEnd(window, lineStart);
+            }
+            if (lineEnd < 0) {
+                windowStart = offset;
+                lineStart = 0;
+                fill(window, offset);
+                while ((lineEnd = lineEnd(window, 0)) < 0 && window.limit() == window.capacity()) {
+                    //line longer than the window
+                    window = ByteBuffer.allocate(window.capacity() * 2);
+                    fill(window, offset);
+                }
+                if (lineEnd < 0) {
+                    lineEnd = window.limit();
+                }
+            }
+            visitor.line(window.array(), lineStart, lineEnd);
+        }
+    }
+
+    //Read from log offset position until window is full or the log ends, then flip it
+    void fill(ByteBuffer window, long position) throws IOException {
+        window.clear();
+        while (window.hasRemaining()) {
+            int read = read(window, position + window.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        window.flip();
+    }
+
+    //Index of the '\n' ending the line that starts at from, or -1 if it isn't all in the window
+    static int lineEnd(ByteBuffer window, int from) {
+        byte[] bytes = window.array();
+        for (int i = from; i < window.limit(); i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //The segment holding the line at this offset (the active one past the end)
+    public LogSegment segmentAt(long position) {
+        List<LogSegment> current = segments;
+        return current.get(indexOf(current, position));
+    }
+
+    //Last segment starting at or before position
+    private static int indexOf(List<LogSegment> segments, long position) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments.get(mid).getBase() <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    public List<LogSegment> segments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+    //The log's bytes in [from, to) as one stream, footers left out
+    public InputStream newInputStream(long from, long to) {
+        return new InputStream() {
+            private long position = from;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= to) {
+                    return -1;
+                }
+                ByteBuffer dst = ByteBuffer.wrap(b, off, (int) Math.min(len, to - position));
+                int read = SegmentedLog.this.read(dst, position);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+        };
+    }
+
+    //Lets a compression already running finish, so no half-written copy is left behind
+    public void close() throws IOException {
+        ExecutorService running;
+        synchronized (this) {
+            running = compressor;
+            if (running != null) {
+                running.shutdown();
+            }
+        }
+        if (running != null) {
+            try {
+                running.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        List<LogSegment> closing;
+        synchronized (this) {
+            closing = new ArrayList<>(segments);
+            closing.addAll(retired);
+            retired = new ArrayList<>();
+        }
+        for (LogSegment segment : closing) {
+            segment.close();
+        }
+    }
+
+    private LogSegment active() {
+        List<LogSegment> current = segments;
+        return current.get(current.size() - 1);
+    }
+}
@@ -2,27 +2,42 @@ package server;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import common.ChatSession;
+import common.FrameCodec;
+import common.LogFilter;
 import common.Message;
+import common.SessionRequest;
 import common.User;
 
 public class Server {
 
     private static final int DEFAULT_PORT = 1234;
+    private static final String DEFAULT_TRANSPORT = "nio";
+    private static final int ACCEPT_BACKLOG = 1024;
+    //messages sent when a chat opens, and the most a client may ask for per GET_HISTORY
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private static final int MAX_HISTORY_PAGE_SIZE = 200;
+    private static final int LOG_PAGE_SIZE = 500;
+    private static final int MAX_LOG_PAGE_SIZE = 5000;
+    private static final int MAX_SEARCH_PAGE_SIZE = 100;
     private static ConnectionManager connectionManager;
     private static Authentication authentication;
     private static ChatManager chatManager;
     private static Logger logger;
     private static Map<String, User> onlineUsers;
+    //Batches logins and logouts into one versioned delta per window
+    private static PresenceAggregator presence;
+    //set when presence is scoped to contacts; null means everyone hears about everyone
+    private static ContactPresence contactPresence;
 
     public static void main(String[] arguments) {
         int portNumber = DEFAULT_PORT;
@@ -34,29 +49,75 @@ public class Server {
                 System.out.println("Invalid port number. Using default " + DEFAULT_PORT + ".");
             }
         }
+        //Transport: "nio" (selector event loops, default), "virtual" (one virtual thread per client)
+        //or "thread" (one platform thread per client)
+        String transport = arguments.length > 1 ? arguments[1].toLowerCase() : DEFAULT_TRANSPORT;
 
         //Initialize components
         String credentialsFile = "data/credentials.txt";
         String logFile = "data/chat_log.txt";
 
-        authentication = new Authentication(credentialsFile);
+        //one credential index for logins and the log's user lookups, reloaded when the file changes
+        CredentialStore credentials = new CredentialStore(credentialsFile);
+        try {
+            credentials.watch();
+        } catch (IOException exception) {
+            System.err.println("Not watching " + credentialsFile + " for changes: " + exception.getMessage());
+        }
+        authentication = new Authentication(credentials);
         logger = new Logger(logFile, credentialsFile);
+        logger.setCredentialStore(credentials);
+        logger.buildIndex();
+        //Saved next to the log; only messages logged since the last save are indexed here
+        logger.attachSearchIndex(SearchIndex.open(logFile + ".search"));
+        //Write out and fsync the log's pending batch on Ctrl-C / SIGTERM
+        Runtime.getRuntime().addShutdownHook(new Thread(logger::close));
         chatManager = new ChatManager(logger);
-        connectionManager = new ConnectionManager();
+        chatManager.loadSessions();
+        connectionManager = new ConnectionManager(OutboundLimits.fromSystemProperties());
         connectionManager.startManager();
+        chatManager.addMembershipListener(connectionManager);
         onlineUsers = new ConcurrentHashMap<>();
+        if (System.getProperty("presence.scope", "all").equals("contacts")) {
+            contactPresence = new ContactPresence(chatManager, connectionManager, onlineUsers);
+            chatManager.addMembershipListener(contactPresence);
+            presence = new PresenceAggregator(contactPresence);
+        } else {
+            presence = new PresenceAggregator(Server::broadcastPresence);
+        }
+
+        if (transport.equals("thread") || transport.equals("virtual")) {
+            serveThreadPerClient(portNumber, transport.equals("virtual"));
+        } else {
+            serveNio(portNumber);
+        }
+    }
+
+    private static void serveNio(int portNumber) {
+        int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+        try {
+            new NioTransport(portNumber, eventLoops, ClientHandler::new).serve();
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
 
-        try (ServerSocket serverSocket = new ServerSocket(portNumber)) {
+    //Virtual threads unmount while blocked in socket reads, so idle clients don't hold a carrier thread
+    private static void serveThreadPerClient(int portNumber, boolean virtual) {
+        Thread.Builder clientThreads = virtual
+                ? Thread.ofVirtual().name("client-", 0)
+                : Thread.ofPlatform().name("client-", 0);
+
+        try (ServerSocket serverSocket = new ServerSocket(portNumber, ACCEPT_BACKLOG)) {
             serverSocket.setReuseAddress(true);
-            System.out.println("Server started on port: " + portNumber);
+            System.out.println("Server started on port: " + portNumber + (virtual ? " (virtual threads)" : ""));
             System.out.println("Waiting for clients...");
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("New client connected: " + clientSocket.getRemoteSocketAddress());
 
-                Thread clientThread = new Thread(new ClientHandler(clientSocket));
-                clientThread.start();
+                clientThreads.start(new ClientHandler(clientSocket));
             }
 
         } catch (IOException exception) {
@@ -64,61 +125,118 @@ public class Server {
         }
     }
 
-    private static class ClientHandler implements Runnable {
+    //One delta for a whole presence window, encoded once and queued for everyone online
+    private static void broadcastPresence(long version, List<Object> changes) {
+        byte[][] frames;
+        try {
+            frames = FrameCodec.encodeFrames("PRESENCE_DELTA:" + version, changes);
+        } catch (IOException e) {
+            System.err.println("Error encoding presence update: " + e.getMessage());
+            return;
+        }
+        for (User user : onlineUsers.values()) {
+            //Shed first if this client is falling behind; the version gap makes it resync
+            connectionManager.sendPresenceFrames(user, frames);
+        }
+    }
+
+    //Handles one client's commands; driven either by its own reader thread (run)
+    //or by NioTransport's workers, one frame at a time (onFrame/onDisconnect)
+    private static class ClientHandler implements Runnable, NioTransport.ConnectionHandler {
         private Socket socket;
-        private ObjectInputStream input;
-        private ObjectOutputStream output;
-        private User currentUser;
+        private ClientChannel channel;
+        //set by a worker at login, read by the event loop for the frame cap
+        private volatile User currentUser;
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
         }
 
+        public ClientHandler(ClientChannel channel) {
+            this.channel = channel;
+        }
+
         @Override
         public void run() {
             try {
-                output = new ObjectOutputStream(socket.getOutputStream());
-                output.flush();
-                input = new ObjectInputStream(socket.getInputStream());
+                SocketClientChannel socketChannel = new SocketClientChannel(socket);
+                channel = socketChannel;
 
                 while (true) {
-                    Object obj = input.readObject();
-
-                    if (obj instanceof String) {
-                        String command = (String) obj;
-                        try {
-                            handleCommand(command);
-                        } catch (Exception e) {
-                            System.err.println("Error handling command: " + command);
-                            e.printStackTrace();
-                            //Don't close connection, just log the error and continue
-                        }
-                    } else if (obj instanceof Message) {
-                        try {
-                            handleMessage((Message) obj);
-                        } catch (Exception e) {
-                            System.err.println("Error handling message");
-                            e.printStackTrace();
-                        }
-                    } else if (obj instanceof SessionRequest) {
-                        try {
-                            handleSessionRequest((SessionRequest) obj);
-                        } catch (Exception e) {
-                            System.err.println("Error handling session request");
-                            e.printStackTrace();
-                        }
-                    }
+                    onFrame(socketChannel.readFrame(maxFrameSize()));
                 }
 
             } catch (EOFException e) {
                 System.out.println("Client disconnected: " + (currentUser != null ? currentUser.getUserID() : "unknown"));
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException e) {
                 e.printStackTrace();
             } finally {
                 cleanup();
             }
         }
 
+        @Override
+        public void onFrame(Object obj) {
+            if (obj instanceof String) {
+                String command = (String) obj;
+                try {
+                    handleCommand(command);
+                } catch (Exception e) {
+                    System.err.println("Error handling command: " + command);
+                    e.printStackTrace();
+                    //Don't close connection, just log the error and continue
+                }
+            } else if (obj instanceof Message) {
+                try {
+                    handleMessage((Message) obj);
+                } catch (Exception e) {
+                    System.err.println("Error handling message");
+                    e.printStackTrace();
+                }
+            } else if (obj instanceof SessionRequest) {
+                try {
+                    handleSessionRequest((SessionRequest) obj);
+                } catch (Exception e) {
+                    System.err.println("Error handling session request");
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        //Once logged in, replies go through this user's outbound queue so they stay
+        //ordered with everything other handlers queue for the same client
+        private void reply(Object... objects) throws IOException {
+            if (currentUser != null && connectionManager.isConnected(currentUser)) {
+                if (!connectionManager.send(currentUser, objects)) {
+                    System.err.println("Reply to " + currentUser.getUserID() + " not queued");
+                }
+            } else {
+                channel.send(objects);
+            }
+        }
+
+        private void replyFrames(byte[]... frames) throws IOException {
+            if (currentUser != null && connectionManager.isConnected(currentUser)) {
+                if (!connectionManager.sendFrames(currentUser, frames)) {
+                    System.err.println("Reply to " + currentUser.getUserID() + " not queued");
+                }
+            } else {
+                channel.sendFrames(frames);
+            }
+        }
+
+        //Small until login, so an anonymous socket can't make the server hold megabytes for it
+        @Override
+        public int maxFrameSize() {
+            return currentUser == null ? FrameCodec.MAX_LOGIN_FRAME_SIZE : FrameCodec.MAX_FRAME_SIZE;
+        }
+
+        @Override
+        public void onDisconnect() {
+            System.out.println("Client disconnected: " + (currentUser != null ? currentUser.getUserID() : "unknown"));
+            cleanup();
+        }
+
         private void handleCommand(String command) throws IOException {
             if (command.startsWith("LOGIN:")) {
                 try {
@@ -143,35 +261,25 @@ public class Server {
 
                                 if (sessionID != null) {
                                     currentUser = user;
-                                    //Register the existing streams we already created
+                                    //Register the channel this handler is already reading from
                                     try {
-                                        connectionManager.registerClientStreams(user, input, output, socket);
-                                        onlineUsers.put(user.getUserID(), user);
+                                        connectionManager.registerClientChannel(user, channel);
                                     } catch (Exception e) {
                                         System.err.println("Error registering client streams: " + e.getMessage());
                                         e.printStackTrace();
                                         throw new IOException("Failed to register client", e);
                                     }
-                                    output.writeObject("LOGIN_SUCCESS:" + user.getUserID());
-                                    output.flush();
-
                                     //Send the actual User object with correct role
-                                    output.writeObject(user);
-                                    output.flush();
+                                    reply("LOGIN_SUCCESS:" + user.getUserID(), user);
 
                                     //Send user's existing sessions
                                     List<ChatSession> sessions = chatManager.loadUserSessions(user);
-                                    output.writeObject(sessions);
-                                    output.flush();
-
-                                    //Send user list immediately to the newly logged-in user
-                                    List<User> users = new ArrayList<>(onlineUsers.values());
-                                    output.writeObject("USER_LIST_UPDATE");
-                                    output.writeObject(users);
-                                    output.flush();
+                                    reply(sessions);
+                                    //From here on this user's chats deliver to them without a lookup
+                                    connectionManager.attachChats(user, chatManager.getChatIDsFor(user));
 
-                                    //Broadcast updated user list to all other users
-                                    broadcastUserList();
+                                    //Full list for the new user, a one-user delta for everyone else
+                                    announceOnline(user);
                                     System.out.println("Login successful for: " + username);
                                     return;
                                 } else {
@@ -192,8 +300,7 @@ public class Server {
                 }
                 //Always send LOGIN_FAILED if we reach here
                 try {
-                    output.writeObject("LOGIN_FAILED");
-                    output.flush();
+                    reply("LOGIN_FAILED");
                 } catch (IOException e) {
                     System.err.println("Failed to send LOGIN_FAILED: " + e.getMessage());
                     throw e;
@@ -201,11 +308,8 @@ public class Server {
 
             } else if (command.equals("GET_USER_LIST")) {
                 try {
-                    if (socket != null && !socket.isClosed()) {
-                        List<User> users = new ArrayList<>(onlineUsers.values());
-                        output.writeObject("USER_LIST_UPDATE");
-                        output.writeObject(users);
-                        output.flush();
+                    if (channel.isOpen()) {
+                        sendPresenceSnapshot();
                     }
                 } catch (java.net.SocketException e) {
                     System.out.println("Socket closed while sending user list");
@@ -215,12 +319,10 @@ public class Server {
 
             } else if (command.equals("GET_ALL_USERS")) {
                 try {
-                    if (socket != null && !socket.isClosed()) {
+                    if (channel.isOpen()) {
                         //Return all registered users from credentials file (for group creation)
                         List<User> allUsers = authentication.getAllRegisteredUsers();
-                        output.writeObject("ALL_USERS_LIST");
-                        output.writeObject(allUsers);
-                        output.flush();
+                        reply("ALL_USERS_LIST", allUsers);
                     }
                 } catch (java.net.SocketException e) {
                     System.out.println("Socket closed while sending all users");
@@ -228,22 +330,38 @@ public class Server {
                     System.err.println("Error sending all users: " + e.getMessage());
                 }
 
-            } else if (command.equals("GET_CHAT_LOGS")) {
+            } else if (command.startsWith("GET_LOG_PAGE:")) {
+                //GET_LOG_PAGE:offset:limit:chatID:userID:from,to (see LogFilter); answered with
+                //LOG_PAGE:offset:nextOffset and the lines, so the admin viewer loads the log a page at a time
                 try {
                     //Check if user is admin
                     if (currentUser == null || currentUser.getRole() != common.UserRole.ADMIN) {
-                        if (socket != null && !socket.isClosed()) {
-                            output.writeObject("LOG_ACCESS_DENIED");
-                            output.flush();
+                        if (channel.isOpen()) {
+                            reply("LOG_ACCESS_DENIED");
                         }
                         return;
                     }
+                    String[] parts = command.substring(13).split(":", 3);
+                    long offset;
+                    int limit;
+                    LogFilter filter;
+                    try {
+                        offset = Long.parseLong(parts[0]);
+                        limit = parts.length > 1 && !parts[1].isEmpty() ? Integer.parseInt(parts[1]) : LOG_PAGE_SIZE;
+                        filter = parts.length > 2 ? LogFilter.parse(parts[2]) : LogFilter.ALL;
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Bad log page request from " + currentUser.getUserID() + ": " + e.getMessage());
+                        //An empty last page, so the viewer stops waiting instead of showing "Loading..." forever
+                        if (channel.isOpen()) {
+                            reply("LOG_PAGE:0:-1", new ArrayList<String>());
+                        }
+                        return;
+                    }
+                    limit = Math.max(1, Math.min(limit, MAX_LOG_PAGE_SIZE));
 
-                    if (socket != null && !socket.isClosed()) {
-                        String logContent = logger.readAllLogs();
-                        output.writeObject("CHAT_LOGS_DATA");
-                        output.writeObject(logContent);
-                        output.flush();
+                    Logger.LogPage page = logger.readLogPage(offset, limit, filter);
+                    if (channel.isOpen()) {
+                        reply("LOG_PAGE:" + page.getOffset() + ":" + page.getNextOffset(), page.getLines());
                     }
                 } catch (java.net.SocketException e) {
                     System.out.println("Socket closed while sending chat logs");
@@ -251,12 +369,62 @@ public class Server {
                     System.err.println("Error sending chat logs: " + e.getMessage());
                 }
 
+            } else if (command.startsWith("SEARCH:")) {
+                //SEARCH:from:limit:query, answered with SEARCH_RESULTS:from:total and the page of messages.
+                //Users search the chats they are in; admins search everything
+                String[] parts = command.substring(7).split(":", 3);
+                if (currentUser == null || parts.length < 3) {
+                    return;
+                }
+                int from;
+                int limit;
+                try {
+                    from = Math.max(0, Integer.parseInt(parts[0]));
+                    limit = Math.max(1, Math.min(Integer.parseInt(parts[1]), MAX_SEARCH_PAGE_SIZE));
+                } catch (NumberFormatException e) {
+                    System.out.println("Bad search request from " + currentUser.getUserID() + ": " + command);
+                    return;
+                }
+                Set<String> chats = currentUser.getRole() == common.UserRole.ADMIN
+                        ? null : new HashSet<>(chatManager.getChatIDsFor(currentUser));
+                Logger.SearchPage page = logger.searchMessages(parts[2], chats, from, limit);
+                try {
+                    if (channel.isOpen()) {
+                        reply("SEARCH_RESULTS:" + from + ":" + page.getTotal(), page.getMessages());
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error sending search results: " + e.getMessage());
+                }
+
+            } else if (command.startsWith("GET_HISTORY:")) {
+                //GET_HISTORY:chatID:limit:beforeMessageID (empty for the newest page)
+                String[] parts = command.substring(12).split(":", 3);
+                if (currentUser == null || parts.length < 3) {
+                    return;
+                }
+                String chatID = parts[0];
+                ChatSession session = chatManager.getChatSession(chatID);
+                if (session == null || !session.getParticipants().contains(currentUser)) {
+                    System.out.println("History request for chat " + chatID + " denied to " + currentUser.getUserID());
+                    return;
+                }
+                int limit;
+                try {
+                    limit = Math.max(1, Math.min(MAX_HISTORY_PAGE_SIZE, Integer.parseInt(parts[1])));
+                } catch (NumberFormatException e) {
+                    limit = HISTORY_PAGE_SIZE;
+                }
+                String before = parts[2].isEmpty() ? null : parts[2];
+                List<Message> page = chatManager.loadHistoryPage(chatID, before, limit);
+                if (channel.isOpen()) {
+                    reply("HISTORY_PAGE:" + chatID, page);
+                }
+
             } else if (command.equals("LOGOUT")) {
                 try {
                     //Send response BEFORE disconnecting
-                    if (output != null && socket != null && !socket.isClosed()) {
-                        output.writeObject("LOGOUT_SUCCESS");
-                        output.flush();
+                    if (channel.isOpen()) {
+                        reply("LOGOUT_SUCCESS");
                     }
 
                     if (currentUser != null) {
@@ -265,8 +433,7 @@ public class Server {
                             authentication.endSession(session.getSessionID() + "");
                         }
                         connectionManager.disconnectClient(currentUser);
-                        onlineUsers.remove(currentUser.getUserID());
-                        broadcastUserList();
+                        announceOffline(currentUser);
                     }
                 } catch (java.net.SocketException e) {
                     //Socket already closed, that's okay
@@ -283,71 +450,21 @@ public class Server {
 			}
 
             //Add message to chat session and log it
-            chatManager.receiveMessage(message);
-
-            //Get the chat session to check if it's a group
-            ChatSession session = chatManager.getChatSession(message.getChatID());
-            if (session == null) {
+            if (!chatManager.storeMessage(message)) {
                 System.err.println("No session found for chatID: " + message.getChatID());
                 return;
             }
 
-            boolean isGroup = session.isGroup();
-            List<User> targets = new ArrayList<>();
-
-            //For group chats, send to ALL online participants (not just active viewers)
-            if (isGroup) {
-                List<User> allParticipants = session.getParticipants();
-                Set<String> targetUserIDs = new java.util.HashSet<>();
-
-                //Add all online participants who aren't the sender
-                for (User participant : allParticipants) {
-                    if (!participant.getUserID().equals(message.getSenderID())) {
-                        //Check if participant is online
-                        if (onlineUsers.containsKey(participant.getUserID())) {
-                            //Use the online user object (has correct status)
-                            User onlineParticipant = onlineUsers.get(participant.getUserID());
-                            if (!targetUserIDs.contains(onlineParticipant.getUserID())) {
-                                targets.add(onlineParticipant);
-                                targetUserIDs.add(onlineParticipant.getUserID());
-                            }
-                        }
-                    }
-                }
-            } else {
-                //Private chat: send to the other participant if they're online
-                for (User participant : session.getParticipants()) {
-                    if (!participant.getUserID().equals(message.getSenderID())) {
-                        if (onlineUsers.containsKey(participant.getUserID())) {
-                            targets.add(onlineUsers.get(participant.getUserID()));
-                        }
-                    }
-                }
-            }
-
-            //Send message to all targets
-            for (User target : targets) {
-                ObjectOutputStream targetOut = (ObjectOutputStream) connectionManager.getOutputStream(target);
-                if (targetOut != null) {
-                    try {
-                        targetOut.writeObject(message);
-                        targetOut.flush();
-                        System.out.println("Sent message to " + target.getUserID());
-                    } catch (java.net.SocketException e) {
-                        //Socket closed, user disconnected
-                        System.out.println("User " + target.getUserID() + " disconnected");
-                    } catch (IOException e) {
-                        //User may have disconnected
-                        System.err.println("Failed to send message to " + target.getUserID() + ": " + e.getMessage());
-                    }
-                }
-            }
+            //Encode once; every online member and the sender echo share the same frame.
+            //ConnectionManager keeps each chat's online members' queues ready, so this is one pass
+            byte[][] frames = FrameCodec.encodeFrames(message);
+            int delivered = connectionManager.sendToChat(message.getChatID(), message.getSenderID(), frames);
+            System.out.println("Sent message to " + delivered + " member(s) of " + message.getChatID());
 
             //Also send back to sender for confirmation
             try {
-                if (socket != null && !socket.isClosed()) {
-                    output.writeObject(message);
-                    output.flush();
+                if (channel.isOpen()) {
+                    replyFrames(frames);
                 }
             } catch (java.net.SocketException e) {
                 System.out.println("Socket closed while sending message confirmation");
@@ -393,11 +510,10 @@ public class Server {
 
             //Load history and send to client
             try {
-                if (socket != null && !socket.isClosed()) {
-                    List<Message> history = chatManager.loadHistory(session.getChatID());
-                    output.writeObject(session);
-                    output.writeObject(history);
-                    output.flush();
+                if (channel.isOpen()) {
+                    //Only the newest page; the client asks for older ones with GET_HISTORY as the user scrolls up
+                    List<Message> history = chatManager.loadHistoryPage(session.getChatID(), null, HISTORY_PAGE_SIZE);
+                    reply(session, history);
                 }
             } catch (java.net.SocketException e) {
                 System.out.println("Socket closed while sending session");
@@ -412,42 +528,38 @@ public class Server {
                     //Check if participant is online
                     if (onlineUsers.containsKey(participant.getUserID())) {
                         User onlineParticipant = onlineUsers.get(participant.getUserID());
-                        ObjectOutputStream targetOut = (ObjectOutputStream) connectionManager.getOutputStream(onlineParticipant);
-                        if (targetOut != null) {
-                            try {
-                                //Send the session and empty history to other participants
-                                targetOut.writeObject(session);
-                                targetOut.writeObject(new ArrayList<>());
-                                targetOut.flush();
-                                System.out.println("Sent session notification to " + onlineParticipant.getUserID());
-                            } catch (java.net.SocketException e) {
-                                System.out.println("Participant " + onlineParticipant.getUserID() + " disconnected");
-                            } catch (IOException e) {
-                                //Participant may have disconnected
-                                System.err.println("Failed to notify " + onlineParticipant.getUserID() + ": " + e.getMessage());
-                            }
+                        //Send the session and empty history to other participants
+                        if (connectionManager.send(onlineParticipant, session, new ArrayList<>())) {
+                            System.out.println("Sent session notification to " + onlineParticipant.getUserID());
+                        } else {
+                            System.err.println("Failed to notify " + onlineParticipant.getUserID());
                         }
                     }
                 }
             }
         }
 
-        private void broadcastUserList() {
-            List<User> users = new ArrayList<>(onlineUsers.values());
-            for (User user : onlineUsers.values()) {
-                ObjectOutputStream out = (ObjectOutputStream) connectionManager.getOutputStream(user);
-                if (out != null) {
-                    try {
-                        out.writeObject("USER_LIST_UPDATE");
-                        out.writeObject(users);
-                        out.flush();
-                    } catch (java.net.SocketException e) {
-                        //Socket closed, user disconnected - that's okay
-                    } catch (IOException e) {
-                        //User may have disconnected
-                        System.err.println("Failed to broadcast user list to " + user.getUserID() + ": " + e.getMessage());
-                    }
-                }
+        //The new user gets the published list now; everyone hears about them with the next batch
+        private void announceOnline(User user) throws IOException {
+            onlineUsers.put(user.getUserID(), user);
+            presence.online(user);
+            sendPresenceSnapshot();
+        }
+
+        private void announceOffline(User user) {
+            //a handler whose user already left (LOGOUT, then the socket closing) announces nothing
+            if (onlineUsers.remove(user.getUserID(), user)) {
+                presence.offline(user.getUserID());
+            }
+        }
+
+        private void sendPresenceSnapshot() throws IOException {
+            PresenceAggregator.SnapshotReader toClient = (version, online) -> reply("PRESENCE_SNAPSHOT:" + version, online);
+            User user = currentUser;
+            if (contactPresence != null && user != null) {
+                presence.snapshot((version, online) -> contactPresence.snapshot(user, online, toClient));
+            } else {
+                presence.snapshot(toClient);
             }
         }
 
@@ -458,15 +570,11 @@ public class Server {
                     authentication.endSession(session.getSessionID() + "");
                 }
                 connectionManager.disconnectClient(currentUser);
-                onlineUsers.remove(currentUser.getUserID());
-                broadcastUserList();
+                announceOffline(currentUser);
             }
             try {
-                if (input != null) {
-                    input.close();
-                }
-                if (output != null && socket != null && !socket.isClosed()) {
-                    output.close();
+                if (channel != null) {
+                    channel.close();
                 }
                 if (socket != null && !socket.isClosed()) {
                     socket.close();
@@ -478,21 +586,4 @@ public class Server {
             }
         }
     }
-
-    //Helper class for session creation requests
-    public static class SessionRequest implements java.io.Serializable {
-        private List<User> participants;
-        private boolean isGroup;
-        private String chatName;
-
-        public SessionRequest(List<User> participants, boolean isGroup, String chatName) {
-            this.participants = participants;
-            this.isGroup = isGroup;
-            this.chatName = chatName;
-        }
-
-        public List<User> getParticipants() { return participants; }
-        public boolean isGroup() { return isGroup; }
-        public String getChatName() { return chatName; }
-    }
 }
@@ -0,0 +1,92 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.FrameCodec;
+
+//Blocking ClientChannel over a plain Socket (thread-per-client server modes)
+//Streams are unbuffered: frames are read with readInt/readFully and written as whole
+//arrays, and an 8 KB buffer pair per idle client adds up at 10k connections
+public class SocketClientChannel implements ClientChannel {
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final ReentrantLock writeLock;
+
+    public SocketClientChannel(Socket socket) throws IOException {
+        this.socket = socket;
+        this.input = new DataInputStream(socket.getInputStream());
+        this.output = new DataOutputStream(socket.getOutputStream());
+        this.writeLock = new ReentrantLock();
+    }
+
+    //Blocks until a whole frame of at most maxLength bytes has arrived
+    public Object readFrame(int maxLength) throws IOException {
+        return FrameCodec.readFrame(input, maxLength);
+    }
+
+    @Override
+    public void sendFrames(byte[]... frames) throws IOException {
+        //One socket write per call, however many frames the outbound queue coalesced into it
+        byte[] batch;
+        if (frames.length == 1) {
+            batch = frames[0];
+        } else {
+            ByteArrayOutputStream joined = new ByteArrayOutputStream();
+            for (byte[] frame : frames) {
+                joined.write(frame);
+            }
+            batch = joined.toByteArray();
+        }
+
+        //ReentrantLock rather than synchronized so a blocked write doesn't pin a virtual thread's carrier
+        writeLock.lock();
+        try {
+            output.write(batch);
+            output.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //Writes are synchronous, so any backlog waits in the OutboundQueue instead
+    @Override
+    public int pendingFrames() {
+        return 0;
+    }
+
+    @Override
+    public long pendingBytes() {
+        return 0;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    //A blocking write of the final frame could stall on a full socket, so just close
+    @Override
+    public void abort(byte[] finalFrame) {
+        close();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+}
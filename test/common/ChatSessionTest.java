@@ -1,4 +1,4 @@
-package server;
+package common;
 
 import static org.junit.Assert.*;
 import org.junit.Before;
@@ -6,10 +6,6 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.List;
 
-import common.User;
-import common.UserRole;
-import common.Message;
-
 public class ChatSessionTest {
 
     private User alice;
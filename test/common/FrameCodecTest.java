@@ -0,0 +1,236 @@
+package common;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FrameCodecTest {
+
+    private static Object roundTrip(Object obj) throws IOException {
+        byte[] frame = FrameCodec.encode(obj);
+        assertEquals(frame.length - FrameCodec.HEADER_SIZE,
+                ((frame[0] & 0xFF) << 24) | ((frame[1] & 0xFF) << 16) | ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF));
+        return FrameCodec.decode(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE);
+    }
+
+    @Test
+    public void commandsRoundTrip() throws Exception {
+        for (String command : Arrays.asList("GET_USER_LIST", "LOGOUT", "ALL_USERS_LIST", "LOGIN_FAILED",
+                "LOGIN:ujas:pa:ss", "LOGIN_SUCCESS:ujas", "DISCONNECT:SLOW_CONSUMER", "NEW_SESSION:abc",
+                "GET_HISTORY:chat-1:50:", "GET_HISTORY:chat-1:50:msg-9", "HISTORY_PAGE:chat-1",
+                "PRESENCE_SNAPSHOT:0", "PRESENCE_DELTA:42", "SEARCH:0:25:lunch: noon?", "SEARCH_RESULTS:25:80",
+                "plain log text\nwith lines", "")) {
+            assertEquals(command, roundTrip(command));
+        }
+    }
+
+    @Test
+    public void bareCommandsTakeOneByte() throws Exception {
+        assertEquals(FrameCodec.HEADER_SIZE + 1, FrameCodec.encode("ALL_USERS_LIST").length);
+    }
+
+    @Test
+    public void messageRoundTrip() throws Exception {
+        Message original = new Message("chat-1", "ujas", "Hello é世");
+        Message copy = (Message) roundTrip(original);
+
+        assertEquals(original.getMessageID(), copy.getMessageID());
+        assertEquals("chat-1", copy.getChatID());
+        assertEquals("ujas", copy.getSenderID());
+        assertEquals(original.getContent(), copy.getContent());
+        assertEquals(original.getTimeStamp(), copy.getTimeStamp());
+        assertEquals(Boolean.TRUE, copy.checkStatus());
+    }
+
+    @Test
+    public void rebuiltMessageKeepsNullsAndPlainIds() throws Exception {
+        Message original = new Message("msgID", "chat123", "sender1", LocalDateTime.of(1960, 1, 1, 12, 0), "Content");
+        Message copy = (Message) roundTrip(original);
+
+        assertEquals("msgID", copy.getMessageID());
+        assertEquals(LocalDateTime.of(1960, 1, 1, 12, 0), copy.getTimeStamp());
+        assertNull(copy.checkStatus());
+
+        Message untimed = (Message) roundTrip(new Message(null, "c", "s", null, null));
+        assertNull(untimed.getMessageID());
+        assertNull(untimed.getTimeStamp());
+        assertNull(untimed.getContent());
+    }
+
+    @Test
+    public void subMicrosecondTimestampsKeepTheirNanos() throws Exception {
+        LocalDateTime precise = LocalDateTime.of(2024, 1, 1, 12, 0, 0, 123456789);
+        Message copy = (Message) roundTrip(new Message("m", "c", "s", precise, "x"));
+
+        assertEquals(precise, copy.getTimeStamp());
+    }
+
+    @Test
+    public void usersSessionsAndRequestsRoundTrip() throws Exception {
+        User admin = new User("carlos", "secret", UserRole.ADMIN);
+        admin.setStatus(OnlineStatus.ONLINE);
+        User renamed = new User("ujas", "pw", UserRole.GENERAL);
+        renamed.setUserName("Ujas G");
+
+        User copy = (User) roundTrip(admin);
+        assertEquals("carlos", copy.getUserID());
+        assertEquals("carlos", copy.getUsername());
+        assertEquals(UserRole.ADMIN, copy.getRole());
+        assertEquals(OnlineStatus.ONLINE, copy.getStatus());
+        assertEquals("Ujas G", ((User) roundTrip(renamed)).getUsername());
+
+        ChatSession session = new ChatSession(Arrays.asList(admin, renamed), true, "Team");
+        ChatSession sessionCopy = (ChatSession) roundTrip(session);
+        assertEquals(session.getChatID(), sessionCopy.getChatID());
+        assertEquals("Team", sessionCopy.getChatName());
+        assertTrue(sessionCopy.isGroup());
+        assertEquals(session.getParticipants(), sessionCopy.getParticipants());
+
+        SessionRequest request = (SessionRequest) roundTrip(new SessionRequest(new ArrayList<>(Arrays.asList(renamed)), false, null));
+        assertFalse(request.isGroup());
+        assertEquals(Arrays.asList(renamed), request.getParticipants());
+        //Server adds the requester to this list
+        request.getParticipants().add(admin);
+    }
+
+    @Test
+    public void listsKeepElementTypes() throws Exception {
+        List<Object> mixed = new ArrayList<>();
+        mixed.add(new User("a", "p", UserRole.GENERAL));
+        mixed.add(new Message("c", "a", "hi"));
+        List<?> copy = (List<?>) roundTrip(mixed);
+
+        assertEquals(2, copy.size());
+        assertTrue(copy.get(0) instanceof User);
+        assertTrue(copy.get(1) instanceof Message);
+        assertEquals(new ArrayList<>(), roundTrip(new ArrayList<>()));
+    }
+
+    @Test
+    public void messageIsAtLeastFiveTimesSmallerThanJavaSerialization() throws Exception {
+        Message message = new Message(java.util.UUID.randomUUID().toString(), "ujas", "See you at the meeting");
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            out.writeObject(message);
+        }
+        int binary = FrameCodec.encode(message).length - FrameCodec.HEADER_SIZE;
+
+        assertTrue("binary " + binary + " vs serialized " + serialized.size(), binary * 5 <= serialized.size());
+    }
+
+    @Test
+    public void messageCostsAtLeastFiveTimesLessCpuThanJavaSerialization() throws Exception {
+        Message message = new Message(java.util.UUID.randomUUID().toString(), "ujas", "See you at the meeting");
+        int count = 20_000;
+        //best of a few rounds, so a GC or JIT pause in one doesn't decide it
+        long binary = Long.MAX_VALUE;
+        long serialized = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            binary = Math.min(binary, cpuNanos(() -> {
+                byte[] frame = FrameCodec.encode(message);
+                FrameCodec.decode(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE);
+            }, count));
+            //how FrameCodec framed each object before WireFormat: a fresh object stream per frame
+            serialized = Math.min(serialized, cpuNanos(() -> {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(message);
+                }
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                    in.readObject();
+                }
+            }, count));
+        }
+        System.out.printf("encode + decode per message: binary %d ns, serialized %d ns%n", binary / count, serialized / count);
+        assertTrue("binary " + binary + " ns vs serialized " + serialized + " ns", binary * 5 <= serialized);
+    }
+
+    private interface Codec {
+        void run() throws Exception;
+    }
+
+    private static long cpuNanos(Codec codec, int count) throws Exception {
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        long start = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < count; i++) {
+            codec.run();
+        }
+        return threads.getCurrentThreadCpuTime() - start;
+    }
+
+    @Test
+    public void presenceDeltaIsMuchSmallerThanTheFullList() throws Exception {
+        List<User> online = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            User u = new User("user" + i, "pw", UserRole.GENERAL);
+            u.setStatus(OnlineStatus.ONLINE);
+            online.add(u);
+        }
+        int snapshot = FrameCodec.encodeFrames("PRESENCE_SNAPSHOT:7", online)[1].length;
+        List<Object> changes = new ArrayList<>();
+        changes.add(online.get(0));
+        changes.add("user1");
+        byte[][] deltaFrames = FrameCodec.encodeFrames("PRESENCE_DELTA:8", changes);
+        int delta = deltaFrames[0].length + deltaFrames[1].length;
+
+        assertTrue("snapshot " + snapshot + " vs delta " + delta, delta * 50 < snapshot);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedPayloadIsRejected() throws Exception {
+        byte[] frame = FrameCodec.encode(new Message("c", "s", "hello"));
+        FrameCodec.decode(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE - 3);
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownOpcodeIsRejected() throws Exception {
+        FrameCodec.decode(new byte[] {0x7F}, 0, 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedListCountIsRejected() throws Exception {
+        FrameCodec.decode(new byte[] {0x25, (byte) 0xFF, (byte) 0xFF, 0x7F}, 0, 4);
+    }
+
+    @Test
+    public void aLargeFrameIsReadWhole() throws Exception {
+        char[] text = new char[300_000];
+        Arrays.fill(text, 'x');
+        byte[] frame = FrameCodec.encode(new String(text));
+        assertEquals(new String(text), FrameCodec.readFrame(new DataInputStream(new ByteArrayInputStream(frame))));
+    }
+
+    @Test(expected = EOFException.class)
+    public void aHeaderClaimingMoreThanArrivesEndsInEof() throws Exception {
+        byte[] header = {0x00, (byte) 0xF0, 0x00, 0x00, 0x20};
+        FrameCodec.readFrame(new DataInputStream(new ByteArrayInputStream(header)));
+    }
+
+    @Test(expected = IOException.class)
+    public void aFrameOverTheCallersCapIsRejected() throws Exception {
+        byte[] frame = FrameCodec.encode("LOGIN:" + new String(new char[FrameCodec.MAX_LOGIN_FRAME_SIZE]));
+        FrameCodec.readFrame(new DataInputStream(new ByteArrayInputStream(frame)), FrameCodec.MAX_LOGIN_FRAME_SIZE);
+    }
+
+    @Test(expected = IOException.class)
+    public void deeplyNestedListsAreRejected() throws Exception {
+        //20,000 one-element lists inside each other: an IOException, not a StackOverflowError
+        byte[] payload = new byte[40_000];
+        for (int i = 0; i < payload.length; i += 2) {
+            payload[i] = 0x25;
+            payload[i + 1] = 1;
+        }
+        FrameCodec.decode(payload, 0, payload.length);
+    }
+}
@@ -132,6 +132,72 @@ public class AuthenticationTest {
         assertTrue(everyone.stream().anyMatch(u -> "charlie".equals(u.getUsername())));
     }
 
+    @Test
+    public void loginsDoNotReadTheFile() {
+        new File(TEST_CREDENTIALS_FILE).delete();
+
+        assertNotNull(auth.validateCredentials("alice", "password123"));
+        assertEquals(3, auth.getAllRegisteredUsers().size());
+    }
+
+    @Test
+    public void changedFileIsPickedUpByTheWatcher() throws Exception {
+        CredentialStore store = auth.getCredentialStore();
+        store.watch();
+        try {
+            try (FileWriter writer = new FileWriter(TEST_CREDENTIALS_FILE, true)) {
+                writer.write("dana,newpass,GENERAL\n");
+            }
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (auth.validateCredentials("dana", "newpass") == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertNotNull(auth.validateCredentials("dana", "newpass"));
+            assertNotNull(auth.validateCredentials("alice", "password123"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void racingLoginsForOneUserCreateOneSession() throws Exception {
+        int threads = 16;
+        java.util.concurrent.CountDownLatch start = new java.util.concurrent.CountDownLatch(1);
+        java.util.concurrent.atomic.AtomicInteger created = new java.util.concurrent.atomic.AtomicInteger();
+        List<Thread> racers = new java.util.ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread racer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (auth.createSession(auth.validateCredentials("alice", "password123")) != null) {
+                    created.incrementAndGet();
+                }
+            });
+            racer.start();
+            racers.add(racer);
+        }
+        start.countDown();
+        for (Thread racer : racers) {
+            racer.join();
+        }
+
+        assertEquals(1, created.get());
+        assertEquals(1, auth.activeSessionCount());
+    }
+
+    @Test
+    public void endedSessionCanBeEndedOnlyOnce() {
+        User alice = auth.validateCredentials("alice", "password123");
+        String sessionId = auth.createSession(alice);
+
+        assertTrue(auth.endSession(sessionId));
+        assertFalse(auth.endSession(sessionId));
+        assertNotNull(auth.createSession(alice));
+    }
+
     @Test
     public void sessionLookupByUserReturnsSession() {
         User alice = auth.validateCredentials("alice", "password123");
@@ -0,0 +1,94 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import common.Message;
+
+//History loads through the per-chat index vs. the full-file scan every load used to do.
+//Defaults keep the suite quick; the target case is -Dlogbench.megabytes=5120 -Dlogbench.chats=100000
+public class ChatLogIndexBenchmarkTest {
+
+    private static final long MEGABYTES = Long.getLong("logbench.megabytes", 64);
+    private static final int CHATS = Integer.getInteger("logbench.chats", 100_000);
+    private static final int LOADS = 200;
+
+    //the log and everything derived from it (sealed segments, .z, .idx, .search) live in here
+    private Path logDir;
+    private Logger logger;
+
+    @After
+    public void tearDown() throws IOException {
+        if (logger != null) {
+            logger.close();
+        }
+        if (logDir != null) {
+            try (java.util.stream.Stream<Path> files = Files.walk(logDir)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Test
+    public void indexedHistoryLoadBeatsFullScan() throws Exception {
+        logDir = Files.createTempDirectory("chat_log_bench");
+        File logFile = logDir.resolve("chat_log.txt").toFile();
+        long messages = writeLog(logFile, MEGABYTES * 1024 * 1024, CHATS);
+
+        logger = new Logger(logFile.getPath(), "unused_credentials.txt");
+        long start = System.nanoTime();
+        logger.buildIndex();
+        long indexNanos = System.nanoTime() - start;
+
+        //the old getMessagesForChat read every line of the file on each load
+        start = System.nanoTime();
+        long lines;
+        try (java.util.stream.Stream<String> all = Files.lines(logFile.toPath())) {
+            lines = all.filter(line -> line.startsWith("MESSAGE|")).count();
+        }
+        long scanNanos = System.nanoTime() - start;
+        assertEquals(messages, lines);
+
+        Random random = new Random(42);
+        for (int i = 0; i < LOADS; i++) {
+            logger.getMessagesForChat("chat-" + random.nextInt(CHATS));
+        }
+        long loaded = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < LOADS; i++) {
+            List<Message> history = logger.getMessagesForChat("chat-" + random.nextInt(CHATS));
+            loaded += history.size();
+        }
+        long loadNanos = (System.nanoTime() - start) / LOADS;
+
+        System.out.printf("%d MB log, %d messages in %d chats: index build %d ms, full scan %d ms, indexed load %d us (%d msgs avg)%n",
+                MEGABYTES, messages, CHATS, indexNanos / 1_000_000, scanNanos / 1_000_000, loadNanos / 1000, loaded / LOADS);
+        assertTrue("indexed load " + loadNanos + " ns vs scan " + scanNanos + " ns", loadNanos * 10 < scanNanos);
+    }
+
+    private static long writeLog(File file, long bytes, int chats) throws IOException {
+        Random random = new Random(7);
+        long written = 0;
+        long count = 0;
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            while (written < bytes) {
+                String line = "MESSAGE|" + java.util.UUID.randomUUID() + "|chat-" + random.nextInt(chats) + "|user" + random.nextInt(500)
+                        + "|2024-05-01T12:00:00.123456|message body number " + count + " with a bit of padding text\n";
+                out.write(line);
+                written += line.length();
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -6,6 +6,7 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.List;
 
+import common.ChatSession;
 import common.User;
 import common.UserRole;
 import common.Message;
@@ -231,6 +232,163 @@ public class ChatManagerTest {
         assertEquals(session.getChatID(), found.getChatID());
     }
 
+    @Test
+    public void sessionKeepsOnlyTheRecentMessages() {
+        ChatManager small = new ChatManager(log, 3);
+        ChatSession chat = small.createSession(pair(), false, "");
+        for (int i = 0; i < 5; i++) {
+            small.receiveMessage(new Message(chat.getChatID(), alice.getUserID(), "m" + i));
+        }
+
+        assertEquals(java.util.Arrays.asList("m2", "m3", "m4"), contents(chat.getMessages()));
+    }
+
+    @Test
+    public void recentPagesComeFromMemoryAndOlderPagesFromTheLog() {
+        ChatManager small = new ChatManager(log, 3);
+        ChatSession chat = small.createSession(pair(), false, "");
+        List<Message> sent = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Message message = new Message(chat.getChatID(), alice.getUserID(), "m" + i);
+            sent.add(message);
+            small.receiveMessage(message);
+        }
+
+        List<Message> newest = small.loadHistoryPage(chat.getChatID(), null, 2);
+        assertSame(sent.get(3), newest.get(0));
+        assertSame(sent.get(4), newest.get(1));
+
+        List<Message> older = small.loadHistoryPage(chat.getChatID(), sent.get(2).getMessageID(), 2);
+        assertEquals(java.util.Arrays.asList("m0", "m1"), contents(older));
+
+        //a manager that never saw the chat reads the same page from the log
+        assertEquals(java.util.Arrays.asList("m3", "m4"), contents(new ChatManager(log, 3).loadHistoryPage(chat.getChatID(), null, 2)));
+    }
+
+    @Test
+    public void newChatIsServedEntirelyFromMemory() {
+        ChatSession chat = manager.createSession(pair(), false, "");
+        Message hello = new Message(chat.getChatID(), alice.getUserID(), "Hello");
+        manager.receiveMessage(hello);
+
+        assertEquals(1, manager.loadHistoryPage(chat.getChatID(), null, 50).size());
+        assertSame(hello, manager.loadHistoryPage(chat.getChatID(), null, 50).get(0));
+        assertTrue(manager.loadHistoryPage(chat.getChatID(), hello.getMessageID(), 50).isEmpty());
+    }
+
+    @Test
+    public void userSessionsSurviveARestartAndStayPerUser() throws Exception {
+        java.io.File logFile = java.io.File.createTempFile("chat_log_sessions", ".txt");
+        java.io.File credentials = java.io.File.createTempFile("credentials_sessions", ".txt");
+        try {
+            try (java.io.FileWriter writer = new java.io.FileWriter(credentials)) {
+                writer.write("alice,pass1,GENERAL\nbob,pass2,ADMIN\ncharlie,pass3,GENERAL\n");
+            }
+            Logger logger = new Logger(logFile.getPath(), credentials.getPath());
+            ChatManager before = new ChatManager(logger);
+            ChatSession aliceBob = before.createSession(pair(), false, "");
+            List<User> bobCharlie = new ArrayList<>();
+            bobCharlie.add(bob);
+            bobCharlie.add(charlie);
+            ChatSession second = before.createSession(bobCharlie, false, "");
+
+            ChatManager restarted = new ChatManager(logger);
+            List<ChatSession> aliceChats = restarted.loadUserSessions(alice);
+            assertEquals(1, aliceChats.size());
+            assertEquals(aliceBob.getChatID(), aliceChats.get(0).getChatID());
+            List<ChatSession> bobChats = restarted.loadUserSessions(bob);
+            assertEquals(2, bobChats.size());
+            assertEquals(second.getChatID(), bobChats.get(1).getChatID());
+
+            List<User> aliceCharlie = new ArrayList<>();
+            aliceCharlie.add(alice);
+            aliceCharlie.add(charlie);
+            ChatSession third = restarted.createSession(aliceCharlie, false, "");
+            assertEquals(2, restarted.loadUserSessions(alice).size());
+            assertSame(third, restarted.loadUserSessions(charlie).get(1));
+            logger.close();
+        } finally {
+            logFile.delete();
+            credentials.delete();
+        }
+    }
+
+    private List<User> pair() {
+        List<User> people = new ArrayList<>();
+        people.add(alice);
+        people.add(bob);
+        return people;
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        List<String> contents = new ArrayList<>();
+        for (Message message : messages) {
+            contents.add(message.getContent());
+        }
+        return contents;
+    }
+
+    @Test
+    public void concurrentSendersInOneChatSeeOneOrder() throws Exception {
+        ChatManager roomy = new ChatManager(log, 1000);
+        ChatSession chat = roomy.createSession(pair(), false, "");
+        List<Thread> senders = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            String sender = t % 2 == 0 ? alice.getUserID() : bob.getUserID();
+            int thread = t;
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    roomy.receiveMessage(new Message(chat.getChatID(), sender, thread + "-" + i));
+                }
+            });
+            worker.start();
+            senders.add(worker);
+        }
+        for (Thread worker : senders) {
+            worker.join();
+        }
+
+        List<String> inMemory = new ArrayList<>();
+        for (Message message : chat.getMessages()) {
+            inMemory.add(message.getMessageID());
+        }
+        List<String> logged = new ArrayList<>();
+        for (Message message : log.getMessagesForChat(chat.getChatID())) {
+            logged.add(message.getMessageID());
+        }
+        assertEquals(800, inMemory.size());
+        assertEquals(inMemory, logged);
+    }
+
+    @Test
+    public void participantChangesKeepPrivateLookupInStep() {
+        ChatSession direct = manager.createSession(pair(), false, "");
+        assertTrue(manager.addParticipant(direct.getChatID(), charlie));
+        assertNull(manager.findExistingPrivateSession(pair()));
+        assertTrue(manager.loadUserSessions(charlie).contains(direct));
+
+        assertTrue(manager.removeParticipant(direct.getChatID(), charlie));
+        assertSame(direct, manager.findExistingPrivateSession(pair()));
+        assertFalse(manager.loadUserSessions(charlie).contains(direct));
+    }
+
+    @Test
+    public void groupShrunkToTwoBecomesTheirPrivateChat() {
+        List<User> trio = new ArrayList<>();
+        trio.add(alice);
+        trio.add(bob);
+        trio.add(charlie);
+        ChatSession group = manager.createSession(trio, true, "Trio");
+
+        List<User> bobCharlie = new ArrayList<>();
+        bobCharlie.add(charlie);
+        bobCharlie.add(bob);
+        assertNull(manager.findExistingPrivateSession(bobCharlie));
+
+        manager.removeParticipant(group.getChatID(), alice);
+        assertSame(group, manager.findExistingPrivateSession(bobCharlie));
+    }
+
     @Test
     public void findPrivateSessionReturnsNullWhenMissing() {
         List<User> pair = new ArrayList<>();
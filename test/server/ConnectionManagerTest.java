@@ -0,0 +1,153 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import common.ChatSession;
+import common.FrameCodec;
+import common.User;
+import common.UserRole;
+
+public class ConnectionManagerTest {
+
+    private ConnectionManager connections;
+    private ChatManager chats;
+    private File logFile;
+    private File credentials;
+    private Logger logger;
+    private User alice;
+    private User bob;
+    private User charlie;
+    private RecordingChannel aliceChannel;
+    private RecordingChannel bobChannel;
+    private RecordingChannel charlieChannel;
+
+    @Before
+    public void setUp() throws IOException {
+        connections = new ConnectionManager();
+        connections.startManager();
+        logFile = File.createTempFile("chat_log_connections", ".txt");
+        credentials = File.createTempFile("credentials_connections", ".txt");
+        logger = new Logger(logFile.getPath(), credentials.getPath());
+        chats = new ChatManager(logger);
+        chats.addMembershipListener(connections);
+
+        alice = new User("alice", "pass1", UserRole.GENERAL);
+        bob = new User("bob", "pass2", UserRole.GENERAL);
+        charlie = new User("charlie", "pass3", UserRole.GENERAL);
+        aliceChannel = new RecordingChannel();
+        bobChannel = new RecordingChannel();
+        charlieChannel = new RecordingChannel();
+    }
+
+    @After
+    public void tearDown() {
+        logger.close();
+        logFile.delete();
+        credentials.delete();
+    }
+
+    @Test
+    public void chatMessageReachesOnlineMembersButNotTheSender() throws Exception {
+        connections.registerClientChannel(alice, aliceChannel);
+        connections.registerClientChannel(bob, bobChannel);
+        ChatSession group = chats.createSession(Arrays.asList(alice, bob, charlie), true, "Trio");
+
+        assertEquals(1, connections.sendToChat(group.getChatID(), "alice", FrameCodec.encodeFrames("hello")));
+
+        awaitFrames(bobChannel, 1);
+        assertEquals(0, aliceChannel.frames());
+        assertEquals(0, charlieChannel.frames());
+    }
+
+    @Test
+    public void membersJoinAtLoginAndLeaveAtLogout() throws Exception {
+        connections.registerClientChannel(alice, aliceChannel);
+        ChatSession group = chats.createSession(Arrays.asList(alice, bob, charlie), true, "Trio");
+        assertEquals(0, connections.sendToChat(group.getChatID(), "alice", FrameCodec.encodeFrames("nobody else on")));
+
+        connections.registerClientChannel(charlie, charlieChannel);
+        connections.attachChats(charlie, chats.getChatIDsFor(charlie));
+        assertEquals(1, connections.sendToChat(group.getChatID(), "alice", FrameCodec.encodeFrames("charlie on")));
+
+        connections.disconnectClient(charlie);
+        assertEquals(0, connections.sendToChat(group.getChatID(), "alice", FrameCodec.encodeFrames("charlie gone")));
+    }
+
+    @Test
+    public void removedMemberStopsReceiving() throws Exception {
+        connections.registerClientChannel(alice, aliceChannel);
+        connections.registerClientChannel(bob, bobChannel);
+        ChatSession group = chats.createSession(Arrays.asList(alice, bob, charlie), true, "Trio");
+
+        chats.removeParticipant(group.getChatID(), bob);
+
+        assertEquals(0, connections.sendToChat(group.getChatID(), "alice", FrameCodec.encodeFrames("after removal")));
+        assertEquals(1, connections.sendToChat(group.getChatID(), "charlie", FrameCodec.encodeFrames("to alice")));
+    }
+
+    @Test
+    public void unknownChatDeliversNothing() throws Exception {
+        assertEquals(0, connections.sendToChat("nonexistent", "alice", FrameCodec.encodeFrames("lost")));
+    }
+
+    //The writer runs on a virtual thread, so wait for it to drain
+    private static void awaitFrames(RecordingChannel channel, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (channel.frames() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, channel.frames());
+    }
+
+    private static class RecordingChannel implements ClientChannel {
+        private final List<byte[]> written = new ArrayList<>();
+        private boolean open = true;
+
+        @Override
+        public synchronized void sendFrames(byte[]... frames) throws IOException {
+            written.addAll(Arrays.asList(frames));
+        }
+
+        synchronized int frames() {
+            return written.size();
+        }
+
+        @Override
+        public int pendingFrames() {
+            return 0;
+        }
+
+        @Override
+        public long pendingBytes() {
+            return 0;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        @Override
+        public void abort(byte[] finalFrame) {
+            open = false;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "test";
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.FrameCodec;
+import common.Message;
+
+public class ConnectionSoakTest {
+
+    //override with -Dsoaktest.messages=N
+    private static final int MESSAGES = Integer.getInteger("soaktest.messages", 1_000_000);
+    private static final int WARMUP = Math.min(100_000, MESSAGES / 10);
+
+    //a per-stream handle table keeping every message reachable would grow by hundreds of MB
+    private static final long MAX_HEAP_GROWTH = 8L * 1024 * 1024;
+
+    @Test
+    public void heapStaysFlatOverOneLongLivedConnection() throws Exception {
+        ExecutorService writer = Executors.newVirtualThreadPerTaskExecutor();
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                Socket client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+                Socket accepted = listener.accept()) {
+
+            OutboundQueue queue = new OutboundQueue(new SocketClientChannel(accepted), OutboundLimits.DEFAULT, writer);
+            AtomicLong received = new AtomicLong();
+            Thread reader = new Thread(() -> readAll(client, received));
+            reader.setDaemon(true);
+            reader.start();
+
+            long baseline = 0;
+            for (int i = 0; i < MESSAGES; i++) {
+                if (i == WARMUP) {
+                    awaitReceived(received, WARMUP);
+                    baseline = usedHeap();
+                }
+                //stay under the low watermark so the client is never evicted
+                while (queue.backlogFrames() > OutboundLimits.DEFAULT.getLowFrames()) {
+                    Thread.onSpinWait();
+                }
+                assertEquals(OutboundQueue.Result.QUEUED, queue.enqueue(new Message("chat-1", "ujas", "soak message " + i)));
+            }
+            awaitReceived(received, MESSAGES);
+            assertEquals(0, queue.backlogBytes());
+
+            long growth = usedHeap() - baseline;
+            System.out.println(MESSAGES + " messages over one connection, heap growth after warmup " + growth / 1024 + " KB");
+            assertTrue("heap grew " + growth + " bytes", growth < MAX_HEAP_GROWTH);
+        } finally {
+            writer.shutdownNow();
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void readAll(Socket socket, AtomicLong received) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                FrameCodec.readFrame(in);
+                received.incrementAndGet();
+            }
+        } catch (IOException e) {
+            //socket closed at the end of the test
+        }
+    }
+
+    private static void awaitReceived(AtomicLong received, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 120_000;
+        while (received.get() < count) {
+            assertTrue("only " + received.get() + " of " + count + " messages arrived", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
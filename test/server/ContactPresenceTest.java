@@ -0,0 +1,234 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.ChatSession;
+import common.FrameCodec;
+import common.User;
+import common.UserRole;
+
+public class ContactPresenceTest {
+
+    private ConnectionManager connections;
+    private ChatManager chats;
+    private File logFile;
+    private File credentials;
+    private Logger logger;
+    private Map<String, User> online;
+    private ContactPresence presence;
+    private User alice;
+    private User bob;
+    private User charlie;
+    private RecordingChannel aliceChannel;
+    private RecordingChannel bobChannel;
+    private RecordingChannel charlieChannel;
+
+    @Before
+    public void setUp() throws Exception {
+        connections = new ConnectionManager();
+        connections.startManager();
+        logFile = File.createTempFile("chat_log_presence", ".txt");
+        credentials = File.createTempFile("credentials_presence", ".txt");
+        logger = new Logger(logFile.getPath(), credentials.getPath());
+        chats = new ChatManager(logger);
+        online = new ConcurrentHashMap<>();
+        presence = new ContactPresence(chats, connections, online);
+        chats.addMembershipListener(presence);
+
+        alice = new User("alice", "pass1", UserRole.GENERAL);
+        bob = new User("bob", "pass2", UserRole.GENERAL);
+        charlie = new User("charlie", "pass3", UserRole.GENERAL);
+        aliceChannel = logIn(alice);
+        bobChannel = logIn(bob);
+        charlieChannel = logIn(charlie);
+    }
+
+    @After
+    public void tearDown() {
+        logger.close();
+        logFile.delete();
+        credentials.delete();
+    }
+
+    private RecordingChannel logIn(User user) {
+        RecordingChannel channel = new RecordingChannel();
+        connections.registerClientChannel(user, channel);
+        online.put(user.getUserID(), user);
+        return channel;
+    }
+
+    @Test
+    public void changesOnlyReachContacts() throws Exception {
+        User dave = new User("dave", "pass4", UserRole.GENERAL);
+        chats.createSession(Arrays.asList(alice, dave), false, null);
+        logIn(dave);
+
+        presence.onBatch(1, Arrays.asList(dave));
+
+        assertEquals(Arrays.asList("PRESENCE_DELTA:1", Arrays.asList(dave)), aliceChannel.await(2));
+        assertEquals(0, bobChannel.objects().size());
+        assertEquals(0, charlieChannel.objects().size());
+    }
+
+    @Test
+    public void eachRecipientCountsItsOwnVersions() throws Exception {
+        chats.createSession(Arrays.asList(alice, bob), false, null);
+        chats.createSession(Arrays.asList(alice, charlie), false, null);
+        int aliceBefore = aliceChannel.await(4).size();
+
+        presence.onBatch(7, Arrays.asList((Object) "bob"));
+        presence.onBatch(8, Arrays.asList((Object) "charlie"));
+
+        List<Object> received = aliceChannel.await(aliceBefore + 4);
+        assertEquals("PRESENCE_DELTA:3", received.get(aliceBefore));
+        assertEquals("PRESENCE_DELTA:4", received.get(aliceBefore + 2));
+        //bob only heard that alice was there, charlie's change isn't his business
+        assertEquals(Arrays.asList("PRESENCE_DELTA:1", Arrays.asList(alice)), bobChannel.await(2));
+    }
+
+    @Test
+    public void newChatMakesItsMembersVisibleToEachOther() throws Exception {
+        ChatSession group = chats.createSession(Arrays.asList(alice, bob, charlie), true, "Trio");
+        assertEquals(Arrays.asList("PRESENCE_DELTA:1", Arrays.asList(bob, charlie)), aliceChannel.await(2));
+
+        User dave = new User("dave", "pass4", UserRole.GENERAL);
+        RecordingChannel daveChannel = logIn(dave);
+        chats.addParticipant(group.getChatID(), dave);
+
+        assertEquals(Arrays.asList("PRESENCE_DELTA:1", Arrays.asList(alice, bob, charlie)), daveChannel.await(2));
+        assertEquals(Arrays.asList("PRESENCE_DELTA:1", Arrays.asList(alice, charlie), "PRESENCE_DELTA:2", Arrays.asList(dave)),
+                bobChannel.await(4));
+    }
+
+    @Test
+    public void leavingTheLastSharedChatDropsTheContact() throws Exception {
+        ChatSession group = chats.createSession(Arrays.asList(alice, bob, charlie), true, "Trio");
+        int bobBefore = bobChannel.await(2).size();
+
+        chats.removeParticipant(group.getChatID(), charlie);
+
+        List<Object> received = bobChannel.await(bobBefore + 2);
+        assertEquals(Arrays.asList("charlie"), received.get(bobBefore + 1));
+        assertFalse(chats.getContactIDs("bob").contains("charlie"));
+    }
+
+    @Test
+    public void snapshotListsOnlyContacts() throws Exception {
+        chats.createSession(Arrays.asList(alice, bob), false, null);
+        List<Object> snapshot = new ArrayList<>();
+
+        presence.snapshot(alice, Arrays.asList(alice, bob, charlie), (version, users) -> {
+            snapshot.add(version);
+            snapshot.add(users);
+        });
+
+        assertEquals(Arrays.asList(2L, Arrays.asList(bob)), snapshot);
+    }
+
+    @Test
+    public void loggingOutForgetsTheUsersVersion() throws Exception {
+        chats.createSession(Arrays.asList(alice, bob), false, null);
+        List<Object> snapshot = new ArrayList<>();
+        presence.snapshot(bob, Arrays.asList(alice, bob), (version, users) -> snapshot.add(version));
+
+        online.remove("bob");
+        presence.onBatch(2, Arrays.asList((Object) "bob"));
+        logIn(bob);
+        presence.snapshot(bob, Arrays.asList(alice, bob), (version, users) -> snapshot.add(version));
+
+        //bob was at version 2 before leaving; back online he starts over
+        assertEquals(Arrays.asList(2L, 1L), snapshot);
+    }
+
+    @Test
+    public void aBigBatchCostsEachUserOnlyTheirContacts() throws Exception {
+        //40 users in groups of 5: every user gets 4 changes instead of all 40
+        List<User> users = new ArrayList<>();
+        List<RecordingChannel> channels = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            User user = new User("member" + i, "pw", UserRole.GENERAL);
+            users.add(user);
+            channels.add(logIn(user));
+        }
+        for (int i = 0; i < 40; i += 5) {
+            chats.createSession(new ArrayList<>(users.subList(i, i + 5)), true, "Team " + i);
+        }
+        List<Integer> before = new ArrayList<>();
+        for (RecordingChannel channel : channels) {
+            before.add(channel.await(2).size());
+        }
+
+        presence.onBatch(1, new ArrayList<>(users));
+
+        for (int i = 0; i < channels.size(); i++) {
+            List<Object> received = channels.get(i).await(before.get(i) + 2);
+            assertEquals(4, ((List<?>) received.get(before.get(i) + 1)).size());
+        }
+    }
+
+    private static class RecordingChannel implements ClientChannel {
+        private final List<Object> objects = new ArrayList<>();
+        private boolean open = true;
+
+        @Override
+        public synchronized void sendFrames(byte[]... frames) throws IOException {
+            for (byte[] frame : frames) {
+                objects.add(FrameCodec.decode(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE));
+            }
+        }
+
+        synchronized List<Object> objects() {
+            return new ArrayList<>(objects);
+        }
+
+        //The writer runs on a virtual thread, so wait for it to drain
+        List<Object> await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (objects().size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(objects().size() >= count);
+            return objects();
+        }
+
+        @Override
+        public int pendingFrames() {
+            return 0;
+        }
+
+        @Override
+        public long pendingBytes() {
+            return 0;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        @Override
+        public void abort(byte[] finalFrame) {
+            open = false;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "test";
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.FrameCodec;
+import common.Message;
+
+//CPU per delivered group message: encoding per recipient vs encoding once and sharing the frame.
+//Writers run inline on the test thread, so thread CPU time covers encode, enqueue and drain.
+public class GroupFanOutBenchmarkTest {
+
+    private static final int[] GROUP_SIZES = {2, 50, 500};
+    private static final int DELIVERIES = 200_000;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void encodingOnceIsCheaperPerDelivery() throws Exception {
+        Message message = new Message(java.util.UUID.randomUUID().toString(), "ujas", "Standup moved to 10:30, same room");
+
+        double perTarget500 = 0;
+        double shared500 = 0;
+        for (int size : GROUP_SIZES) {
+            List<OutboundQueue> group = group(size);
+            int rounds = Math.max(1, DELIVERIES / size);
+
+            //warm up both paths before measuring
+            perTarget(group, message, rounds);
+            shared(group, message, rounds);
+
+            double perTarget = perTarget(group, message, rounds) / ((double) rounds * size);
+            double shared = shared(group, message, rounds) / ((double) rounds * size);
+            System.out.printf("group %3d: encode per target %6.0f ns/delivery, encode once %6.0f ns/delivery%n", size, perTarget, shared);
+            if (size == 500) {
+                perTarget500 = perTarget;
+                shared500 = shared;
+            }
+        }
+        assertTrue("sharing the frame should be cheaper for a 500 member group", shared500 < perTarget500);
+    }
+
+    private static long perTarget(List<OutboundQueue> group, Message message, int rounds) throws IOException {
+        long start = THREADS.getCurrentThreadCpuTime();
+        for (int r = 0; r < rounds; r++) {
+            for (OutboundQueue queue : group) {
+                queue.enqueue(message);
+            }
+        }
+        return THREADS.getCurrentThreadCpuTime() - start;
+    }
+
+    private static long shared(List<OutboundQueue> group, Message message, int rounds) throws IOException {
+        long start = THREADS.getCurrentThreadCpuTime();
+        for (int r = 0; r < rounds; r++) {
+            byte[] frame = FrameCodec.encode(message);
+            for (OutboundQueue queue : group) {
+                queue.enqueueFrames(frame);
+            }
+        }
+        return THREADS.getCurrentThreadCpuTime() - start;
+    }
+
+    private static List<OutboundQueue> group(int size) {
+        List<OutboundQueue> group = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            group.add(new OutboundQueue(new DiscardChannel(), OutboundLimits.DEFAULT, Runnable::run));
+        }
+        return group;
+    }
+
+    private static class DiscardChannel implements ClientChannel {
+        @Override
+        public void sendFrames(byte[]... frames) {
+        }
+
+        @Override
+        public int pendingFrames() {
+            return 0;
+        }
+
+        @Override
+        public long pendingBytes() {
+            return 0;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort(byte[] finalFrame) {
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "discard";
+        }
+    }
+}
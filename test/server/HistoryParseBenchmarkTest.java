@@ -0,0 +1,75 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.Message;
+
+//Garbage and time per history line: parsing straight from the log's bytes vs. the old path of
+//decoding the line, splitting it with a regex and running LocalDateTime.parse. Half the lines
+//belong to another chat, as when an index lookup lands on a neighbour's line.
+//-Dparsebench.lines=5000000 for a longer run
+public class HistoryParseBenchmarkTest {
+
+    private static final int LINES = Integer.getInteger("parsebench.lines", 200_000);
+
+    @Test
+    public void byteParserMakesFarLessGarbage() {
+        byte[][] lines = new byte[1000][];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = ("MESSAGE|" + java.util.UUID.randomUUID() + "|chat-" + (i % 2) + "|user" + i + "|"
+                    + LocalDateTime.of(2024, 5, 1, 12, 0).plusNanos(i * 123_456_789L) + "|message body number " + i + " with a bit of padding text")
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] chat = "chat-0".getBytes(StandardCharsets.UTF_8);
+
+        //warm both paths up first
+        run(lines, chat, true, LINES / 4);
+        run(lines, chat, false, LINES / 4);
+        long[] bytes = run(lines, chat, true, LINES);
+        long[] strings = run(lines, chat, false, LINES);
+
+        System.out.printf("%d lines: byte parser %d ms, %d bytes/line; string split %d ms, %d bytes/line%n",
+                LINES, bytes[0] / 1_000_000, bytes[1] / LINES, strings[0] / 1_000_000, strings[1] / LINES);
+        assertTrue("byte parser allocated " + bytes[1] + " vs " + strings[1], bytes[1] * 2 < strings[1]);
+    }
+
+    //{nanos, bytes allocated}
+    private static long[] run(byte[][] lines, byte[] chat, boolean fromBytes, int count) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        List<Message> kept = new ArrayList<>(count);
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            byte[] line = lines[i % lines.length];
+            Message msg = fromBytes ? LogLineParser.parseMessage(line, 0, line.length, chat) : parseString(line, "chat-0");
+            if (msg != null) {
+                kept.add(msg);
+            }
+            if (kept.size() == 10_000) {
+                kept.clear();
+            }
+        }
+        return new long[] {System.nanoTime() - start, threads.getThreadAllocatedBytes(thread) - allocated};
+    }
+
+    //How Logger parsed history lines before
+    private static Message parseString(byte[] bytes, String chatID) {
+        String line = new String(bytes, StandardCharsets.UTF_8);
+        if (!line.startsWith("MESSAGE|")) {
+            return null;
+        }
+        String[] parts = line.substring(8).split("\\|");
+        if (parts.length < 5) {
+            return null;
+        }
+        Message msg = new Message(parts[0], parts[1], parts[2], LocalDateTime.parse(parts[3]), parts[4].replace("/", "|"));
+        return chatID.equals(msg.getChatID()) ? msg : null;
+    }
+}
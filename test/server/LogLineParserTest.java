@@ -0,0 +1,64 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+
+import common.Message;
+
+public class LogLineParserTest {
+
+    private static final byte[] CHAT = "chatA".getBytes(StandardCharsets.UTF_8);
+
+    private static Message parse(String line, byte[] chatID) {
+        //padded on both sides so offsets other than 0 are exercised
+        byte[] bytes = ("xx" + line + "\nyy").getBytes(StandardCharsets.UTF_8);
+        int end = bytes.length - 3;
+        return LogLineParser.parseMessage(bytes, 2, end, chatID);
+    }
+
+    @Test
+    public void parsesEveryFieldOfAMessageLine() {
+        Message msg = parse("MESSAGE|m1|chatA|alice|2025-12-01T09:30:15.250|café a/b", CHAT);
+        assertEquals("m1", msg.getMessageID());
+        assertEquals("chatA", msg.getChatID());
+        assertEquals("alice", msg.getSenderID());
+        assertEquals(LocalDateTime.of(2025, 12, 1, 9, 30, 15, 250_000_000), msg.getTimeStamp());
+        assertEquals("café a|b", msg.getContent());
+    }
+
+    @Test
+    public void readsEveryTimestampShapeLocalDateTimeWrites() {
+        LocalDateTime[] times = {
+            LocalDateTime.of(2025, 1, 2, 3, 4),
+            LocalDateTime.of(2025, 1, 2, 3, 4, 5),
+            LocalDateTime.of(2025, 1, 2, 3, 4, 5, 100_000_000),
+            LocalDateTime.of(2025, 1, 2, 3, 4, 5, 123_456_000),
+            LocalDateTime.of(2025, 1, 2, 3, 4, 5, 123_456_789),
+            LocalDateTime.of(2025, 1, 2, 3, 4, 0, 7),
+        };
+        for (LocalDateTime time : times) {
+            byte[] text = time.toString().getBytes(StandardCharsets.US_ASCII);
+            assertEquals(time, LogLineParser.parseTime(text, 0, text.length));
+        }
+        byte[] longYear = "+12025-01-02T03:04".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(LocalDateTime.of(12025, 1, 2, 3, 4), LogLineParser.parseTime(longYear, 0, longYear.length));
+    }
+
+    @Test(expected = DateTimeParseException.class)
+    public void aBadTimestampFailsLikeLocalDateTimeParse() {
+        parse("MESSAGE|m1|chatA|alice|2025-13-01T09:00|hi", CHAT);
+    }
+
+    @Test
+    public void otherChatsAndOtherRecordsGiveNull() {
+        assertNull(parse("MESSAGE|m1|chatB|alice|2025-12-01T09:00|hi", CHAT));
+        assertNull(parse("MESSAGE|m1|chatAB|alice|2025-12-01T09:00|hi", CHAT));
+        assertNull(parse("SESSION|chatA|2025-12-01T09:00|false|alice,bob|", CHAT));
+        assertNull(parse("MESSAGE|m1|chatA|alice", CHAT));
+        assertEquals("hi", parse("MESSAGE|m1|chatB|alice|2025-12-01T09:00|hi", null).getContent());
+        assertEquals("", parse("MESSAGE|m1|chatA|alice|2025-12-01T09:00|", CHAT).getContent());
+    }
+}
@@ -8,6 +8,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
+import common.ChatSession;
+import common.LogFilter;
 import common.Message;
 import common.User;
 import common.UserRole;
@@ -150,4 +152,243 @@ public class LoggerTest {
         List<String> charlieSessions = logWriter.filterSessionsByUser("charlie");
         assertEquals(1, charlieSessions.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void concurrentAppendsAreAllRecordedInOrderPerWriter() throws Exception {
+        int writers = 8;
+        int perWriter = 500;
+        Thread[] threads = new Thread[writers];
+        for (int w = 0; w < writers; w++) {
+            String chat = "chat" + w;
+            threads[w] = new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    logWriter.logMessage(new Message(chat, "sender", "m" + i));
+                }
+            });
+            threads[w].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int w = 0; w < writers; w++) {
+            List<Message> history = logWriter.getMessagesForChat("chat" + w);
+            assertEquals(perWriter, history.size());
+            for (int i = 0; i < perWriter; i++) {
+                assertEquals("m" + i, history.get(i).getContent());
+            }
+        }
+    }
+
+    @Test
+    public void awaitDurableWritesThePendingBatch() throws Exception {
+        //flush interval long enough that only awaitDurable can have written the record
+        Logger slow = new Logger(TEST_LOG_FILE, TEST_CREDENTIALS_FILE, 60_000, 1000, false);
+        long seq = slow.logMessage(new Message("chat123", "sender1", "durable"));
+        assertFalse(fileText().contains("durable"));
+
+        assertTrue(slow.awaitDurable(seq));
+        assertTrue(fileText().contains("durable"));
+        slow.close();
+    }
+
+    @Test
+    public void aFailedWriteKeepsTheBatchAndIsNotReportedDurable() throws Exception {
+        //the log's directory doesn't exist yet, so the first write fails
+        File dir = new File("test_missing_log_dir");
+        File log = new File(dir, "chat_log.txt");
+        Logger failing = new Logger(log.getPath(), TEST_CREDENTIALS_FILE, 60_000, 1000, false);
+        try {
+            long first = failing.logMessage(new Message("chat123", "sender1", "while failing"));
+            assertFalse(failing.awaitDurable(first));
+
+            assertTrue(dir.mkdir());
+            long second = failing.logMessage(new Message("chat123", "sender1", "after recovery"));
+            assertTrue(failing.awaitDurable(second));
+            assertTrue(failing.awaitDurable(first));
+
+            List<Message> history = failing.getMessagesForChat("chat123");
+            assertEquals(2, history.size());
+            assertEquals("while failing", history.get(0).getContent());
+            assertEquals("after recovery", history.get(1).getContent());
+        } finally {
+            failing.close();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void fullBatchIsFlushedWithoutWaitingForTheInterval() throws Exception {
+        Logger batched = new Logger(TEST_LOG_FILE, TEST_CREDENTIALS_FILE, 60_000, 4, false);
+        for (int i = 0; i < 4; i++) {
+            batched.logMessage(new Message("chat123", "sender1", "batched" + i));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!fileText().contains("batched3") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(fileText().contains("batched3"));
+        batched.close();
+    }
+
+    @Test
+    public void closeWritesPendingRecords() throws Exception {
+        Logger closing = new Logger(TEST_LOG_FILE, TEST_CREDENTIALS_FILE, 60_000, 1000, true);
+        closing.logSession(new ChatSession(new java.util.ArrayList<>(), false, "Closing"));
+        closing.close();
+
+        assertTrue(fileText().contains("Closing"));
+    }
+
+    @Test
+    public void existingLogIsIndexedAndAppendsExtendIt() throws Exception {
+        try (java.io.Writer out = new java.io.OutputStreamWriter(new java.io.FileOutputStream(TEST_LOG_FILE), java.nio.charset.StandardCharsets.UTF_8)) {
+            out.write("SESSION|chatA|2024-01-01T10:00|false|alice,bob|\n");
+            out.write("MESSAGE|m1|chatA|alice|2024-01-01T10:00:01|héllo wörld\n");
+            out.write("MESSAGE|m2|chatB|bob|2024-01-01T10:00:02|other chat\n");
+            out.write("MESSAGE|m3|chatA|bob|2024-01-01T10:00:03|a/b\n");
+        }
+        Logger reopened = new Logger(TEST_LOG_FILE, TEST_CREDENTIALS_FILE);
+        reopened.buildIndex();
+        reopened.logMessage(new Message("chatA", "alice", "after restart"));
+
+        List<Message> chatA = reopened.getMessagesForChat("chatA");
+        assertEquals(3, chatA.size());
+        assertEquals("héllo wörld", chatA.get(0).getContent());
+        assertEquals("a|b", chatA.get(1).getContent());
+        assertEquals("after restart", chatA.get(2).getContent());
+        assertEquals(1, reopened.getMessagesForChat("chatB").size());
+
+        reopened.logSession(new ChatSession("chatC", new java.util.ArrayList<>(), false, "Later"));
+        List<String> sessions = reopened.readAllSessions();
+        assertEquals(2, sessions.size());
+        assertTrue(sessions.get(0).startsWith("chatA|"));
+        assertTrue(sessions.get(1).startsWith("chatC|"));
+        reopened.close();
+    }
+
+    @Test
+    public void linesLongerThanTheReadWindowComeBackWhole() throws IOException {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 200_000; i++) {
+            big.append((char) ('a' + i % 26));
+        }
+        logWriter.logMessage(new Message("chat123", "sender1", "short"));
+        logWriter.logMessage(new Message("chat123", "sender1", big.toString()));
+        logWriter.logMessage(new Message("chat123", "sender1", "after"));
+
+        List<Message> history = logWriter.getMessagesForChat("chat123");
+        assertEquals(3, history.size());
+        assertEquals(big.toString(), history.get(1).getContent());
+        assertEquals("after", history.get(2).getContent());
+    }
+
+    @Test
+    public void historyPagesWalkBackFromTheNewestMessage() throws IOException {
+        for (int i = 0; i < 7; i++) {
+            logWriter.logMessage(new Message("chat123", "sender1", "m" + i));
+            logWriter.logMessage(new Message("chat456", "sender2", "other" + i));
+        }
+
+        List<Message> newest = logWriter.getMessagePage("chat123", null, 3);
+        assertEquals(java.util.Arrays.asList("m4", "m5", "m6"), contents(newest));
+
+        List<Message> older = logWriter.getMessagePage("chat123", newest.get(0).getMessageID(), 3);
+        assertEquals(java.util.Arrays.asList("m1", "m2", "m3"), contents(older));
+
+        List<Message> oldest = logWriter.getMessagePage("chat123", older.get(0).getMessageID(), 3);
+        assertEquals(java.util.Arrays.asList("m0"), contents(oldest));
+
+        assertTrue(logWriter.getMessagePage("chat123", oldest.get(0).getMessageID(), 3).isEmpty());
+        assertTrue(logWriter.getMessagePage("chat123", "no-such-message", 3).isEmpty());
+        assertTrue(logWriter.getMessagePage("nonexistent", null, 3).isEmpty());
+    }
+
+    @Test
+    public void logPagesWalkForwardThroughTheWholeLog() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            logWriter.logMessage(new Message("chat123", "sender1", "m" + i));
+        }
+
+        List<String> seen = new java.util.ArrayList<>();
+        long offset = 0;
+        int pages = 0;
+        while (offset >= 0) {
+            Logger.LogPage page = logWriter.readLogPage(offset, 4, LogFilter.ALL);
+            assertEquals(offset, page.getOffset());
+            assertTrue(page.getLines().size() <= 4);
+            seen.addAll(page.getLines());
+            offset = page.getNextOffset();
+            pages++;
+        }
+
+        assertEquals(3, pages);
+        assertEquals(10, seen.size());
+        assertTrue(seen.get(0).endsWith("|m0"));
+        assertTrue(seen.get(9).endsWith("|m9"));
+        assertTrue(logWriter.readLogPage(fileText().length(), 4, LogFilter.ALL).getLines().isEmpty());
+    }
+
+    @Test
+    public void logPagesFilterByChatUserAndTime() throws IOException {
+        java.time.LocalDateTime noon = java.time.LocalDateTime.of(2024, 1, 1, 12, 0);
+        logWriter.logMessage(new Message("m1", "chat123", "alice", noon, "early"));
+        logWriter.logMessage(new Message("m2", "chat456", "alice", noon.plusHours(1), "other chat"));
+        logWriter.logMessage(new Message("m3", "chat123", "bob", noon.plusHours(2), "from bob"));
+        logWriter.logMessage(new Message("m4", "chat123", "alice", noon.plusHours(3), "late"));
+
+        assertEquals(3, logWriter.readLogPage(0, 100, new LogFilter("chat123", null, null, null)).getLines().size());
+        assertEquals(3, logWriter.readLogPage(0, 100, new LogFilter(null, "alice", null, null)).getLines().size());
+
+        LogFilter window = new LogFilter("chat123", "alice", noon.plusMinutes(30), noon.plusHours(4));
+        List<String> lines = logWriter.readLogPage(0, 100, window).getLines();
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).endsWith("|late"));
+
+        //the filter travels as command arguments
+        LogFilter copy = LogFilter.parse(window.toArguments());
+        assertEquals("chat123", copy.getChatID());
+        assertEquals("alice", copy.getUserID());
+        assertEquals(noon.plusMinutes(30), copy.getFrom());
+        assertEquals(noon.plusHours(4), copy.getTo());
+        assertTrue(LogFilter.parse(LogFilter.ALL.toArguments()).isEmpty());
+    }
+
+    @Test
+    public void searchFindsLoggedMessagesInTheGivenChats() throws IOException {
+        logWriter.logMessage(new Message("chat123", "alice", "budget review at three"));
+        logWriter.attachSearchIndex(new SearchIndex(TEST_LOG_FILE + ".search"));
+        //logged after the index is attached and not yet written: searching writes it first
+        logWriter.logMessage(new Message("chat456", "bob", "Budget approved"));
+        logWriter.logMessage(new Message("chat123", "bob", "see you then"));
+
+        Logger.SearchPage all = logWriter.searchMessages("budget", null, 0, 10);
+        assertEquals(2, all.getTotal());
+        assertEquals(2, all.getMessages().size());
+
+        Logger.SearchPage mine = logWriter.searchMessages("budget", new java.util.HashSet<>(java.util.Arrays.asList("chat123")), 0, 10);
+        assertEquals(1, mine.getTotal());
+        assertEquals("budget review at three", mine.getMessages().get(0).getContent());
+        assertEquals("alice", mine.getMessages().get(0).getSenderID());
+        new File(TEST_LOG_FILE + ".search").delete();
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        List<String> contents = new java.util.ArrayList<>();
+        for (Message message : messages) {
+            contents.add(message.getContent());
+        }
+        return contents;
+    }
+
+    private String fileText() throws IOException {
+        return new String(java.nio.file.Files.readAllBytes(new File(TEST_LOG_FILE).toPath()), java.nio.charset.StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,114 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.List;
+
+//A login storm against 100k registered users: the in-memory credential index vs. the
+//per-login scan of credentials.txt that validateCredentials used to do.
+public class LoginStormBenchmarkTest {
+
+    private static final int USERS = Integer.getInteger("loginbench.users", 100_000);
+    private static final int LOGINS = Integer.getInteger("loginbench.logins", 400_000);
+    private static final int SCANNED_LOGINS = 200;
+    private static final int THREADS = 8;
+
+    private File credentials;
+
+    @After
+    public void tearDown() {
+        if (credentials != null) {
+            credentials.delete();
+        }
+    }
+
+    @Test
+    public void indexedLoginsBeatScanningTheFile() throws Exception {
+        credentials = File.createTempFile("credentials_bench", ".txt");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(credentials))) {
+            for (int i = 0; i < USERS; i++) {
+                out.write("user" + i + ",pass" + i + "," + (i % 50 == 0 ? "ADMIN" : "GENERAL") + "\n");
+            }
+        }
+
+        long start = System.nanoTime();
+        Authentication auth = new Authentication(credentials.getPath());
+        long loadNanos = System.nanoTime() - start;
+        assertEquals(USERS, auth.getAllRegisteredUsers().size());
+
+        //warm up, then the storm: every thread logs in random users, one in ten with a wrong password
+        storm(auth, LOGINS / 4);
+        start = System.nanoTime();
+        long accepted = storm(auth, LOGINS);
+        long stormNanos = System.nanoTime() - start;
+        assertEquals(LOGINS - LOGINS / 10, accepted);
+
+        Random random = new Random(3);
+        start = System.nanoTime();
+        for (int i = 0; i < SCANNED_LOGINS; i++) {
+            int user = random.nextInt(USERS);
+            assertTrue(scanForLogin(credentials, "user" + user, "pass" + user));
+        }
+        long scanNanos = (System.nanoTime() - start) / SCANNED_LOGINS;
+
+        double perLogin = (double) stormNanos / LOGINS;
+        System.out.printf("%d users: index load %d ms, %d logins on %d threads in %d ms (%.0f ns/login wall), file scan %d us/login%n",
+                USERS, loadNanos / 1_000_000, LOGINS, THREADS, stormNanos / 1_000_000, perLogin, scanNanos / 1000);
+        assertTrue("indexed login " + perLogin + " ns vs scan " + scanNanos + " ns", perLogin * 100 < scanNanos);
+    }
+
+    private static long storm(Authentication auth, int logins) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Long>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int seed = t;
+                results.add(pool.submit(() -> {
+                    Random random = new Random(seed);
+                    long accepted = 0;
+                    for (int i = seed; i < logins; i += THREADS) {
+                        int user = random.nextInt(USERS);
+                        String password = i % 10 == 0 ? "wrong" : "pass" + user;
+                        if (auth.validateCredentials("user" + user, password) != null) {
+                            accepted++;
+                        }
+                    }
+                    return accepted;
+                }));
+            }
+            long accepted = 0;
+            for (Future<Long> result : results) {
+                accepted += result.get();
+            }
+            return accepted;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    //what every login used to cost, minus the debug printing
+    private static boolean scanForLogin(File file, String username, String password) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length >= 3 && parts[0].trim().equals(username) && parts[1].trim().equals(password)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,125 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.Message;
+import common.User;
+import common.UserRole;
+
+//Messages per second through ChatManager.receiveMessage with 1..N sender threads, each writing to
+//its own set of chats: per-chat lock stripes vs. one lock around every receive, as it used to be.
+//Throughput should grow with threads up to the core count; the scaling check needs 4+ cores.
+public class MultiChatThroughputBenchmarkTest {
+
+    private static final int CHATS = 256;
+    private static final int MESSAGES = Integer.getInteger("chatbench.messages", 400_000);
+    //small segments, so sealing and background compression stay a sliver of the run next to the locking it measures
+    private static final long SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    //the log and everything derived from it (sealed segments, .z, .idx, .search) live in here
+    private Path logDir;
+    private Logger logger;
+
+    @After
+    public void tearDown() throws IOException {
+        if (logger != null) {
+            logger.close();
+        }
+        if (logDir != null) {
+            try (java.util.stream.Stream<Path> files = Files.walk(logDir)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Test
+    public void stripedReceiveScalesWithThreads() throws Exception {
+        logDir = Files.createTempDirectory("chat_log_throughput");
+        logger = new Logger(logDir.resolve("chat_log.txt").toString(), "unused_credentials.txt", 5, 256, false, SEGMENT_BYTES);
+        ChatManager manager = new ChatManager(logger);
+        List<User> pair = new ArrayList<>();
+        pair.add(new User("alice", "p", UserRole.GENERAL));
+        pair.add(new User("bob", "p", UserRole.GENERAL));
+        List<String> chats = new ArrayList<>();
+        for (int i = 0; i < CHATS; i++) {
+            chats.add(manager.createSession(pair, true, "room" + i).getChatID());
+        }
+
+        ReentrantLock global = new ReentrantLock();
+        Receiver striped = manager::receiveMessage;
+        Receiver oneLock = message -> {
+            global.lock();
+            try {
+                manager.receiveMessage(message);
+            } finally {
+                global.unlock();
+            }
+        };
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        run(striped, chats, cores, MESSAGES / 4);
+        double single = 0;
+        double widest = 0;
+        for (int threads = 1; threads <= Math.max(2, cores); threads *= 2) {
+            double stripedRate = run(striped, chats, threads, MESSAGES);
+            double oneLockRate = run(oneLock, chats, threads, MESSAGES);
+            System.out.printf("%2d threads: striped %,9.0f msg/s, one lock %,9.0f msg/s%n", threads, stripedRate, oneLockRate);
+            if (threads == 1) {
+                single = stripedRate;
+            }
+            widest = stripedRate;
+        }
+
+        assertTrue(single > 0);
+        if (cores >= 4) {
+            assertTrue("striped " + widest + " msg/s on " + cores + " threads vs " + single + " on one", widest > single * 1.5);
+        }
+    }
+
+    //Each thread sends its share round-robin over the chats with index == thread mod threads
+    private static double run(Receiver receiver, List<String> chats, int threads, int messages) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                int chat = first;
+                for (int i = 0; i < messages / threads; i++) {
+                    receiver.receive(new Message(chats.get(chat), "alice", "message " + i));
+                    chat += threads;
+                    if (chat >= chats.size()) {
+                        chat = first;
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (messages / threads) * threads / ((System.nanoTime() - begin) / 1e9);
+    }
+
+    private interface Receiver {
+        void receive(Message message);
+    }
+}
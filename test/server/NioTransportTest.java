@@ -0,0 +1,218 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import common.FrameCodec;
+
+public class NioTransportTest {
+
+    private NioTransport transport;
+    private int port;
+
+    @After
+    public void tearDown() {
+        if (transport != null) {
+            transport.shutdown();
+        }
+    }
+
+    private void start(Consumer<Object> onFrame, Runnable onDisconnect) throws IOException {
+        start(onFrame, onDisconnect, FrameCodec.MAX_FRAME_SIZE);
+    }
+
+    //One event loop, so both tests' connections share it
+    private void start(Consumer<Object> onFrame, Runnable onDisconnect, int maxFrameSize) throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        transport = new NioTransport(port, 1, channel -> new NioTransport.ConnectionHandler() {
+            @Override
+            public void onFrame(Object frame) {
+                onFrame.accept(frame);
+            }
+
+            @Override
+            public void onDisconnect() {
+                onDisconnect.run();
+            }
+
+            @Override
+            public int maxFrameSize() {
+                return maxFrameSize;
+            }
+        });
+        Thread server = new Thread(() -> {
+            try {
+                transport.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+    }
+
+    private Socket connect() throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket(InetAddress.getLoopbackAddress(), port);
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    @Test
+    public void aSlowHandlerDoesNotStallOtherConnectionsOnTheLoop() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch pinged = new CountDownLatch(1);
+        start(frame -> {
+            if ("SLOW".equals(frame)) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if ("PING".equals(frame)) {
+                pinged.countDown();
+            }
+        }, () -> { });
+
+        try (Socket slow = connect(); Socket other = connect()) {
+            FrameCodec.writeFrame(new DataOutputStream(slow.getOutputStream()), "SLOW");
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            FrameCodec.writeFrame(new DataOutputStream(other.getOutputStream()), "PING");
+            assertTrue("the other connection waited for the slow handler", pinged.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void anUndecodableFrameDropsOnlyThatConnection() throws Exception {
+        CountDownLatch disconnected = new CountDownLatch(1);
+        CountDownLatch pinged = new CountDownLatch(1);
+        start(frame -> {
+            if ("PING".equals(frame)) {
+                pinged.countDown();
+            }
+        }, disconnected::countDown);
+
+        try (Socket bad = connect(); Socket other = connect()) {
+            DataOutputStream out = new DataOutputStream(bad.getOutputStream());
+            out.writeInt(1);
+            out.writeByte(0x7F);
+            out.flush();
+            assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+            assertEquals(-1, bad.getInputStream().read());
+
+            FrameCodec.writeFrame(new DataOutputStream(other.getOutputStream()), "PING");
+            assertTrue("the loop stopped serving its other connections", pinged.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void aFrameOverTheHandlersCapDropsTheConnection() throws Exception {
+        CountDownLatch disconnected = new CountDownLatch(1);
+        List<Object> seen = Collections.synchronizedList(new ArrayList<>());
+        start(seen::add, disconnected::countDown, FrameCodec.MAX_LOGIN_FRAME_SIZE);
+
+        try (Socket client = connect()) {
+            //only the header of a 16 MB frame: refused before anything is buffered for it
+            new DataOutputStream(client.getOutputStream()).writeInt(FrameCodec.MAX_FRAME_SIZE);
+            assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+            assertEquals(-1, client.getInputStream().read());
+        }
+        assertTrue(seen.isEmpty());
+    }
+
+    @Test
+    public void largeAndSmallFramesArriveWholeAndInOrder() throws Exception {
+        char[] big = new char[1_000_000];
+        Arrays.fill(big, 'b');
+        List<Object> seen = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        start(frame -> {
+            seen.add(frame);
+            if ("LAST".equals(frame)) {
+                done.countDown();
+            }
+        }, () -> { });
+
+        try (Socket client = connect()) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+            FrameCodec.writeFrame(out, "FIRST");
+            FrameCodec.writeFrame(out, new String(big));
+            FrameCodec.writeFrame(out, "SMALL");
+            FrameCodec.writeFrame(out, new String(big, 0, 20_000));
+            FrameCodec.writeFrame(out, "LAST");
+            out.flush();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+        assertEquals(Arrays.asList("FIRST", new String(big), "SMALL", new String(big, 0, 20_000), "LAST"), seen);
+    }
+
+    @Test
+    public void oneConnectionsFramesRunInOrderOneAtATimeThenDisconnect() throws Exception {
+        int frames = 2000;
+        List<Object> seen = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch disconnected = new CountDownLatch(1);
+        start(frame -> {
+            if (running.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            //slow enough that more than a read pause's worth of frames queues up
+            if (seen.size() % 100 == 0) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            seen.add(frame);
+            running.decrementAndGet();
+        }, () -> {
+            seen.add("DISCONNECT");
+            disconnected.countDown();
+        });
+
+        try (Socket client = connect()) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+            for (int i = 0; i < frames; i++) {
+                FrameCodec.writeFrame(out, "F" + i);
+            }
+            out.flush();
+            client.shutdownOutput();
+            assertTrue(disconnected.await(10, TimeUnit.SECONDS));
+        }
+        assertEquals(0, overlaps.get());
+        assertEquals(frames + 1, seen.size());
+        for (int i = 0; i < frames; i++) {
+            assertEquals("F" + i, seen.get(i));
+        }
+        assertEquals("DISCONNECT", seen.get(frames));
+    }
+}
@@ -0,0 +1,196 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import common.FrameCodec;
+
+public class OutboundQueueTest {
+
+    //shed presence past 2 frames, evict past 4
+    private static final OutboundLimits SMALL = new OutboundLimits(2, 1L << 20, 4, 1L << 20);
+
+    private RecordingChannel channel;
+    private List<Runnable> writerTasks;
+
+    @Before
+    public void setUp() {
+        channel = new RecordingChannel();
+        writerTasks = new ArrayList<>();
+    }
+
+    //Writer tasks only run when the test says so
+    private OutboundQueue heldQueue(OutboundLimits limits) {
+        return new OutboundQueue(channel, limits, writerTasks::add);
+    }
+
+    private void runWriter() {
+        List<Runnable> tasks = new ArrayList<>(writerTasks);
+        writerTasks.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void framesAreWrittenInOrder() throws Exception {
+        OutboundQueue queue = new OutboundQueue(channel, OutboundLimits.DEFAULT, Runnable::run);
+        queue.enqueue("USER_LIST_UPDATE", "users");
+        queue.enqueue("second");
+
+        assertEquals(Arrays.asList("USER_LIST_UPDATE", "users", "second"), channel.written());
+    }
+
+    @Test
+    public void pendingFramesAreCoalescedIntoOneSend() throws Exception {
+        OutboundQueue queue = heldQueue(OutboundLimits.DEFAULT);
+        queue.enqueue("a");
+        queue.enqueue("b", "c");
+        queue.enqueue("d");
+
+        assertEquals("only one drain is scheduled", 1, writerTasks.size());
+        assertEquals(4, queue.queuedFrames());
+        runWriter();
+
+        assertEquals(1, channel.sends.size());
+        assertEquals(Arrays.asList("a", "b", "c", "d"), channel.written());
+        assertEquals(0, queue.queuedFrames());
+        assertEquals(0, queue.queuedBytes());
+    }
+
+    @Test
+    public void preEncodedFrameIsSharedAcrossQueues() throws Exception {
+        RecordingChannel other = new RecordingChannel();
+        byte[] frame = FrameCodec.encode("group message");
+        new OutboundQueue(channel, OutboundLimits.DEFAULT, Runnable::run).enqueueFrames(frame);
+        new OutboundQueue(other, OutboundLimits.DEFAULT, Runnable::run).enqueueFrames(frame);
+
+        assertSame(frame, channel.sends.get(0)[0]);
+        assertSame(frame, other.sends.get(0)[0]);
+        assertEquals(Arrays.asList("group message"), other.written());
+    }
+
+    @Test
+    public void presenceIsShedPastLowWatermark() throws Exception {
+        OutboundQueue queue = heldQueue(SMALL);
+        assertEquals(OutboundQueue.Result.QUEUED, queue.enqueue("m1"));
+        assertEquals(OutboundQueue.Result.QUEUED, queue.enqueue("m2"));
+
+        assertEquals(OutboundQueue.Result.DROPPED, queue.enqueueDroppable("USER_LIST_UPDATE"));
+        assertEquals(OutboundQueue.Result.QUEUED, queue.enqueue("m3"));
+
+        runWriter();
+        assertEquals(OutboundQueue.Result.QUEUED, queue.enqueueDroppable("USER_LIST_UPDATE"));
+    }
+
+    @Test
+    public void slowConsumerIsEvictedPastHighWatermark() throws Exception {
+        OutboundQueue queue = heldQueue(SMALL);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(OutboundQueue.Result.QUEUED, queue.enqueue("m" + i));
+        }
+
+        assertEquals(OutboundQueue.Result.EVICTED, queue.enqueue("one too many"));
+        assertTrue(queue.isClosed());
+        assertEquals("DISCONNECT:SLOW_CONSUMER", FrameCodec.decode(channel.abortFrame, FrameCodec.HEADER_SIZE, channel.abortFrame.length - FrameCodec.HEADER_SIZE));
+        assertEquals(OutboundQueue.Result.CLOSED, queue.enqueue("after"));
+    }
+
+    @Test
+    public void transportBacklogCountsTowardWatermarks() throws Exception {
+        OutboundQueue queue = heldQueue(SMALL);
+        channel.backlogFrames = 2;
+
+        assertEquals(OutboundQueue.Result.DROPPED, queue.enqueueDroppable("USER_LIST_UPDATE"));
+        channel.backlogFrames = 10;
+        assertEquals(OutboundQueue.Result.EVICTED, queue.enqueue("m"));
+    }
+
+    @Test
+    public void closeFlushesQueuedFramesFirst() throws Exception {
+        OutboundQueue queue = heldQueue(OutboundLimits.DEFAULT);
+        queue.enqueue("LOGOUT_SUCCESS");
+        queue.close();
+
+        assertEquals(OutboundQueue.Result.CLOSED, queue.enqueue("late"));
+        assertTrue(channel.isOpen());
+
+        runWriter();
+        assertEquals(Arrays.asList("LOGOUT_SUCCESS"), channel.written());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void failedWriteClosesQueue() throws Exception {
+        OutboundQueue queue = new OutboundQueue(channel, OutboundLimits.DEFAULT, Runnable::run);
+        channel.failWrites = true;
+
+        queue.enqueue("lost");
+
+        assertTrue(queue.isClosed());
+        assertFalse(channel.isOpen());
+        assertEquals(OutboundQueue.Result.CLOSED, queue.enqueue("after"));
+    }
+
+    private static class RecordingChannel implements ClientChannel {
+        private final List<byte[][]> sends = new ArrayList<>();
+        private boolean open = true;
+        private boolean failWrites;
+        private int backlogFrames;
+        private byte[] abortFrame;
+
+        @Override
+        public void sendFrames(byte[]... frames) throws IOException {
+            if (failWrites) {
+                throw new IOException("broken pipe");
+            }
+            sends.add(frames);
+        }
+
+        List<Object> written() throws Exception {
+            List<Object> all = new ArrayList<>();
+            for (byte[][] send : sends) {
+                for (byte[] frame : send) {
+                    all.add(FrameCodec.decode(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE));
+                }
+            }
+            return all;
+        }
+
+        @Override
+        public int pendingFrames() {
+            return backlogFrames;
+        }
+
+        @Override
+        public long pendingBytes() {
+            return 0;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        @Override
+        public void abort(byte[] finalFrame) {
+            abortFrame = finalFrame;
+            open = false;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "test";
+        }
+    }
+}
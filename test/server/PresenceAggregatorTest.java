@@ -0,0 +1,129 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import common.User;
+import common.UserRole;
+
+public class PresenceAggregatorTest {
+
+    private List<List<Object>> batches;
+    private List<Long> versions;
+    private PresenceAggregator presence;
+    private User alice;
+    private User bob;
+
+    @Before
+    public void setUp() {
+        batches = new CopyOnWriteArrayList<>();
+        versions = new CopyOnWriteArrayList<>();
+        //a window long enough that only the explicit flush() publishes
+        presence = new PresenceAggregator(60_000, (version, changes) -> {
+            versions.add(version);
+            batches.add(changes);
+        });
+        alice = new User("alice", "pass1", UserRole.GENERAL);
+        bob = new User("bob", "pass2", UserRole.GENERAL);
+    }
+
+    @After
+    public void tearDown() {
+        presence.close();
+    }
+
+    @Test
+    public void transitionsInOneWindowGoOutAsOneBatch() {
+        presence.online(alice);
+        presence.online(bob);
+        assertTrue(batches.isEmpty());
+
+        presence.flush();
+
+        assertEquals(Arrays.asList(1L), versions);
+        assertEquals(Arrays.asList(alice, bob), batches.get(0));
+
+        presence.offline("bob");
+        presence.flush();
+        assertEquals(Arrays.asList(1L, 2L), versions);
+        assertEquals(Arrays.asList("bob"), batches.get(1));
+    }
+
+    @Test
+    public void flapsInsideTheWindowAreNotPublished() {
+        presence.online(alice);
+        presence.flush();
+
+        presence.offline("alice");
+        presence.online(alice);
+        presence.online(bob);
+        presence.offline("bob");
+        presence.flush();
+
+        assertEquals(1, batches.size());
+        assertEquals(5, presence.getEventsReceived());
+        assertEquals(1, presence.getEventsSent());
+        assertEquals(4, presence.getEventsCoalesced());
+        assertEquals(1, presence.getBatchesSent());
+        assertEquals(1, presence.getVersion());
+    }
+
+    @Test
+    public void snapshotMatchesItsVersion() throws Exception {
+        presence.online(alice);
+        presence.flush();
+        presence.online(bob);
+
+        List<User> seen = new ArrayList<>();
+        long[] version = new long[1];
+        presence.snapshot((v, online) -> {
+            version[0] = v;
+            seen.addAll(online);
+        });
+
+        //bob isn't published yet, so he arrives in the batch after version 1
+        assertEquals(1, version[0]);
+        assertEquals(Arrays.asList(alice), seen);
+    }
+
+    @Test
+    public void windowTimerPublishesWithoutAFlush() throws Exception {
+        PresenceAggregator timed = new PresenceAggregator(20, (version, changes) -> batches.add(changes));
+        try {
+            for (int i = 0; i < 50; i++) {
+                timed.online(new User("user" + i, "pw", UserRole.GENERAL));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (published() < 50 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(50, published());
+            assertTrue(batches.size() < 50);
+        } finally {
+            timed.close();
+        }
+    }
+
+    private int published() {
+        int published = 0;
+        for (List<Object> batch : batches) {
+            published += batch.size();
+        }
+        return published;
+    }
+
+    @Test
+    public void zeroWindowPublishesEachTransition() {
+        PresenceAggregator immediate = new PresenceAggregator(0, (version, changes) -> batches.add(changes));
+        immediate.online(alice);
+        immediate.offline("alice");
+
+        assertEquals(Arrays.asList(Arrays.asList(alice), Arrays.asList("alice")), batches);
+    }
+}
@@ -0,0 +1,121 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class SearchIndexTest {
+
+    private static final Path LOG = Paths.get("test_search_log.txt");
+    private static final String INDEX = "test_search_log.txt.search";
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(LOG);
+        Files.deleteIfExists(Paths.get(INDEX));
+    }
+
+    private static String line(String messageID, String chatID, String content) {
+        return "MESSAGE|" + messageID + "|" + chatID + "|alice|2025-12-02T10:00|" + content;
+    }
+
+    private static void append(String... lines) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        Files.write(LOG, text.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static SegmentedLog log() throws IOException {
+        return SegmentedLog.open(LOG, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void everyTermMustMatchAndMoreOccurrencesRankHigher() {
+        SearchIndex index = new SearchIndex(INDEX);
+        index.addLine(line("m1", "chatA", "Lunch at noon?"), 0);
+        index.addLine(line("m2", "chatA", "lunch lunch, then the meeting"), 100);
+        index.addLine(line("m3", "chatB", "Meeting moved"), 200);
+        index.addLine("SESSION|chatA|2025-12-02T10:00|false|alice,bob|", 300);
+
+        SearchIndex.Results lunch = index.search("LUNCH", null, 0, 10);
+        assertEquals(2, lunch.getTotal());
+        assertEquals("m2", lunch.getHits().get(0).getMessageID());
+
+        SearchIndex.Results both = index.search("meeting lunch", null, 0, 10);
+        assertEquals(1, both.getTotal());
+        assertEquals(100, both.getHits().get(0).getOffset());
+
+        assertEquals(0, index.search("dinner", null, 0, 10).getTotal());
+        assertEquals(0, index.search("  ,. ", null, 0, 10).getTotal());
+        assertEquals(3, index.docCount());
+    }
+
+    @Test
+    public void hitsAreLimitedToTheChatsGivenAndPaged() {
+        SearchIndex index = new SearchIndex(INDEX);
+        for (int i = 0; i < 30; i++) {
+            index.addLine(line("m" + i, i % 3 == 0 ? "chatB" : "chatA", "standup notes"), i * 100);
+        }
+
+        SearchIndex.Results chatB = index.search("standup", new HashSet<>(Arrays.asList("chatB")), 0, 100);
+        assertEquals(10, chatB.getTotal());
+        for (SearchIndex.Hit hit : chatB.getHits()) {
+            assertEquals("chatB", hit.getChatID());
+        }
+
+        //equal scores come newest first, and pages pick up where the last one stopped
+        SearchIndex.Results first = index.search("standup", null, 0, 20);
+        SearchIndex.Results second = index.search("standup", null, 20, 20);
+        assertEquals(30, second.getTotal());
+        assertEquals("m29", first.getHits().get(0).getMessageID());
+        assertEquals(10, second.getHits().size());
+        assertEquals("m0", second.getHits().get(9).getMessageID());
+    }
+
+    @Test
+    public void savedIndexOnlyCatchesUpOnNewLines() throws IOException {
+        append(line("m1", "chatA", "quarterly report"), "SESSION|chatA|2025-12-02T10:00|false|alice,bob|");
+        SearchIndex index = SearchIndex.open(INDEX);
+        assertEquals(1, index.catchUp(log()));
+        index.save();
+
+        append(line("m2", "chatA", "report draft"));
+        SearchIndex reopened = SearchIndex.open(INDEX);
+        assertEquals(1, reopened.docCount());
+        assertEquals(1, reopened.catchUp(log()));
+        assertEquals(Files.size(LOG), reopened.indexedUpTo());
+
+        SearchIndex.Results report = reopened.search("report", null, 0, 10);
+        assertEquals(2, report.getTotal());
+        //a line fed again after a restart is not indexed twice
+        reopened.addLine(line("m1", "chatA", "quarterly report"), 0);
+        assertEquals(2, reopened.docCount());
+    }
+
+    @Test
+    public void aReplacedLogStartsTheIndexOver() throws IOException {
+        append(line("m1", "chatA", "old message one"), line("m2", "chatA", "old message two"));
+        SearchIndex index = SearchIndex.open(INDEX);
+        index.catchUp(log());
+        index.save();
+
+        Files.delete(LOG);
+        append(line("m9", "chatC", "new"));
+        SearchIndex reopened = SearchIndex.open(INDEX);
+        reopened.catchUp(log());
+
+        assertEquals(1, reopened.docCount());
+        assertEquals(0, reopened.search("old", null, 0, 10).getTotal());
+        assertEquals("m9", reopened.search("new", null, 0, 10).getHits().get(0).getMessageID());
+    }
+}
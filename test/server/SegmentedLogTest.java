@@ -0,0 +1,316 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import common.LogFilter;
+import common.Message;
+
+public class SegmentedLogTest {
+
+    private static final String LOG = "test_segment_log.txt";
+    private static final LocalDateTime START = LocalDateTime.of(2025, 12, 1, 9, 0);
+
+    @After
+    public void tearDown() {
+        File[] files = new File(".").listFiles((dir, name) -> name.startsWith(LOG));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    //Messages an hour apart, chats rotating through chat0..chat2, in 1 KB segments. Each is written
+    //before the next is logged, as segments only roll between batches
+    private static Logger logHours(int count) {
+        Logger logger = new Logger(LOG, "unused_credentials.txt", 60_000, 10, false, 1024);
+        for (int i = 0; i < count; i++) {
+            logger.awaitDurable(logger.logMessage(new Message("m" + i, "chat" + (i % 3), "alice", START.plusHours(i), "message " + i)));
+        }
+        return logger;
+    }
+
+    @Test
+    public void fullSegmentsAreSealedWithAFooter() throws IOException {
+        logHours(120).close();
+
+        SegmentedLog log = SegmentedLog.open(Paths.get(LOG), 1024);
+        List<LogSegment> segments = log.segments();
+        assertTrue(segments.size() > 5);
+        int records = 0;
+        for (LogSegment segment : segments.subList(0, segments.size() - 1)) {
+            assertTrue(segment.isSealed());
+            assertTrue(segment.getFile().getFileName().toString().matches(LOG.replace(".", "\\.") + "\\.\\d{20}(\\.z)?"));
+            assertTrue(segment.getChatIDs().contains("chat0"));
+            assertEquals(Arrays.asList("chat0", "chat1", "chat2"), new ArrayList<>(segment.getChatIDs()));
+            assertFalse(segment.getMinTime().isAfter(segment.getMaxTime()));
+            records += segment.getRecords();
+        }
+        LogSegment active = segments.get(segments.size() - 1);
+        assertFalse(active.isSealed());
+        assertEquals(Paths.get(LOG), active.getFile());
+        assertEquals(120, records + active.getRecords());
+        log.close();
+    }
+
+    @Test
+    public void readsSpanSegmentsAndSkipFooters() throws IOException {
+        Logger logger = logHours(120);
+
+        List<Message> chat1 = logger.getMessagesForChat("chat1");
+        assertEquals(40, chat1.size());
+        assertEquals("message 1", chat1.get(0).getContent());
+        assertEquals("message 118", chat1.get(39).getContent());
+        List<Message> page = logger.getMessagePage("chat1", "m61", 5);
+        assertEquals("message 46", page.get(0).getContent());
+        assertEquals("message 58", page.get(4).getContent());
+
+        String all = logger.readAllLogs();
+        assertFalse(all.contains(LogSegment.FOOTER_PREFIX));
+        assertEquals(120, all.split("\n").length);
+
+        List<String> lines = new ArrayList<>();
+        long next = 0;
+        while (next >= 0) {
+            Logger.LogPage logPage = logger.readLogPage(next, 7, LogFilter.ALL);
+            lines.addAll(logPage.getLines());
+            next = logPage.getNextOffset();
+        }
+        assertEquals(120, lines.size());
+        assertTrue(lines.get(119).endsWith("|message 119"));
+        logger.close();
+    }
+
+    @Test
+    public void filteredLogPagesSkipSegmentsOutsideTheRange() throws IOException {
+        Logger logger = logHours(120);
+
+        LogFilter lastDay = new LogFilter("chat2", null, START.plusHours(96), null);
+        Logger.LogPage page = logger.readLogPage(0, 100, lastDay);
+        assertEquals(8, page.getLines().size());
+        assertTrue(page.getLines().get(0).endsWith("|message 98"));
+        assertTrue(logger.readLogPage(0, 100, new LogFilter("chat9", null, null, null)).getLines().isEmpty());
+        logger.close();
+
+        SegmentedLog log = SegmentedLog.open(Paths.get(LOG), 1024);
+        LogSegment first = log.segments().get(0);
+        assertFalse(first.mayContain(lastDay));
+        assertFalse(first.mayContain(new LogFilter("chat9", null, null, null)));
+        assertTrue(first.mayContain(new LogFilter("chat0", null, null, START.plusHours(1))));
+        log.close();
+    }
+
+    @Test
+    public void restartFindsEverySegmentAndKeepsAppending() throws IOException {
+        logHours(60).close();
+
+        Logger restarted = new Logger(LOG, "unused_credentials.txt", 60_000, 10, false, 1024);
+        restarted.buildIndex();
+        restarted.logMessage(new Message("late", "chat0", "bob", START.plusDays(30), "after restart"));
+        List<Message> chat0 = restarted.getMessagesForChat("chat0");
+        assertEquals(21, chat0.size());
+        assertEquals("message 0", chat0.get(0).getContent());
+        assertEquals("after restart", chat0.get(20).getContent());
+        restarted.close();
+    }
+
+    @Test
+    public void sealedSegmentsAreCompressedAndReadABlockAtATime() throws IOException {
+        //closing waits for the compressor to finish
+        logHours(120).close();
+
+        SegmentedLog log = SegmentedLog.open(Paths.get(LOG), 1024);
+        List<LogSegment> segments = log.segments();
+        for (LogSegment segment : segments.subList(0, segments.size() - 1)) {
+            assertTrue(segment.isCompressed());
+            assertTrue(segment.getFile().toString().endsWith(".z"));
+            assertTrue(Files.size(segment.getFile()) < segment.getLength() + segment.footer().length());
+        }
+        File[] plain = new File(".").listFiles((dir, name) -> name.matches(LOG.replace(".", "\\.") + "\\.\\d{20}"));
+        assertEquals(0, plain.length);
+
+        //one line out of the middle of a compressed segment inflates just its block
+        LogSegment second = segments.get(1);
+        byte[] line = new byte[8];
+        try (java.io.InputStream in = log.newInputStream(second.getBase(), second.end())) {
+            assertEquals(8, in.readNBytes(line, 0, 8));
+        }
+        assertEquals("MESSAGE|", new String(line, StandardCharsets.US_ASCII));
+        assertEquals(1, second.getBlocks().blocksInflated());
+        log.close();
+
+        Logger reopened = new Logger(LOG, "unused_credentials.txt", 60_000, 10, false, 1024);
+        List<Message> chat2 = reopened.getMessagesForChat("chat2");
+        assertEquals(40, chat2.size());
+        assertEquals("message 119", chat2.get(39).getContent());
+        assertEquals(3, reopened.readLogPage(0, 100, new LogFilter("chat0", null, START.plusHours(100), START.plusHours(109))).getLines().size());
+        reopened.close();
+    }
+
+    private static List<String> lines(SegmentedLog log, long[] offsets) throws IOException {
+        List<String> lines = new ArrayList<>();
+        log.readLines(offsets, (bytes, start, end) -> lines.add(new String(bytes, start, end - start, StandardCharsets.UTF_8)));
+        return lines;
+    }
+
+    private static String line(int i) {
+        return "MESSAGE|m" + i + "|chat" + (i % 3) + "|alice|" + START.plusHours(i) + "|message " + i;
+    }
+
+    //Plain sealed segments, so a mapped reader sees them all
+    private static void writePlain(int count) throws IOException {
+        SegmentedLog writer = SegmentedLog.open(Paths.get(LOG), 1024, false, false);
+        for (int i = 0; i < count; i++) {
+            writer.append((line(i) + "\n").getBytes(StandardCharsets.UTF_8));
+            writer.record("chat" + (i % 3), START.plusHours(i));
+            writer.rollIfFull();
+        }
+        writer.close();
+    }
+
+    @Test
+    public void mappedReadsMatchPlainReads() throws IOException {
+        writePlain(120);
+
+        SegmentedLog mapped = SegmentedLog.open(Paths.get(LOG), 1024, false, true);
+        SegmentedLog plain = SegmentedLog.open(Paths.get(LOG), 1024, false, false);
+        assertTrue(mapped.segments().size() > 5);
+        long[] offsets = ChatLogIndex.scan(plain).offsets("chat1");
+        assertEquals(40, offsets.length);
+        List<String> expected = lines(plain, offsets);
+        assertEquals(expected, lines(mapped, offsets));
+        assertTrue(expected.get(39).endsWith("|message 118"));
+        mapped.close();
+        plain.close();
+    }
+
+    @Test
+    public void historyReadsBetweenAppendsMapEachSealedSegmentOnceAndNeverTheActiveOne() throws IOException {
+        writePlain(60);
+
+        //a segment size the appends below won't reach, so every new line lands in the active one
+        SegmentedLog log = SegmentedLog.open(Paths.get(LOG), 1 << 20, false, true);
+        List<Long> offsets = new ArrayList<>();
+        for (long offset : ChatLogIndex.scan(log).offsets("chat0")) {
+            offsets.add(offset);
+        }
+        for (int i = 60; i < 260; i++) {
+            long offset = log.append((line(i) + "\n").getBytes(StandardCharsets.UTF_8));
+            if (i % 3 == 0) {
+                offsets.add(offset);
+            }
+            List<String> history = lines(log, offsets.stream().mapToLong(Long::longValue).toArray());
+            assertEquals(offsets.size(), history.size());
+            assertEquals(line(i - i % 3), history.get(history.size() - 1));
+        }
+        List<LogSegment> segments = log.segments();
+        assertTrue(segments.size() > 2);
+        for (LogSegment segment : segments.subList(0, segments.size() - 1)) {
+            assertEquals(1, segment.getMappings());
+        }
+        assertEquals(0, segments.get(segments.size() - 1).getMappings());
+        log.close();
+    }
+
+    @Test
+    public void startupReadsSavedSegmentIndexesInsteadOfScanningSealedSegments() throws IOException {
+        Logger logger = new Logger(LOG, "unused_credentials.txt", 60_000, 10, false, 1024);
+        //built before anything is logged, so each segment's entries are saved as it is sealed
+        logger.buildIndex();
+        for (int i = 0; i < 120; i++) {
+            logger.awaitDurable(logger.logMessage(new Message("m" + i, "chat" + (i % 3), "alice", START.plusHours(i), "message " + i)));
+        }
+        logger.close();
+
+        SegmentedLog log = SegmentedLog.open(Paths.get(LOG), 1024);
+        List<LogSegment> segments = log.segments();
+        for (LogSegment segment : segments.subList(0, segments.size() - 1)) {
+            assertTrue(Files.exists(log.indexFile(segment)));
+        }
+        ChatLogIndex index = ChatLogIndex.scan(log);
+        assertEquals(120, index.messageCount());
+        for (LogSegment segment : segments.subList(0, segments.size() - 1)) {
+            assertEquals(0, segment.getBlocks().blocksInflated());
+        }
+        long[] chat1 = index.offsets("chat1");
+        assertEquals(List.of(line(1), line(118)), lines(log, new long[] {chat1[0], chat1[39]}));
+
+        //a missing or damaged saved index is rebuilt from the segment and saved again
+        LogSegment first = segments.get(0);
+        LogSegment second = segments.get(1);
+        Files.delete(log.indexFile(first));
+        Files.write(log.indexFile(second), new byte[] {1, 2, 3});
+        ChatLogIndex rebuilt = ChatLogIndex.scan(log);
+        assertArrayEquals(chat1, rebuilt.offsets("chat1"));
+        assertArrayEquals(index.offsets("chat0"), rebuilt.offsets("chat0"));
+        assertTrue(first.getBlocks().blocksInflated() > 0);
+        assertTrue(Files.size(log.indexFile(second)) > 3);
+        log.close();
+    }
+
+    @Test
+    public void aCompressedCopyWinsOverAPlainOneLeftBehind() throws IOException {
+        Path path = Paths.get(LOG);
+        SegmentedLog log = SegmentedLog.open(path, 64);
+        log.append("MESSAGE|m1|chatA|alice|2025-12-01T09:00|one\n".getBytes(StandardCharsets.UTF_8));
+        log.record("chatA", START);
+        log.append("MESSAGE|m2|chatA|alice|2025-12-01T10:00|two\n".getBytes(StandardCharsets.UTF_8));
+        log.record("chatA", START.plusHours(1));
+        assertTrue(log.rollIfFull());
+        Path sealed = log.segments().get(0).getFile();
+        byte[] plainCopy = Files.readAllBytes(sealed);
+        assertEquals(1, log.compressSealed());
+        assertFalse(Files.exists(sealed));
+        log.close();
+
+        //as if the server stopped between moving the compressed copy in and deleting the plain file
+        Files.write(sealed, plainCopy);
+        SegmentedLog reopened = SegmentedLog.open(path, 64);
+        assertTrue(reopened.segments().get(0).isCompressed());
+        assertFalse(Files.exists(sealed));
+        assertEquals(2, reopened.segments().get(0).getRecords());
+        byte[] data = reopened.newInputStream(0, reopened.size()).readAllBytes();
+        assertTrue(new String(data, StandardCharsets.UTF_8).endsWith("|two\n"));
+        reopened.close();
+    }
+
+    @Test
+    public void aSealCutShortIsFinishedOnOpen() throws IOException {
+        Path log = Paths.get(LOG);
+        String data = "MESSAGE|m1|chatA|alice|2025-12-01T09:00|hi\n";
+        String footer = "SEGMENT|" + data.length() + "|1|2025-12-01T09:00|2025-12-01T09:00|chatA\n";
+        Files.write(log, (data + footer).getBytes(StandardCharsets.UTF_8));
+
+        SegmentedLog opened = SegmentedLog.open(log, 1024);
+        assertEquals(2, opened.segments().size());
+        assertTrue(opened.segments().get(0).isSealed());
+        assertFalse(Files.exists(log));
+        assertEquals(data.length(), opened.size());
+        opened.close();
+    }
+
+    @Test
+    public void aPartlyWrittenFooterIsDropped() throws IOException {
+        Path log = Paths.get(LOG);
+        String data = "MESSAGE|m1|chatA|alice|2025-12-01T09:00|hi\n";
+        Files.write(log, (data + "SEGMENT|" + data.length() + "|1|2025-12").getBytes(StandardCharsets.UTF_8));
+
+        SegmentedLog opened = SegmentedLog.open(log, 1024);
+        assertEquals(1, opened.segments().size());
+        assertEquals(data.length(), Files.size(log));
+        assertEquals(1, opened.segments().get(0).getRecords());
+        opened.close();
+    }
+}
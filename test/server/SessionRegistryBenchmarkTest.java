@@ -0,0 +1,131 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.User;
+import common.UserRole;
+
+//64 threads logging in and out while 5k other users stay online: the concurrent session maps
+//vs. the synchronized list walked under one lock that Authentication used to keep.
+public class SessionRegistryBenchmarkTest {
+
+    private static final int THREADS = 64;
+    private static final int ONLINE = Integer.getInteger("sessionbench.online", 5_000);
+    private static final int CYCLES = Integer.getInteger("sessionbench.cycles", 2_000);
+
+    private File credentials;
+
+    @After
+    public void tearDown() {
+        if (credentials != null) {
+            credentials.delete();
+        }
+    }
+
+    @Test
+    public void concurrentMapsBeatTheLockedList() throws Exception {
+        credentials = File.createTempFile("credentials_bench", ".txt");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(credentials))) {
+            out.write("nobody,x,GENERAL\n");
+        }
+        Authentication auth = new Authentication(credentials.getPath());
+        LockedList legacy = new LockedList();
+        for (int i = 0; i < ONLINE; i++) {
+            User idle = new User("idle" + i, "p", UserRole.GENERAL);
+            assertNotNull(auth.createSession(idle));
+            assertNotNull(legacy.createSession(idle));
+        }
+
+        //warm up both, then measure
+        run(auth::createSession, auth::getSessionFor, auth::endSession, CYCLES / 4);
+        run(legacy::createSession, legacy::getSessionFor, legacy::endSession, CYCLES / 20);
+        long maps = run(auth::createSession, auth::getSessionFor, auth::endSession, CYCLES);
+        long list = run(legacy::createSession, legacy::getSessionFor, legacy::endSession, CYCLES / 5) * 5;
+
+        assertEquals(ONLINE, auth.activeSessionCount());
+        double mapsPerCycle = (double) maps / ((long) THREADS * CYCLES);
+        double listPerCycle = (double) list / ((long) THREADS * CYCLES);
+        System.out.printf("%d threads, %d online: maps %.0f ns/login+logout, locked list %.0f ns/login+logout%n",
+                THREADS, ONLINE, mapsPerCycle, listPerCycle);
+        assertTrue("maps " + mapsPerCycle + " ns vs list " + listPerCycle + " ns", mapsPerCycle * 10 < listPerCycle);
+    }
+
+    //Each thread logs its own user in, looks the session up and logs out, `cycles` times
+    private static long run(java.util.function.Function<User, String> login, java.util.function.Function<User, UserSession> lookup,
+            java.util.function.Predicate<String> logout, int cycles) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicLong failures = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            User user = new User("storm" + t, "p", UserRole.GENERAL);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < cycles; i++) {
+                    String sessionID = login.apply(user);
+                    if (sessionID == null || lookup.apply(user) == null || !logout.test(sessionID)) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        assertEquals(0, failures.get());
+        return elapsed;
+    }
+
+    //The old registry: one synchronized list, walked linearly under a single lock
+    private static class LockedList {
+        private final List<UserSession> activeSessions = Collections.synchronizedList(new ArrayList<>());
+
+        synchronized String createSession(User user) {
+            if (getSessionFor(user) != null) {
+                return null;
+            }
+            UserSession session = new UserSession(user);
+            activeSessions.add(session);
+            return Integer.toString(session.getSessionID());
+        }
+
+        synchronized boolean endSession(String sessionID) {
+            Iterator<UserSession> it = activeSessions.iterator();
+            while (it.hasNext()) {
+                if (Integer.toString(it.next().getSessionID()).equals(sessionID)) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized UserSession getSessionFor(User user) {
+            for (UserSession session : activeSessions) {
+                if (session.getUser().getUserID().equals(user.getUserID())) {
+                    return session;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.Assume;
+import org.junit.Test;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import common.FrameCodec;
+
+public class VirtualThreadLoadTest {
+
+    //override with -Dloadtest.connections=N; client and server ends both live in this JVM
+    private static final int CONNECTIONS = Integer.getInteger("loadtest.connections", 10_000);
+
+    //idle client = socket + handler + parked virtual thread stack; well under this on JDK 21
+    private static final long MAX_HEAP_PER_CONNECTION = 16 * 1024;
+
+    @Test
+    public void idleConnectionsHoldBoundedHeap() throws Exception {
+        Assume.assumeTrue("not enough file descriptors for " + CONNECTIONS + " loopback connections",
+                maxFileDescriptors() > 2L * CONNECTIONS + 512);
+
+        int port = freePort();
+        Thread server = new Thread(() -> Server.main(new String[] { Integer.toString(port), "virtual" }));
+        server.setDaemon(true);
+        server.start();
+
+        long baseline = usedHeap();
+        List<Socket> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < CONNECTIONS; i++) {
+                Socket socket = connect(port);
+                clients.add(socket);
+
+                //a round trip proves a handler thread is now parked on this socket
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                FrameCodec.writeFrame(out, "GET_USER_LIST");
+                assertTrue(((String) FrameCodec.readFrame(in)).startsWith("PRESENCE_SNAPSHOT:"));
+                FrameCodec.readFrame(in);
+            }
+
+            long perConnection = (usedHeap() - baseline) / CONNECTIONS;
+            System.out.println(CONNECTIONS + " idle connections, ~" + perConnection + " heap bytes each");
+            assertTrue("heap per idle connection was " + perConnection + " bytes",
+                    perConnection < MAX_HEAP_PER_CONNECTION);
+        } finally {
+            for (Socket socket : clients) {
+                socket.close();
+            }
+        }
+    }
+
+    private Socket connect(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                //server thread may not be listening yet
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private long maxFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) {
+            return ((UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+        }
+        return Long.MAX_VALUE;
+    }
+}